@@ -0,0 +1,155 @@
+package pb;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import pb.managers.IOThread;
+import pb.managers.ServerManager;
+import pb.utils.Utils;
+
+/**
+ * Benchmark main. Starts a server manager with the given acceptor options
+ * and opens many connections to it at once from a number of threads, like
+ * clients reconnecting after a network blip, then reports how many
+ * connections the server accepted per second. The connections are held
+ * open until they have all been accepted and then closed.
+ * 
+ * @see {@link pb.managers.IOThread}
+ *
+ */
+public class AcceptBenchmark {
+	private static int port=Utils.serverPort; // default port number for the server
+	private static int connections=2000;
+	private static int threads=16;
+	private static int acceptors=1;
+	private static int backlog=IOThread.defaultBacklog;
+	
+	private static void help(Options options){
+		String header = "PB Accept Benchmark for Unimelb COMP90015\n\n";
+		String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("pb.AcceptBenchmark", header, options, footer, true);
+		System.exit(-1);
+	}
+	
+	private static int parseInt(CommandLine cmd,Options options,String option,int value) {
+		if(cmd.hasOption(option)){
+        	try{
+        		return Integer.parseInt(cmd.getOptionValue(option));
+			} catch (NumberFormatException e){
+				System.out.println("-"+option+" requires a number, parsed: "+cmd.getOptionValue(option));
+				help(options);
+			}
+        }
+		return value;
+	}
+	
+	public static void main( String[] args ) throws IOException, InterruptedException
+    {
+		// the endpoints log every connection, which would swamp the timing
+		Logger.getLogger("").setLevel(Level.WARNING);
+		Logger.getLogger("").getHandlers()[0].setLevel(Level.WARNING);
+        
+    	// parse command line options
+        Options options = new Options();
+        options.addOption("port",true,"server port, an integer");
+        options.addOption("connections",true,"number of connections to open, an integer");
+        options.addOption("threads",true,"number of threads opening connections, an integer");
+        options.addOption("acceptors",true,"number of threads accepting connections, an integer");
+        options.addOption("backlog",true,"length of the queue of connections waiting to be accepted, an integer");
+        options.addOption("reuseport",false,"give each acceptor its own server socket, where supported");
+        
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = null;
+        try {
+			cmd = parser.parse( options, args);
+		} catch (ParseException e1) {
+			help(options);
+		}
+        
+        port = parseInt(cmd,options,"port",port);
+        connections = parseInt(cmd,options,"connections",connections);
+        threads = parseInt(cmd,options,"threads",threads);
+        acceptors = parseInt(cmd,options,"acceptors",acceptors);
+        backlog = parseInt(cmd,options,"backlog",backlog);
+        
+        // count the connections as the server manager accepts them
+        CountDownLatch accepted = new CountDownLatch(connections);
+        ServerManager serverManager = new ServerManager(port) {
+        	@Override
+        	public void acceptClient(Socket clientSocket) {
+        		super.acceptClient(clientSocket);
+        		accepted.countDown();
+        	}
+        };
+        serverManager.setAcceptors(acceptors, backlog, cmd.hasOption("reuseport"));
+        CountDownLatch listening = new CountDownLatch(1);
+        serverManager.on(IOThread.ioThread, (eventArgs)->{
+        	listening.countDown();
+        });
+        serverManager.start();
+        listening.await();
+        
+        // open the connections, all at once
+        List<Socket> sockets = new ArrayList<>();
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        List<Thread> clients = new ArrayList<>();
+        for(int i=0;i<threads;i++) {
+        	clients.add(new Thread(()->{
+        		List<Socket> mine = new ArrayList<>();
+        		while(next.getAndIncrement()<connections) {
+        			try {
+        				mine.add(new Socket("localhost",port));
+        			} catch (IOException e) {
+        				failed.incrementAndGet();
+        				accepted.countDown();
+        			}
+        		}
+        		synchronized(sockets) {
+        			sockets.addAll(mine);
+        		}
+        	}));
+        }
+        long start = System.nanoTime();
+        clients.forEach((client)->client.start());
+        boolean done = accepted.await(60, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime()-start;
+        for(Thread client : clients) client.join();
+        
+        long count = connections-accepted.getCount()-failed.get();
+        System.out.println("acceptors "+acceptors+", backlog "+backlog+
+        		(cmd.hasOption("reuseport")?", reuseport":"")+", client threads "+threads);
+        System.out.println("accepted "+count+" of "+connections+" connections in "+
+        		(elapsed/1000000)+" ms"+(done?"":" (timed out)")+", "+failed.get()+" failed to connect");
+        System.out.println(String.format("%.0f connections accepted per second", count*1e9/elapsed));
+        
+        // the endpoints will all see their clients disconnect abruptly
+        Logger.getLogger("").setLevel(Level.OFF);
+        for(Socket socket : sockets) {
+        	try {
+        		socket.close();
+        	} catch (IOException e) {
+        		// ignore
+        	}
+        }
+        serverManager.vaderShutdown();
+        serverManager.join();
+        Utils.getInstance().cleanUp();
+        System.exit(0);
+    }
+}
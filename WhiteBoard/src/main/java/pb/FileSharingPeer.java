@@ -10,9 +10,13 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -24,11 +28,15 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.codec.binary.Base64;
 
+import pb.index.FileListCodec;
+import pb.index.ShareWatcher;
 import pb.managers.ClientManager;
 import pb.managers.IOThread;
 import pb.managers.PeerManager;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.Priority;
+import pb.protocols.ICallback;
 import pb.utils.Utils;
 
 /**
@@ -91,6 +99,12 @@ public class FileSharingPeer {
 	 */
 	private static String host=Utils.serverHost; // default host for the index server
 	
+	/**
+	 * interval (ms) between peer updates while watching a share directory,
+	 * so that the index server does not expire this peer
+	 */
+	private static int peerUpdateInterval=60000;
+	
 	/**
 	 * chunk size to use (bytes) when transferring a file
 	 */
@@ -143,6 +157,10 @@ public class FileSharingPeer {
 	 * @param endpoint
 	 */
 	public static void startTransmittingFile(String filename,Endpoint endpoint) {
+		// file chunks mustn't hold up keep alives, and an error must
+		// stay in order with the chunks
+		endpoint.setEventPriority(fileContents, Priority.Bulk);
+		endpoint.setEventPriority(fileError, Priority.Bulk);
 		try {
 			InputStream in = new FileInputStream(filename);
 			continueTransmittingFile(in,endpoint);
@@ -152,22 +170,48 @@ public class FileSharingPeer {
 	}
 	
 	/**
-	 * Emit a filename as an index update if possible, close when all done.
+	 * Emit filenames as bulk index updates, and as an index update each for
+	 * the filenames that can't be put in a batch.
+	 * @param peerport
 	 * @param filenames
 	 * @param endpoint
+	 * @param done called when all filenames have been emitted
+	 */
+	public static void emitFileList(String peerport,List<String> filenames,Endpoint endpoint,
+			ICallback done) {
+		List<String> unbatched = new ArrayList<>();
+		List<String> batches = FileListCodec.encode(filenames,unbatched);
+		emitBulkIndexUpdate(peerport,batches,endpoint,()->{
+			for(String filename : unbatched) {
+				log.info("Sending index update: "+peerport+":"+filename);
+				// an index update has the format: host:port:filename
+				endpoint.emit(IndexServer.indexUpdate, peerport+":"+filename);
+			}
+			done.callback();
+		});
+	}
+	
+	/**
+	 * Emit batches of filenames as bulk index updates, close when all done.
+	 * Each batch holds many filenames, so a large share is announced in a
+	 * handful of events rather than one event per file.
+	 * @param peerport
+	 * @param batches encoded by {@link pb.index.FileListCodec#encode(List, List)}
+	 * @param endpoint
+	 * @param done called when all batches have been emitted
 	 */
-	public static void emitIndexUpdate(String peerport,List<String> filenames,Endpoint endpoint,
-			ClientManager clientManager) {
-		if(filenames.size()==0) {
-			clientManager.shutdown(); // no more index updates to do
+	public static void emitBulkIndexUpdate(String peerport,List<String> batches,Endpoint endpoint,
+			ICallback done) {
+		if(batches.size()==0) {
+			done.callback(); // no more index updates to do
 		} else {
-			String filename=filenames.remove(0);
-			log.info("Sending index update: "+peerport+":"+filename);
-			// an index update has the format: host:port:filename
-			endpoint.emit(IndexServer.indexUpdate, peerport+":"+filename);
+			String batch=batches.remove(0);
+			log.info("Sending bulk index update for "+peerport+", "+batches.size()+" batches remain");
+			// a bulk index update has the format: host:port:batch
+			endpoint.emit(IndexServer.indexBulkUpdate, peerport+":"+batch);
 			Utils.getInstance().setTimeout(()->{
-				emitIndexUpdate(peerport,filenames,endpoint,clientManager);
-			}, 100); // send 10 index updates per second, this shouldn't kill the bandwidth :-]
+				emitBulkIndexUpdate(peerport,batches,endpoint,done);
+			}, 10);
 		}
 	}
 	
@@ -193,16 +237,108 @@ public class FileSharingPeer {
 			System.out.println("Telling the index server our peer:port="+peerport);
 			endpoint.emit(IndexServer.peerUpdate, peerport);
 			System.out.println("Sending file list to the index server.");
-			emitIndexUpdate(peerport,filenames,endpoint,clientManager);
+			emitFileList(peerport,filenames,endpoint,()->{
+				clientManager.shutdown();
+			});
+		}).on(PeerManager.peerStopped, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			System.out.println("Disconnected from the index server: "+endpoint.getOtherEndpointId());
+		}).on(PeerManager.peerError, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			System.out.println("There was an error communicating with the index server: "
+					+endpoint.getOtherEndpointId());
+		});
+        clientManager.start();
+	}
+	
+	/**
+	 * Open a client connection to the index server, send the watcher's manifest
+	 * and then keep the connection open, sending an index update or an index
+	 * delete for each file that is added to or removed from the share
+	 * directory. The manifest is sent again if the connection is re-established,
+	 * followed by an index delete for each file that was removed while there was
+	 * no connection, since the manifest can only add files to the index.
+	 * @param watcher
+	 * @param peerManager
+	 * @param peerport
+	 * @throws InterruptedException 
+	 * @throws UnknownHostException 
+	 */
+	public static void watchFileList(ShareWatcher watcher,PeerManager peerManager,
+			String peerport) throws UnknownHostException, InterruptedException {
+		// the endpoint to the index server, null while not connected
+		AtomicReference<Endpoint> indexServer = new AtomicReference<>();
+		// files removed while not connected, to delete once reconnected
+		Set<String> removedOffline = ConcurrentHashMap.newKeySet();
+		watcher.on(ShareWatcher.fileAdded, (args)->{
+			String filename = (String) args[0];
+			removedOffline.remove(filename);
+			Endpoint endpoint = indexServer.get();
+			if(endpoint!=null) {
+				log.info("Sending index update: "+peerport+":"+filename);
+				endpoint.emit(IndexServer.indexUpdate, peerport+":"+filename);
+			}
+		}).on(ShareWatcher.fileRemoved, (args)->{
+			String filename = (String) args[0];
+			Endpoint endpoint = indexServer.get();
+			if(endpoint!=null) {
+				log.info("Sending index delete: "+peerport+":"+filename);
+				endpoint.emit(IndexServer.indexDelete, peerport+":"+filename);
+			} else {
+				removedOffline.add(filename);
+			}
+		});
+        ClientManager clientManager = peerManager.connect(indexServerPort, host);
+        clientManager.on(PeerManager.peerStarted, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			System.out.println("Connected to index server: "+endpoint.getOtherEndpointId());
+			endpoint.on(IndexServer.indexUpdateError, (args2)->{
+				String filename = (String) args2[0];
+				System.out.println("Index server did not accept the file: "+filename);
+			});
+			// changes from here on are sent as they happen, so the manifest
+			// taken next can at worst repeat some of them
+			indexServer.set(endpoint);
+			System.out.println("Telling the index server our peer:port="+peerport);
+			emitPeerUpdates(peerport,endpoint,indexServer);
+			System.out.println("Sending file list to the index server.");
+			emitFileList(peerport,watcher.getManifest(),endpoint,()->{
+				for(String filename : removedOffline) {
+					// a file added again since is in the manifest, so skip it
+					if(!removedOffline.remove(filename)) continue;
+					log.info("Sending index delete: "+peerport+":"+filename);
+					endpoint.emit(IndexServer.indexDelete, peerport+":"+filename);
+				}
+				System.out.println("Watching for changes to the shared files.");
+			});
 		}).on(PeerManager.peerStopped, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
+			indexServer.set(null);
 			System.out.println("Disconnected from the index server: "+endpoint.getOtherEndpointId());
 		}).on(PeerManager.peerError, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
+			indexServer.set(null);
 			System.out.println("There was an error communicating with the index server: "
 					+endpoint.getOtherEndpointId());
 		});
         clientManager.start();
+        if(!watcher.isAlive()) watcher.start();
+	}
+	
+	/**
+	 * Tell the index server that this peer is still available, for as long
+	 * as the endpoint is the current connection to the index server.
+	 * @param peerport
+	 * @param endpoint
+	 * @param indexServer the current connection to the index server
+	 */
+	private static void emitPeerUpdates(String peerport,Endpoint endpoint,
+			AtomicReference<Endpoint> indexServer) {
+		if(indexServer.get()!=endpoint) return;
+		endpoint.emit(IndexServer.peerUpdate, peerport);
+		Utils.getInstance().setTimeout(()->{
+			emitPeerUpdates(peerport,endpoint,indexServer);
+		}, peerUpdateInterval);
 	}
 	
 	/**
@@ -256,6 +392,55 @@ public class FileSharingPeer {
         peerManager.shutdown();
 	}
 	
+	/**
+	 * Share all of the files in a directory, and keep the index server up to
+	 * date as files are added to and removed from the directory.
+	 * @param dir the directory to share
+	 * @throws InterruptedException 
+	 * @throws IOException 
+	 */
+	private static void watchFiles(String dir) throws InterruptedException, IOException {
+		ShareWatcher watcher = new ShareWatcher(Path.of(dir));
+        PeerManager peerManager = new PeerManager(peerPort);
+        peerManager.on(PeerManager.peerStarted, (args)->{
+        	Endpoint endpoint = (Endpoint)args[0];
+        	System.out.println("Connection from peer: "+endpoint.getOtherEndpointId());
+        	endpoint.on(getFile,(args2)->{
+        		String filename = (String) args2[0];
+        		System.out.println("Peer is requesting file: "+filename);
+        		startTransmittingFile(filename,endpoint);
+        	});
+        }).on(PeerManager.peerStopped,(args)->{
+        	Endpoint endpoint = (Endpoint)args[0];
+        	System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
+        }).on(PeerManager.peerError,(args)->{
+        	Endpoint endpoint = (Endpoint)args[0];
+        	System.out.println("There was an error communicating with the peer: "
+        			+endpoint.getOtherEndpointId());
+        }).on(PeerManager.peerServerManager, (args)->{
+        	ServerManager serverManager = (ServerManager)args[0];
+        	serverManager.on(IOThread.ioThread, (args2)->{
+	        	String peerport = (String) args2[0];
+	        	try {
+					watchFileList(watcher,peerManager,peerport);
+				} catch (UnknownHostException e) {
+					System.out.println("The index server host could not be found: "+host);
+				} catch (InterruptedException e) {
+					System.out.println("Interrupted while trying to send updates to the index server");
+				}
+	        });
+        });
+        peerManager.start();
+        
+        // just keep sharing until the user presses "return"
+        BufferedReader input= new BufferedReader(new InputStreamReader(System.in));
+        System.out.println("Press RETURN to stop sharing");
+        input.readLine();
+        System.out.println("RETURN pressed, stopping the peer");
+        watcher.shutDown();
+        peerManager.shutdown();
+	}
+	
 	/**
 	 * Process a query response from the index server and download the file
 	 * @param queryResponse
@@ -392,6 +577,7 @@ public class FileSharingPeer {
         Option optionShare = new Option("share",true,"list of files to share");
         optionShare.setArgs(Option.UNLIMITED_VALUES);
         options.addOption(optionShare);
+        options.addOption("watch",true,"directory to share, changes are sent to the index server as they happen");
         Option optionQuery = new Option("query",true,"keywords to search for and download files that match");
         optionQuery.setArgs(Option.UNLIMITED_VALUES);
         options.addOption(optionQuery);
@@ -435,11 +621,13 @@ public class FileSharingPeer {
         if(cmd.hasOption("share")) {
         	String[] files = cmd.getOptionValues("share");
         	shareFiles(files);
+        } else if(cmd.hasOption("watch")) {
+        	watchFiles(cmd.getOptionValue("watch"));
         } else if(cmd.hasOption("query")) {
         	String[] keywords = cmd.getOptionValues("query");
         	queryFiles(keywords);
         } else {
-        	System.out.println("must use either the -query or -share option");
+        	System.out.println("must use either the -query, -share or -watch option");
         	help(options);
         }
         Utils.getInstance().cleanUp();
@@ -3,12 +3,8 @@ package pb;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -19,6 +15,8 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import pb.index.FileIndex;
+import pb.index.FileListCodec;
 import pb.managers.IOThread;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
@@ -45,6 +43,25 @@ public class IndexServer {
 	 */
 	public static final String indexUpdate = "INDEX_UPDATE";
 	
+	/**
+	 * Emitted to request the index to be updated with many files at once.
+	 * The argument must have the format "host:port:batch" where batch
+	 * is a list of filenames encoded by {@link pb.index.FileListCodec}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String indexBulkUpdate = "INDEX_BULK_UPDATE";
+	
+	/**
+	 * Emitted to tell the index server that a file is no longer available
+	 * from a peer. The argument must have the format "host:port:filename"
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String indexDelete = "INDEX_DELETE";
+	
 	/**
 	 * Emitted to query the index for keywords. The argument
 	 * must have the format "keyword,keyword,..."
@@ -94,35 +111,81 @@ public class IndexServer {
 	
 	/**
 	 * Storage of the key value index
-	 * "filename" to list of "PeerIP:PeerPort" strings that have that file
+	 * "filename" to "PeerIP:PeerPort" strings that have that file, kept in
+	 * order of the last time each peer has been seen. We will use this to
+	 * give the most recent peer that has the file.
 	 */
-	public static final Map<String,Set<String>> keyValueMap=new HashMap<>();
+	public static FileIndex fileIndex;
 	
 	/**
-	 * Last time seen "PeerIP:PeerPort" to timestamp, the last time the peer has
-	 * been seen. We will use this to give the most recent peer that has the file.
+	 * The default port number for the server.
 	 */
-	public static final Map<String,Long> lastTimeSeen=new HashMap<>();
+	private static int port=Utils.indexServerPort; // default port number for the server
 	
 	/**
-	 * The default port number for the server.
+	 * Number of shards to split the index over, so that updates from
+	 * different endpoint threads can proceed in parallel.
 	 */
-	private static int port=Utils.indexServerPort; // default port number for the server
+	private static int shards=Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Estimated memory (bytes) that the index may use before it refuses updates.
+	 */
+	private static long maxIndexMemory=Long.MAX_VALUE;
+	
+	/**
+	 * Number of (filename,peer) entries the index may hold before the least
+	 * recently used files are evicted.
+	 */
+	private static long maxIndexEntries=Long.MAX_VALUE;
+	
+	/**
+	 * Time (ms) after a peer was last seen that it is removed from the index,
+	 * or 0 to keep peers forever.
+	 */
+	private static long peerTtl=0;
 	
 
 	/**
 	 * Update the index with the filename and peerport.
 	 * @param filename
 	 * @param peerport
+	 * @return true if the update was accepted, false if the index is full
 	 */
-	private static void indexUpdate(String filename,String peerport) {
-		synchronized(keyValueMap) {
-			if(!keyValueMap.containsKey(filename)) {
-				keyValueMap.put(filename, new HashSet<String>());
-			}
-			Set<String> possiblepeers=keyValueMap.get(filename);
-			possiblepeers.add(peerport);
+	private static boolean indexUpdate(String filename,String peerport) {
+		return fileIndex.indexUpdate(filename, peerport);
+	}
+	
+	/**
+	 * Update the index with a batch of filenames for the peerport.
+	 * @param filenames
+	 * @param peerport
+	 * @return the filenames that were not accepted because the index is full
+	 */
+	private static List<String> indexBulkUpdate(List<String> filenames,String peerport) {
+		return fileIndex.indexUpdateAll(filenames, peerport);
+	}
+	
+	/**
+	 * Remove the peerport from the index for the filename.
+	 * @param filename
+	 * @param peerport
+	 */
+	private static void indexDelete(String filename,String peerport) {
+		fileIndex.indexDelete(filename, peerport);
+	}
+	
+	/**
+	 * Remove peers that have not been seen within the expiry time and then
+	 * sweep again after the next tick.
+	 */
+	private static void expirePeers() {
+		for(String peer : fileIndex.expire(Instant.now().toEpochMilli())) {
+			log.info("Peer expired: "+peer);
 		}
+		Utils.getInstance().setTimeout(()->{
+			expirePeers();
+		}, fileIndex.getExpiryTick());
 	}
 	
 	/**
@@ -139,22 +202,10 @@ public class IndexServer {
 			return;
 		}
 		String hit = hits.remove(0);
-		synchronized(keyValueMap) {
-			synchronized(lastTimeSeen) {
-				if(keyValueMap.containsKey(hit)) {
-					List<String> peers = new ArrayList<String>(keyValueMap.get(hit));
-					Collections.sort(peers,
-					new Comparator<String>() {
-						@Override
-						public int compare(String o1, String o2) {
-							// sort largest to smallest
-							return lastTimeSeen.get(o2).compareTo(lastTimeSeen.get(o1));
-						}
-					});
-					log.info("Sending query response: "+peers.get(0)+":"+hit);
-					client.emit(queryResponse, peers.get(0)+":"+hit);
-				}
-			}
+		String peer = fileIndex.bestPeer(hit);
+		if(peer!=null) {
+			log.info("Sending query response: "+peer+":"+hit);
+			client.emit(queryResponse, peer+":"+hit);
 		}
 		Utils.getInstance().setTimeout(()->{
 			transmitHits(hits,client);
@@ -169,10 +220,7 @@ public class IndexServer {
 	private static void queryIndex(String query,Endpoint client) {
 		String[] terms = query.split(",");
 		Set<String> hits = new HashSet<>();
-		List<String> filenames;
-		synchronized(keyValueMap) {
-			filenames=new ArrayList<String>(keyValueMap.keySet());
-		}
+		List<String> filenames=fileIndex.filenames();
 		for(String filename : filenames) {
 			String filelower=filename.toLowerCase();
 			for(String term : terms) {
@@ -190,9 +238,7 @@ public class IndexServer {
 	 * @param peerport
 	 */
 	private static void peerUpdate(String peerport) {
-		synchronized(lastTimeSeen) {
-			lastTimeSeen.put(peerport, Instant.now().toEpochMilli());
-		}
+		fileIndex.peerUpdate(peerport, Instant.now().toEpochMilli());
 	}
 	
 	private static void help(Options options){
@@ -213,6 +259,10 @@ public class IndexServer {
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
         options.addOption("password",true,"password for server");
+        options.addOption("shards",true,"number of index shards, an integer from 1 to "+FileIndex.maxShards);
+        options.addOption("maxIndexMemory",true,"memory limit for the index in megabytes, an integer");
+        options.addOption("maxIndexEntries",true,"limit on the number of index entries, an integer");
+        options.addOption("peerTtl",true,"seconds after a peer was last seen that it expires, an integer");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -232,6 +282,54 @@ public class IndexServer {
 			}
         }
         
+        if(cmd.hasOption("shards")){
+        	try{
+        		shards = Integer.parseInt(cmd.getOptionValue("shards"));
+			} catch (NumberFormatException e){
+				System.out.println("-shards requires an integer, parsed: "+cmd.getOptionValue("shards"));
+				help(options);
+			}
+        	if(shards<1 || shards>FileIndex.maxShards) {
+        		System.out.println("-shards must be from 1 to "+FileIndex.maxShards+", parsed: "+shards);
+        		help(options);
+        	}
+        }
+        
+        if(cmd.hasOption("maxIndexMemory")){
+        	try{
+        		maxIndexMemory = Math.multiplyExact(Long.parseLong(cmd.getOptionValue("maxIndexMemory")),1024*1024L);
+			} catch (NumberFormatException | ArithmeticException e){
+				System.out.println("-maxIndexMemory requires an integer number of megabytes, parsed: "
+						+cmd.getOptionValue("maxIndexMemory"));
+				help(options);
+			}
+        	if(maxIndexMemory<0) {
+        		System.out.println("-maxIndexMemory must not be negative, parsed: "+cmd.getOptionValue("maxIndexMemory"));
+        		help(options);
+        	}
+        }
+        
+        if(cmd.hasOption("maxIndexEntries")){
+        	try{
+        		maxIndexEntries = Long.parseLong(cmd.getOptionValue("maxIndexEntries"));
+			} catch (NumberFormatException e){
+				System.out.println("-maxIndexEntries requires an integer, parsed: "+cmd.getOptionValue("maxIndexEntries"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("peerTtl")){
+        	try{
+        		peerTtl = Math.multiplyExact(Long.parseLong(cmd.getOptionValue("peerTtl")),1000L);
+			} catch (NumberFormatException | ArithmeticException e){
+				System.out.println("-peerTtl requires an integer, parsed: "+cmd.getOptionValue("peerTtl"));
+				help(options);
+			}
+        }
+        
+        fileIndex = new FileIndex(shards,maxIndexMemory,maxIndexEntries,peerTtl);
+        if(peerTtl>0) expirePeers();
+        
         // create a server manager and setup event handlers
         ServerManager serverManager;
         
@@ -255,7 +353,34 @@ public class IndexServer {
         			endpoint.emit(indexUpdateError,update);
         		} else {
 	        		String peerport = parts[0]+":"+parts[1];
-	        		indexUpdate(parts[2],peerport);
+	        		if(!indexUpdate(parts[2],peerport)) {
+	        			log.warning("Index is full, refusing update: "+update);
+	        			endpoint.emit(indexUpdateError,update);
+	        		}
+        		}
+        	}).on(indexBulkUpdate, (eventArgs2)->{
+        		String update = (String) eventArgs2[0];
+        		String[] parts=update.split(":",3);
+        		List<String> filenames = parts.length==3?FileListCodec.decode(parts[2]):null;
+        		if(filenames==null) {
+        			log.warning("Received malformed bulk index update");
+        			endpoint.emit(indexUpdateError,parts.length>=2?parts[0]+":"+parts[1]:update);
+        		} else {
+        			String peerport = parts[0]+":"+parts[1];
+        			log.info("Received bulk index update of "+filenames.size()+" files from "+peerport);
+        			for(String filename : indexBulkUpdate(filenames,peerport)) {
+        				endpoint.emit(indexUpdateError,peerport+":"+filename);
+        			}
+        		}
+        	}).on(indexDelete, (eventArgs2)->{
+        		String update = (String) eventArgs2[0];
+        		log.info("Received index delete: "+update);
+        		String[] parts=update.split(":",3);
+        		if(parts.length!=3) {
+        			endpoint.emit(indexUpdateError,update);
+        		} else {
+	        		String peerport = parts[0]+":"+parts[1];
+	        		indexDelete(parts[2],peerport);
         		}
         	}).on(queryIndex, (eventArgs2)->{
         		String query = (String) eventArgs2[0];
@@ -43,6 +43,16 @@ public class WhiteboardPeer {
 	 */
 	private static String host=Utils.serverHost; // default host for the index server
 	
+	/**
+	 * tolerance in pixels that drawn paths are simplified to
+	 */
+	private static double simplifyTolerance=WhiteboardApp.defaultSimplifyTolerance;
+	
+	/**
+	 * whether boards created by this peer use the compact path encoding
+	 */
+	private static boolean compactPaths=false;
+	
 	/**
 	 * Print some help.
 	 * @param options
@@ -64,6 +74,8 @@ public class WhiteboardPeer {
         options.addOption("port",true,"peer server port, an integer");
         options.addOption("host",true,"whiteboard server hostname, a string");
         options.addOption("whiteboardServerPort",true,"whiteboard server port, an integer");
+        options.addOption("simplify",true,"tolerance in pixels that drawn paths are simplified to, a number, 0 for none");
+        options.addOption("compact",false,"boards created by this peer use the compact path encoding");
 		
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -97,7 +109,21 @@ public class WhiteboardPeer {
         	host = cmd.getOptionValue("host");
         }
         
-		WhiteboardApp whiteboard = new WhiteboardApp(peerPort,host,whiteboardServerPort);
+        if(cmd.hasOption("simplify")) {
+        	try{
+        		simplifyTolerance = Double.parseDouble(cmd.getOptionValue("simplify"));
+			} catch (NumberFormatException e){
+				System.out.println("-simplify requires a number, parsed: "+
+						cmd.getOptionValue("simplify"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("compact")) {
+        	compactPaths = true;
+        }
+        
+		WhiteboardApp whiteboard = new WhiteboardApp(peerPort,host,whiteboardServerPort,simplifyTolerance,compactPaths);
 		whiteboard.waitToFinish();
 		Utils.getInstance().cleanUp();
 	}
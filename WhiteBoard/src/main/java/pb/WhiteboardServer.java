@@ -1,7 +1,10 @@
 package pb;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -11,8 +14,12 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import pb.app.BoardRelay;
+import pb.app.SharedBoardRegistry;
+import pb.app.WhiteboardApp;
 import pb.managers.IOThread;
 import pb.managers.ServerManager;
+import pb.managers.SubscriptionRegistry;
 import pb.managers.endpoint.Endpoint;
 import pb.utils.Utils;
 
@@ -45,10 +52,11 @@ public class WhiteboardServer {
 	/**
 	 * The server emits this event:
 	 * <ul>
-	 * <li>to all connected clients to tell them that a board is being shared</li>
-	 * <li>to a newly connected client, it emits this event several times, for all
-	 * boards that are currently known to be being shared</li>
+	 * <li>to clients subscribed to the board's host or board topic to tell
+	 * them that a board is being shared</li>
 	 * </ul>
+	 * Clients following the whole list of shared boards get
+	 * {@link #boardsSnapshot} and {@link #boardsDelta} instead.
 	 * Argument has format "host:port:boardid"
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}</li>
@@ -59,8 +67,8 @@ public class WhiteboardServer {
 	/**
 	 * The server emits this event:
 	 * <ul>
-	 * <li>to all connected clients to tell them that a board is no longer
-	 * shared</li>
+	 * <li>to clients subscribed to the board's host or board topic to tell
+	 * them that a board is no longer shared</li>
 	 * </ul>
 	 * Argument has format "host:port:boardid"
 	 * <ul>
@@ -77,13 +85,298 @@ public class WhiteboardServer {
 	 * </ul>
 	 */
 	public static final String error = "ERROR";
+
+	/**
+	 * Emitted by a client to follow the list of shared boards. Argument is
+	 * the last sequence number the client has seen, or -1 if it has none. The
+	 * server replies with the {@link #boardsDelta} events that the client has
+	 * missed if it still has them, otherwise with a {@link #boardsSnapshot},
+	 * and then subscribes the client to {@link #boardsTopic}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String boardsResume = "BOARDS_RESUME";
+
+	/**
+	 * Emitted by the server with every board currently being shared.
+	 * Argument has format "seq%host:port:boardid%host:port:boardid...",
+	 * where seq is the sequence number of the last change included.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String boardsSnapshot = "BOARDS_SNAPSHOT";
+
+	/**
+	 * Emitted by the server to subscribers of {@link #boardsTopic} for every
+	 * change to the shared boards, in sequence order. Argument has format
+	 * "seq%+host:port:boardid" when a board is shared and
+	 * "seq%-host:port:boardid" when it is no longer shared.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String boardsDelta = "BOARDS_DELTA";
+
+	/**
+	 * Emitted by the server to a newly connected client when the server is
+	 * relaying shared boards. The client should then connect to the server,
+	 * rather than to the board's peer, to get and listen to a remote board,
+	 * using the same events as it would with the peer. Argument is unused.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String relayingBoards = "RELAYING_BOARDS";
+
+	/**
+	 * Emitted by a client to subscribe to a topic. Argument is the topic,
+	 * one of {@link #boardsTopic}, {@link #hostTopic(String)} or
+	 * {@link #boardTopic(String)}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String subscribe = "SUBSCRIBE";
+
+	/**
+	 * Emitted by a client to unsubscribe from a topic. Argument is the topic.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String unsubscribe = "UNSUBSCRIBE";
+
+	/**
+	 * Topic for the global list of shared boards, its subscribers are sent
+	 * every {@link #boardsDelta}.
+	 */
+	public static final String boardsTopic = "boards";
+
+	/**
+	 * Subscriptions of the connected clients.
+	 */
+	private static final SubscriptionRegistry subscriptions = new SubscriptionRegistry();
+
+	/**
+	 * The boards currently being shared. Changes are published while
+	 * holding its lock so that every client gets them in sequence order.
+	 */
+	private static final SharedBoardRegistry boards = new SharedBoardRegistry();
+	
+	/**
+	 * Shared board name to its relay, when in relay mode.
+	 */
+	private static final Map<String,BoardRelay> relays = new ConcurrentHashMap<>();
+
+	/**
+	 * Whether shared boards are relayed through this server.
+	 */
+	private static boolean relay = false;
+	
+	/**
+	 * The server manager.
+	 */
+	private static ServerManager serverManager;
 	
 	/**
 	 * Default port number.
 	 */
 	private static int port = Utils.indexServerPort;
 	
-	
+
+	/**
+	 *
+	 * @param host of the form "host:port"
+	 * @return topic for boards shared by the given peer
+	 */
+	public static String hostTopic(String host) {
+		return "host:"+host;
+	}
+
+	/**
+	 *
+	 * @param board of the form "host:port:boardid"
+	 * @return topic for the given board
+	 */
+	public static String boardTopic(String board) {
+		return "board:"+board;
+	}
+
+	/**
+	 * Validate a "host:port:boardid" argument, record the change and publish
+	 * it to the subscribers of the global, host and board topics. Only the
+	 * client that shared a board may unshare it, and a board already shared
+	 * by another client can't be shared again. The error goes back to the
+	 * sending client only.
+	 * @param endpoint the sending client
+	 * @param board
+	 * @param share true if the board is being shared, false if unshared
+	 */
+	private static void shareBoard(Endpoint endpoint,String board,boolean share) {
+		if(board.split(":",3).length != 3 || board.contains("%")) {
+			endpoint.emit(error, board);
+			return;
+		}
+		String client = endpoint.getOtherEndpointId();
+		synchronized(boards) {
+			String owner = boards.getOwner(board);
+			if(owner!=null && !owner.equals(client)) {
+				log.warning(client+" tried to "+(share?"share":"unshare")+" board "+board
+						+" shared by "+owner);
+				endpoint.emit(error, board);
+				return;
+			}
+			String delta = share?boards.share(board, client):boards.unshare(board, client);
+			if(delta!=null) publishDelta(delta);
+		}
+	}
+
+	/**
+	 * Publish a change to the shared boards. Must be called while holding
+	 * the lock on {@link #boards}.
+	 * @param delta
+	 */
+	private static void publishDelta(String delta) {
+		String board = SharedBoardRegistry.getDeltaBoard(delta);
+		if(relay) updateRelay(board,SharedBoardRegistry.isShare(delta));
+		String[] parts = board.split(":",3);
+		int sent = subscriptions.publish(List.of(boardsTopic), boardsDelta, delta);
+		sent += subscriptions.publish(List.of(hostTopic(parts[0]+":"+parts[1]),boardTopic(board)),
+				SharedBoardRegistry.isShare(delta)?sharingBoard:unsharingBoard, board);
+		log.info("delta "+delta+" sent to "+sent+" clients");
+	}
+
+	/**
+	 * Start relaying a board that is now shared, or stop relaying one
+	 * that is no longer shared.
+	 * @param board
+	 * @param share
+	 */
+	private static void updateRelay(String board,boolean share) {
+		if(share) {
+			BoardRelay boardRelay = new BoardRelay(board,subscriptions,serverManager.shardFor(board));
+			try {
+				boardRelay.start();
+				relays.put(board, boardRelay);
+			} catch (NumberFormatException | UnknownHostException | InterruptedException e) {
+				log.warning("could not relay board "+board+": "+e.getMessage());
+			}
+		} else {
+			BoardRelay boardRelay = relays.remove(board);
+			if(boardRelay!=null) boardRelay.stop();
+		}
+	}
+
+	/**
+	 * Handle the events that a board listener would otherwise send to the
+	 * board's peer. With worker loops, a listener is moved to the loop of
+	 * the board it asks for, along with the board's other listeners.
+	 * @param endpoint
+	 */
+	private static void relayTo(Endpoint endpoint) {
+		endpoint.on(WhiteboardApp.getBoardData, (args)->{
+			String board = (String) args[0];
+			serverManager.assignShard(endpoint, board);
+			BoardRelay boardRelay = relays.get(board);
+			if(boardRelay==null) {
+				endpoint.emit(WhiteboardApp.boardError, board);
+			} else {
+				boardRelay.getBoardData(endpoint);
+			}
+		}).on(WhiteboardApp.listenBoard, (args)->{
+			BoardRelay boardRelay = relays.get((String) args[0]);
+			if(boardRelay!=null) boardRelay.listen(endpoint);
+		}).on(WhiteboardApp.resumeBoard, (args)->{
+			String data = (String) args[0];
+			String board = WhiteboardApp.getBoardName(data);
+			serverManager.assignShard(endpoint, board);
+			BoardRelay boardRelay = relays.get(board);
+			if(boardRelay==null) {
+				endpoint.emit(WhiteboardApp.boardError, board);
+				return;
+			}
+			String[] parts = data.split("%",3);
+			boardRelay.resume(endpoint, parts.length>2?parts[2]:"");
+		}).on(WhiteboardApp.unlistenBoard, (args)->{
+			BoardRelay boardRelay = relays.get((String) args[0]);
+			if(boardRelay!=null) boardRelay.unlisten(endpoint);
+		}).on(WhiteboardApp.boardPathUpdate, (args)->{
+			forwardToOwner(endpoint,WhiteboardApp.boardPathUpdate,(String) args[0]);
+		}).on(WhiteboardApp.boardUndoUpdate, (args)->{
+			forwardToOwner(endpoint,WhiteboardApp.boardUndoUpdate,(String) args[0]);
+		}).on(WhiteboardApp.boardClearUpdate, (args)->{
+			forwardToOwner(endpoint,WhiteboardApp.boardClearUpdate,(String) args[0]);
+		});
+		endpoint.emit(relayingBoards, "");
+	}
+
+	private static void forwardToOwner(Endpoint endpoint,String eventName,String data) {
+		String board = WhiteboardApp.getBoardName(data);
+		BoardRelay boardRelay = relays.get(board);
+		if(boardRelay==null || !boardRelay.forward(eventName, data)) {
+			endpoint.emit(WhiteboardApp.boardError, board);
+		}
+	}
+
+	/**
+	 * Bring a client up to date with the shared boards and subscribe it
+	 * to further changes.
+	 * @param endpoint
+	 * @param lastSeq the last sequence number the client has seen
+	 */
+	private static void resumeBoards(Endpoint endpoint,long lastSeq) {
+		synchronized(boards) {
+			List<String> missed = boards.deltasSince(lastSeq);
+			if(missed==null) {
+				endpoint.emit(boardsSnapshot, boards.snapshot());
+			} else {
+				for(String delta : missed) {
+					endpoint.emit(boardsDelta, delta);
+				}
+			}
+			subscriptions.subscribe(endpoint, boardsTopic);
+		}
+	}
+
+	/**
+	 * A client's session has ended, so stop sending to it and unshare the
+	 * boards that it shared. If the session ended in error then the boards
+	 * stay shared for as long as the client can resume the session.
+	 * @param endpoint
+	 * @param resumeTimeout how long the session can be resumed for, or 0
+	 */
+	private static void sessionEnded(Endpoint endpoint,int resumeTimeout) {
+		subscriptions.unsubscribeAll(endpoint);
+		relays.values().forEach((boardRelay)->boardRelay.forget(endpoint));
+		if(resumeTimeout>0) {
+			Utils.getInstance().setTimeout(()->{
+				unshareAll(endpoint.getOtherEndpointId());
+			}, resumeTimeout);
+		} else {
+			unshareAll(endpoint.getOtherEndpointId());
+		}
+	}
+
+	private static void unshareAll(String owner) {
+		synchronized(boards) {
+			for(String delta : boards.unshareAll(owner)) {
+				publishDelta(delta);
+			}
+		}
+	}
+
+	/**
+	 * A client has resumed its session on a new connection, so it keeps
+	 * the boards that it shared.
+	 * @param endpoint the new endpoint
+	 * @param previous the endpoint of the previous session
+	 */
+	private static void sessionResumed(Endpoint endpoint,Endpoint previous) {
+		int count = boards.transfer(previous.getOtherEndpointId(), endpoint.getOtherEndpointId());
+		log.info("Client resumed session with "+count+" shared boards: "+endpoint.getOtherEndpointId());
+	}
 	
 	private static void help(Options options){
 		String header = "PB Whiteboard Server for Unimelb COMP90015\n\n";
@@ -93,6 +386,24 @@ public class WhiteboardServer {
 		System.exit(-1);
 	}
 	
+	/**
+	 * 
+	 * @param cmd
+	 * @param options
+	 * @param option
+	 * @return the value of a numeric option, 0 if it isn't given
+	 */
+	private static double number(CommandLine cmd,Options options,String option) {
+		if(!cmd.hasOption(option)) return 0;
+		try{
+			return Double.parseDouble(cmd.getOptionValue(option));
+		} catch (NumberFormatException e){
+			System.out.println("-"+option+" requires a number, parsed: "+cmd.getOptionValue(option));
+			help(options);
+			return 0;
+		}
+	}
+	
 	public static void main( String[] args ) throws IOException, InterruptedException
     {
     	// set a nice log format
@@ -103,6 +414,16 @@ public class WhiteboardServer {
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
         options.addOption("password",true,"password for server");
+        options.addOption("relay",false,"relay shared boards to their listeners");
+        options.addOption("shards",true,"number of worker loops to handle clients on, an integer");
+        options.addOption("acceptors",true,"number of threads accepting connections, an integer");
+        options.addOption("backlog",true,"length of the queue of connections waiting to be accepted, an integer");
+        options.addOption("reuseport",false,"give each acceptor its own server socket, where supported");
+        options.addOption("msgrate",true,"messages per second each client may send, a number");
+        options.addOption("byterate",true,"characters per second each client may send, a number");
+        options.addOption("maxload",true,"load average per processor above which new clients are turned away, a number");
+        options.addOption("maxqueue",true,"events waiting on the worker loops above which new clients are turned away, an integer");
+        options.addOption("shedqueue",true,"events waiting on the worker loops above which clients are shed, an integer");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -122,8 +443,45 @@ public class WhiteboardServer {
 			}
         }
 
+        relay = cmd.hasOption("relay");
+        
+        int shards = 0;
+        if(cmd.hasOption("shards")){
+        	try{
+        		shards = Integer.parseInt(cmd.getOptionValue("shards"));
+			} catch (NumberFormatException e){
+				System.out.println("-shards requires a number, parsed: "+cmd.getOptionValue("shards"));
+				help(options);
+			}
+        }
+        
+        int acceptors = 1;
+        if(cmd.hasOption("acceptors")){
+        	try{
+        		acceptors = Integer.parseInt(cmd.getOptionValue("acceptors"));
+			} catch (NumberFormatException e){
+				System.out.println("-acceptors requires a number, parsed: "+cmd.getOptionValue("acceptors"));
+				help(options);
+			}
+        }
+        
+        int backlog = IOThread.defaultBacklog;
+        if(cmd.hasOption("backlog")){
+        	try{
+        		backlog = Integer.parseInt(cmd.getOptionValue("backlog"));
+			} catch (NumberFormatException e){
+				System.out.println("-backlog requires a number, parsed: "+cmd.getOptionValue("backlog"));
+				help(options);
+			}
+        }
+        
+        double msgRate = number(cmd,options,"msgrate");
+        double byteRate = number(cmd,options,"byterate");
+        double maxLoad = number(cmd,options,"maxload");
+        int maxQueue = (int) number(cmd,options,"maxqueue");
+        int shedQueue = (int) number(cmd,options,"shedqueue");
+
         // create a server manager and setup event handlers
-        ServerManager serverManager;
         
         if(cmd.hasOption("password")) {
         	serverManager = new ServerManager(port,cmd.getOptionValue("password"));
@@ -131,51 +489,45 @@ public class WhiteboardServer {
         	serverManager = new ServerManager(port);
         }
         
-        /**
-        * TODO: Put some server related code here.
-        */
-        ArrayList<Endpoint> endpointLst = new ArrayList<Endpoint>();
+        if(shards>0) serverManager.setShards(shards);
+        serverManager.setAcceptors(acceptors, backlog, cmd.hasOption("reuseport"));
+        serverManager.setRateLimits(msgRate, byteRate);
+        serverManager.setAdmissionControl(maxLoad, maxQueue, shedQueue);
         
         serverManager.on(ServerManager.sessionStarted,(eventArgs)->{
         	Endpoint endpoint = (Endpoint)eventArgs[0];
-        	endpointLst.add(endpoint);
         	log.info("Client session started: "+endpoint.getOtherEndpointId());
         	endpoint.on(shareBoard, (eventArgs1) ->{
         		String share = (String) eventArgs1[0];
         		log.info("Board begins to share:" + share);
-        		String[] parts = share.split(":",3);
-        		if(parts.length != 3) {
-        			for (Endpoint ep : endpointLst) {
-    					ep.emit(error, share);
-        			}
-        		} else {
-        			//endpoint.emit(sharingBoard,share);
-        			for (Endpoint ep : endpointLst) {
-    					ep.emit(sharingBoard, share);
-    				}
-        		}
-        		
+        		shareBoard(endpoint,share,true);
         	}).on(unshareBoard, (eventArgs1) ->{
         		String unshare = (String) eventArgs1[0];
         		log.info("Board ends up sharing:" + unshare);
-        		String[] parts = unshare.split(":",3);
-        		if(parts.length != 3) {
-        			for (Endpoint ep : endpointLst) {
-    					ep.emit(error, unshare);
-        			}
-        		} else {
-        			for (Endpoint ep : endpointLst) {
-    					ep.emit(unsharingBoard, unshare);
-        			}
+        		shareBoard(endpoint,unshare,false);
+        	}).on(boardsResume, (eventArgs1) ->{
+        		String lastSeq = (String) eventArgs1[0];
+        		try {
+        			resumeBoards(endpoint,Long.parseLong(lastSeq));
+        		} catch (NumberFormatException e) {
+        			endpoint.emit(error, lastSeq);
         		}
+        	}).on(subscribe, (eventArgs1) ->{
+        		subscriptions.subscribe(endpoint, (String) eventArgs1[0]);
+        	}).on(unsubscribe, (eventArgs1) ->{
+        		subscriptions.unsubscribe(endpoint, (String) eventArgs1[0]);
         	});
-        	
+        	if(relay) relayTo(endpoint);
         }).on(ServerManager.sessionStopped,(eventArgs)->{
         	Endpoint endpoint = (Endpoint)eventArgs[0];
+        	sessionEnded(endpoint,0);
         	log.info("Client session ended: "+endpoint.getOtherEndpointId());
         }).on(ServerManager.sessionError, (eventArgs)->{
         	Endpoint endpoint = (Endpoint)eventArgs[0];
+        	sessionEnded(endpoint,serverManager.getResumeTimeout());
         	log.warning("Client session ended in error: "+endpoint.getOtherEndpointId());
+        }).on(ServerManager.sessionResumed, (eventArgs)->{
+        	sessionResumed((Endpoint)eventArgs[0],(Endpoint)eventArgs[1]);
         }).on(IOThread.ioThread, (eventArgs)->{
         	String peerport = (String) eventArgs[0];
         	// we don't need this info, but let's log it
@@ -0,0 +1,343 @@
+package pb.app;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+import pb.managers.ClientManager;
+import pb.managers.SubscriptionRegistry;
+import pb.managers.endpoint.Endpoint;
+
+/**
+ * Relays a shared board from its owning peer to any number of listeners,
+ * for the {@link pb.WhiteboardServer} in relay mode. The relay connects to
+ * the owner once, as an ordinary listener of the board, and keeps a copy
+ * of the board that the owner's updates are merged into. Listeners connect
+ * to the server instead of the owner: their requests for the board data
+ * are answered from the cache, their updates are forwarded to the owner,
+ * and every update from the owner is sent to all of them, serialised once.
+ * The owner therefore only ever sends each update to the relay, however
+ * many listeners there are. Updates may be sent to the listeners on a
+ * given worker loop, e.g. the one that the listeners of the board are
+ * handled on.
+ *
+ */
+public class BoardRelay {
+	private static Logger log = Logger.getLogger(BoardRelay.class.getName());
+
+	/**
+	 * The board being relayed, host:port:boardid.
+	 */
+	private final String board;
+
+	/**
+	 * Subscriptions that the listeners are kept in, under {@link #topic}.
+	 */
+	private final SubscriptionRegistry subscriptions;
+
+	/**
+	 * Topic of the listeners of this board.
+	 */
+	private final String topic;
+
+	/**
+	 * Client connection to the owner.
+	 */
+	private ClientManager clientManager;
+
+	/**
+	 * Endpoint to the owner, null when not connected.
+	 */
+	private volatile Endpoint owner=null;
+
+	/**
+	 * Copy of the board, or null if the board data has not been
+	 * received yet.
+	 */
+	private Whiteboard copy=null;
+
+	/**
+	 * Listeners that asked for the board data before it was received. They
+	 * get {@link WhiteboardApp#boardError} instead if the owner can't be
+	 * reached.
+	 */
+	private final List<Endpoint> pending = new ArrayList<>();
+
+	/**
+	 * Worker loop that updates are sent to the listeners on, or null to
+	 * send them on the thread they are received on.
+	 */
+	private final Executor fanout;
+
+	/**
+	 * stopped flag, also set when the client manager gives up connecting
+	 * to the owner
+	 */
+	private volatile boolean stopped=false;
+
+	/**
+	 * Initialise the relay.
+	 * @param board host:port:boardid
+	 * @param subscriptions to keep the listeners in
+	 */
+	public BoardRelay(String board,SubscriptionRegistry subscriptions) {
+		this(board,subscriptions,null);
+	}
+
+	/**
+	 * Initialise the relay, sending updates to the listeners on a
+	 * worker loop.
+	 * @param board host:port:boardid
+	 * @param subscriptions to keep the listeners in
+	 * @param fanout worker loop to send updates on, or null
+	 */
+	public BoardRelay(String board,SubscriptionRegistry subscriptions,Executor fanout) {
+		this.board=board;
+		this.subscriptions=subscriptions;
+		this.topic="relay:"+board;
+		this.fanout=fanout;
+	}
+
+	/**
+	 * Connect to the owner of the board, fetch the board data and listen
+	 * for updates.
+	 * @throws UnknownHostException
+	 * @throws InterruptedException
+	 */
+	public void start() throws UnknownHostException, InterruptedException {
+		clientManager = new ClientManager(WhiteboardApp.getIP(board),WhiteboardApp.getPort(board));
+		clientManager.on(ClientManager.sessionStarted, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			if(stopped) {
+				clientManager.shutdown();
+				return;
+			}
+			owner=endpoint;
+			log.info("relaying board "+board+" from "+endpoint.getOtherEndpointId());
+			endpoint.on(WhiteboardApp.boardData, (args1)->{
+				String boardData = (String) args1[0];
+				List<Endpoint> waiting;
+				synchronized(this) {
+					if(copy!=null) {
+						// the changes missed while reconnecting, which the listeners lack too
+						waiting = null;
+					} else {
+						cache(boardData);
+						waiting = new ArrayList<Endpoint>(pending);
+						pending.clear();
+					}
+				}
+				if(waiting==null) {
+					update(WhiteboardApp.boardPathAccepted,boardData);
+				} else {
+					Endpoint.broadcast(waiting, WhiteboardApp.boardData, getData());
+					endpoint.emit(WhiteboardApp.listenBoard, board);
+				}
+			}).on(WhiteboardApp.boardSummary, (args1)->{
+				String changes;
+				synchronized(this) {
+					changes = copy==null?null:copy.changesSince(WhiteboardApp.getBoardPaths((String) args1[0]));
+				}
+				if(changes!=null) forward(WhiteboardApp.boardPathUpdate, changes);
+			}).on(WhiteboardApp.boardPathUpdate, (args1)->{
+				update(WhiteboardApp.boardPathUpdate,(String) args1[0]);
+			}).on(WhiteboardApp.boardUndoUpdate, (args1)->{
+				update(WhiteboardApp.boardUndoUpdate,(String) args1[0]);
+			}).on(WhiteboardApp.boardClearUpdate, (args1)->{
+				update(WhiteboardApp.boardClearUpdate,(String) args1[0]);
+			}).on(WhiteboardApp.boardPathAccepted, (args1)->{
+				update(WhiteboardApp.boardPathAccepted,(String) args1[0]);
+			}).on(WhiteboardApp.boardUndoAccepted, (args1)->{
+				update(WhiteboardApp.boardUndoAccepted,(String) args1[0]);
+			}).on(WhiteboardApp.boardClearAccepted, (args1)->{
+				update(WhiteboardApp.boardClearAccepted,(String) args1[0]);
+			}).on(WhiteboardApp.boardDeleted, (args1)->{
+				subscriptions.publish(List.of(topic), WhiteboardApp.boardDeleted, board);
+				stop();
+			});
+			String resumeData;
+			synchronized(this) {
+				resumeData = copy==null?null:copy.getSummary();
+			}
+			if(resumeData==null) {
+				endpoint.emit(WhiteboardApp.getBoardData, board);
+			} else {
+				// reconnected, so only exchange the changes that either side lacks
+				endpoint.emit(WhiteboardApp.resumeBoard, resumeData);
+			}
+		}).on(ClientManager.sessionStopped, (args)->{
+			owner=null;
+		}).on(ClientManager.sessionError, (args)->{
+			owner=null;
+			log.warning("lost connection to the owner of board "+board);
+			failPending();
+		}).on(ClientManager.clientTerminated, (args)->{
+			owner=null;
+			stopped=true;
+			log.warning("stopped relaying board "+board);
+			failPending();
+		});
+		clientManager.start();
+	}
+
+	/**
+	 * Stop relaying the board and disconnect from the owner.
+	 */
+	public void stop() {
+		stopped=true;
+		failPending();
+		Endpoint endpoint = owner;
+		if(endpoint!=null) {
+			endpoint.emit(WhiteboardApp.unlistenBoard, board);
+			clientManager.shutdown();
+		} else if(clientManager!=null) {
+			clientManager.interrupt();
+		}
+	}
+
+	/**
+	 * Send the board data to a listener, as soon as it is available, or
+	 * an error if the relay has stopped before it was received.
+	 * @param endpoint
+	 */
+	public void getBoardData(Endpoint endpoint) {
+		String boardData;
+		synchronized(this) {
+			if(copy==null && !stopped) {
+				pending.add(endpoint);
+				return;
+			}
+			boardData=copy==null?null:copy.toString();
+		}
+		if(boardData==null) {
+			endpoint.emit(WhiteboardApp.boardError, board);
+		} else {
+			endpoint.emit(WhiteboardApp.boardData, boardData);
+		}
+	}
+
+	/**
+	 * Forget a listener whose session has ended.
+	 * @param endpoint
+	 */
+	public synchronized void forget(Endpoint endpoint) {
+		pending.remove(endpoint);
+	}
+
+	/**
+	 * Send an error to the listeners waiting for the board data, since the
+	 * owner can't be reached, at least for now.
+	 */
+	private void failPending() {
+		List<Endpoint> waiting;
+		synchronized(this) {
+			waiting = new ArrayList<Endpoint>(pending);
+			pending.clear();
+		}
+		Endpoint.broadcast(waiting, WhiteboardApp.boardError, board);
+	}
+
+	/**
+	 * Send updates of the board to a listener.
+	 * @param endpoint
+	 */
+	public void listen(Endpoint endpoint) {
+		subscriptions.subscribe(endpoint, topic);
+	}
+
+	/**
+	 * Send updates of the board to a listener that has reconnected, along
+	 * with the changes that it lacks, and tell it what the relay has seen
+	 * so that it can send the changes that the relay lacks.
+	 * @param endpoint
+	 * @param summary SEEN%REMOVED, as given by {@link Whiteboard#getSummary()}
+	 * after host:port:boardid%version
+	 */
+	public void resume(Endpoint endpoint,String summary) {
+		listen(endpoint);
+		String changes;
+		String relaySummary;
+		synchronized(this) {
+			if(copy==null) {
+				changes = null;
+				relaySummary = null;
+			} else {
+				changes = copy.changesSince(summary);
+				relaySummary = copy.getSummary();
+			}
+		}
+		if(relaySummary==null) {
+			getBoardData(endpoint);
+			return;
+		}
+		if(changes!=null) endpoint.emit(WhiteboardApp.boardData, changes);
+		endpoint.emit(WhiteboardApp.boardSummary, relaySummary);
+	}
+
+	/**
+	 * Stop sending updates of the board to a listener.
+	 * @param endpoint
+	 */
+	public void unlisten(Endpoint endpoint) {
+		subscriptions.unsubscribe(endpoint, topic);
+	}
+
+	/**
+	 * Forward an update from a listener to the owner, which will send it
+	 * back to the relay once it has been accepted.
+	 * @param eventName
+	 * @param boardData
+	 * @return true if the owner is connected
+	 */
+	public boolean forward(String eventName,String boardData) {
+		Endpoint endpoint = owner;
+		if(endpoint==null) return false;
+		// not emit, which would also call our own handler for the event
+		return Endpoint.broadcast(List.of(endpoint), eventName, boardData)==1;
+	}
+
+	/**
+	 *
+	 * @return the latest board data, or null if not yet received
+	 */
+	public synchronized String getData() {
+		return copy==null?null:copy.toString();
+	}
+
+	/**
+	 * Merge an update from the owner into the copy and send it to the
+	 * listeners, unless it has been seen already.
+	 * @param eventName
+	 * @param boardData
+	 */
+	private void update(String eventName,String boardData) {
+		if(fanout==null) {
+			publish(eventName,boardData);
+		} else {
+			// the loop runs tasks in order, so updates stay in version order
+			fanout.execute(()->publish(eventName,boardData));
+		}
+	}
+
+	private void publish(String eventName,String boardData) {
+		synchronized(this) {
+			if(!cache(boardData)) return;
+			// publish in version order
+			subscriptions.publish(List.of(topic), eventName, boardData);
+		}
+	}
+
+	private boolean cache(String boardData) {
+		if(boardData.indexOf('%')<0) {
+			log.warning("malformed board data for "+board);
+			return false;
+		}
+		if(copy==null) copy = new Whiteboard(board,true);
+		long version = copy.getVersion();
+		List<WhiteboardPath> added = copy.merge(WhiteboardApp.getBoardData(boardData));
+		// a path that arrives out of order changes the board but not its version
+		return copy.getVersion()>version || added==null || !added.isEmpty();
+	}
+}
@@ -0,0 +1,117 @@
+package pb.app;
+
+import java.util.List;
+
+/**
+ * Compact encoding of the points of a path. The first point is written as
+ * is and every other point as the difference from the point before it,
+ * each coordinate as a zigzag varint, i.e. small differences of either sign
+ * take a single byte. The bytes are written as URL safe Base64 without
+ * padding, so that the encoding can be part of the board data strings, and
+ * contains none of the separators that they use. Both directions work
+ * straight from and to the characters, through lookup tables, without
+ * building any intermediate string or array.
+ *
+ * @see {@link WhiteboardPath#toString(boolean)}
+ *
+ */
+final class PathCodec {
+
+	/**
+	 * The 64 characters of URL safe Base64.
+	 */
+	private static final char[] alphabet =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+	/**
+	 * Value of each character, or -1 if it isn't in the alphabet.
+	 */
+	private static final int[] values = new int[128];
+
+	static {
+		for(int i=0;i<values.length;i++) values[i]=-1;
+		for(int i=0;i<alphabet.length;i++) values[alphabet[i]]=i;
+	}
+
+	private PathCodec() {
+	}
+
+	/**
+	 * Append the encoding of points.
+	 * @param points
+	 * @param sb
+	 */
+	static void encode(List<WhiteboardPoint> points,StringBuilder sb) {
+		// bits not yet written as a character, and how many
+		long acc=0;
+		int bits=0;
+		int x=0, y=0;
+		for(int i=0;i<points.size();i++) {
+			WhiteboardPoint point=points.get(i);
+			for(int c=0;c<2;c++) {
+				int delta = c==0?point.x-x:point.y-y;
+				// zigzag, so that small negative numbers are small too
+				long value = ((delta<<1)^(delta>>31)) & 0xffffffffL;
+				do {
+					int b = (int)(value & 0x7f);
+					value >>>= 7;
+					if(value!=0) b|=0x80;
+					acc=(acc<<8)|b;
+					bits+=8;
+					while(bits>=6) {
+						bits-=6;
+						sb.append(alphabet[(int)(acc>>>bits) & 0x3f]);
+					}
+				} while(value!=0);
+			}
+			x=point.x;
+			y=point.y;
+		}
+		if(bits>0) sb.append(alphabet[(int)(acc<<(6-bits)) & 0x3f]);
+	}
+
+	/**
+	 * Decode points and add them to a list.
+	 * @param data
+	 * @param from index in data of the first character of the encoding,
+	 * which runs to the end of data
+	 * @param points to add the points to
+	 * @return false if the encoding is malformed, in which case the points
+	 * decoded so far have been added
+	 */
+	static boolean decode(String data,int from,List<WhiteboardPoint> points) {
+		long acc=0;
+		int bits=0;
+		long value=0;
+		int shift=0;
+		int x=0, y=0;
+		boolean haveX=false;
+		for(int i=from;i<data.length();i++) {
+			char ch=data.charAt(i);
+			int v = ch<values.length?values[ch]:-1;
+			if(v<0) return false;
+			acc=(acc<<6)|v;
+			bits+=6;
+			if(bits<8) continue;
+			bits-=8;
+			int b=(int)(acc>>>bits) & 0xff;
+			if(shift>=35) return false;
+			value|=(long)(b & 0x7f)<<shift;
+			shift+=7;
+			if((b & 0x80)!=0) continue;
+			int delta=(int)(value>>>1)^-(int)(value & 1);
+			value=0;
+			shift=0;
+			if(!haveX) {
+				x+=delta;
+				haveX=true;
+			} else {
+				y+=delta;
+				haveX=false;
+				points.add(new WhiteboardPoint(x,y));
+			}
+		}
+		// the last character may carry a few bits of padding, but no more
+		return !haveX && shift==0;
+	}
+}
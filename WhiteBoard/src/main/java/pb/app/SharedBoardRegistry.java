@@ -0,0 +1,230 @@
+package pb.app;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The set of boards currently being shared, kept by the
+ * {@link pb.WhiteboardServer}. Every change is given the next sequence
+ * number and recorded as a delta, "seq%+host:port:boardid" for a share and
+ * "seq%-host:port:boardid" for an unshare. A client is sent the whole set as
+ * a snapshot, "seq%board%board...", and from then on only deltas. A client
+ * that reconnects can ask for the deltas after the last sequence number it
+ * saw, which are kept in a bounded log; if they are no longer in the log
+ * then it gets a snapshot instead.
+ * <br/>
+ * Methods are synchronized on the registry, so a caller can also
+ * synchronize on it to send a change to clients in sequence order.
+ *
+ */
+public class SharedBoardRegistry {
+
+	/**
+	 * Default number of deltas kept for clients that resume.
+	 */
+	public static final int defaultMaxLog = 1024;
+
+	/**
+	 * Shared board name to the id of the client that shared it, in the
+	 * order that they were shared.
+	 */
+	private final Map<String,String> boards = new LinkedHashMap<>();
+
+	/**
+	 * The most recent deltas, oldest first.
+	 */
+	private final ArrayDeque<String> deltas = new ArrayDeque<>();
+
+	/**
+	 * Maximum number of deltas kept.
+	 */
+	private final int maxLog;
+
+	/**
+	 * Sequence number of the last change. It starts at the time the registry
+	 * was created, so that sequence numbers from before a server restart are
+	 * too old to be resumed from.
+	 */
+	private long seq=System.currentTimeMillis();
+
+	/**
+	 * Initialise the registry with the default log size.
+	 */
+	public SharedBoardRegistry() {
+		this(defaultMaxLog);
+	}
+
+	/**
+	 * Initialise the registry.
+	 * @param maxLog maximum number of deltas kept for clients that resume
+	 */
+	public SharedBoardRegistry(int maxLog) {
+		this.maxLog=maxLog;
+	}
+
+	/**
+	 * Record that a board is being shared.
+	 * @param board host:port:boardid
+	 * @param owner id of the client sharing the board
+	 * @return the delta, or null if the board was already shared, in which
+	 * case it keeps its owner
+	 */
+	public synchronized String share(String board,String owner) {
+		if(boards.putIfAbsent(board, owner)!=null) return null;
+		return record("+"+board);
+	}
+
+	/**
+	 * Record that a board is no longer being shared.
+	 * @param board host:port:boardid
+	 * @param owner id of the client unsharing the board
+	 * @return the delta, or null if the board was not shared by the owner
+	 */
+	public synchronized String unshare(String board,String owner) {
+		if(!boards.remove(board, owner)) return null;
+		return record("-"+board);
+	}
+
+	/**
+	 *
+	 * @param board host:port:boardid
+	 * @return id of the client that shared the board, or null if it is not
+	 * shared
+	 */
+	public synchronized String getOwner(String board) {
+		return boards.get(board);
+	}
+
+	/**
+	 * Unshare all of the boards shared by a client, e.g. when its
+	 * session has ended.
+	 * @param owner
+	 * @return the deltas, in sequence order
+	 */
+	public synchronized List<String> unshareAll(String owner) {
+		List<String> result = new ArrayList<>();
+		Iterator<Map.Entry<String,String>> it = boards.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<String,String> entry = it.next();
+			if(entry.getValue().equals(owner)) {
+				it.remove();
+				result.add(record("-"+entry.getKey()));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Give the boards shared by one client to another, e.g. when a client
+	 * has resumed its session on a new connection. The set of shared boards
+	 * does not change, so no delta is recorded.
+	 * @param from id of the client that shared the boards
+	 * @param to id of the client to give them to
+	 * @return the number of boards given
+	 */
+	public synchronized int transfer(String from,String to) {
+		int count=0;
+		for(Map.Entry<String,String> entry : boards.entrySet()) {
+			if(entry.getValue().equals(from)) {
+				entry.setValue(to);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 *
+	 * @return the current set of shared boards, "seq%board%board..."
+	 */
+	public synchronized String snapshot() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(seq);
+		for(String board : boards.keySet()) {
+			sb.append('%').append(board);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 *
+	 * @param lastSeq the last sequence number seen by the client
+	 * @return the deltas after lastSeq in sequence order, or null if they
+	 * are no longer in the log or lastSeq is not valid
+	 */
+	public synchronized List<String> deltasSince(long lastSeq) {
+		if(lastSeq>seq) return null;
+		long missed = seq-lastSeq;
+		if(missed>deltas.size()) return null;
+		List<String> result = new ArrayList<>((int)missed);
+		Iterator<String> it = deltas.descendingIterator();
+		for(long i=0;i<missed;i++) result.add(it.next());
+		Collections.reverse(result);
+		return result;
+	}
+
+	/**
+	 *
+	 * @return the sequence number of the last change
+	 */
+	public synchronized long getSeq() {
+		return seq;
+	}
+
+	/*
+	 * Methods to read the fields of snapshots and deltas.
+	 */
+
+	/**
+	 *
+	 * @param data a snapshot or a delta
+	 * @return the sequence number
+	 */
+	public static long getSeq(String data) {
+		return Long.parseLong(data.split("%",2)[0]);
+	}
+
+	/**
+	 *
+	 * @param snapshot seq%board%board...
+	 * @return the boards in the snapshot
+	 */
+	public static List<String> getSnapshotBoards(String snapshot) {
+		String[] parts = snapshot.split("%");
+		List<String> result = new ArrayList<>(parts.length);
+		for(int i=1;i<parts.length;i++) {
+			if(parts[i].length()>0) result.add(parts[i]);
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 * @param delta seq%+board or seq%-board
+	 * @return true if the delta shares the board
+	 */
+	public static boolean isShare(String delta) {
+		return delta.split("%",2)[1].charAt(0)=='+';
+	}
+
+	/**
+	 *
+	 * @param delta seq%+board or seq%-board
+	 * @return the board
+	 */
+	public static String getDeltaBoard(String delta) {
+		return delta.split("%",2)[1].substring(1);
+	}
+
+	private String record(String change) {
+		String delta = (++seq)+"%"+change;
+		deltas.addLast(delta);
+		if(deltas.size()>maxLog) deltas.removeFirst();
+		return delta;
+	}
+}
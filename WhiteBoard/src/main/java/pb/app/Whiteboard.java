@@ -1,32 +1,112 @@
 package pb.app;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.logging.Logger;
 
 /**
  * Class to maintain whiteboard information. You should probably modify this
  * class.
+ * <br/>
+ * Copies of a board are merged rather than replaced, so that changes made
+ * at the same time on different peers are all kept. Each path is identified
+ * by the replica (peer) that drew it and a sequence number, and the paths
+ * are ordered by a logical clock and then by their ids, which is the same
+ * order on every copy. An undo removes a given path, and a clear removes
+ * every path that the clearing peer had seen, so paths drawn at the same
+ * time as a clear survive it. Merging is commutative and idempotent, so
+ * copies that have seen the same changes are the same, in whatever order
+ * the changes arrived. A change is sent as the part of the board that it
+ * changed, in the same format as the whole board. Copies that may have
+ * missed changes, e.g. while disconnected, exchange a summary of what they
+ * have seen and send each other the changes that the other lacks.
+ * <br/>
+ * A board can write its paths in the compact encoding of {@link PathCodec}.
+ * Either encoding can always be read, and a copy of a board starts writing
+ * the compact encoding once it reads a path in it, so the choice made for
+ * a board spreads to every copy of it.
  * @author aaron
  *
  */
 public class Whiteboard {
 	private static Logger log = Logger.getLogger(Whiteboard.class.getName());
-
+	
+	/**
+	 * Order of the paths on every copy of the board.
+	 */
+	private static final Comparator<WhiteboardPath> order =
+			Comparator.comparingLong(WhiteboardPath::getClock)
+			.thenComparing(WhiteboardPath::getReplica)
+			.thenComparingLong(WhiteboardPath::getSeq);
+	
+	/**
+	 * Distinguishes the replicas of this process from those of an earlier
+	 * process of the same peer, which may have drawn paths with the same
+	 * sequence numbers.
+	 */
+	private static final String nonce = Long.toString(System.currentTimeMillis(),36);
+	
 	/**
-	 * Paths for this whiteboard.
+	 * Paths for this whiteboard, in order.
 	 */
 	private ArrayList<WhiteboardPath> paths;
 	
+	/**
+	 * The paths by id.
+	 */
+	private HashMap<String,WhiteboardPath> pathIds;
+	
+	/**
+	 * Highest sequence number seen of the paths drawn by each replica.
+	 */
+	private HashMap<String,Long> latest;
+	
+	/**
+	 * Sequence number of each replica up to which its paths were cleared,
+	 * sorted so that every copy writes them in the same order.
+	 */
+	private TreeMap<String,Long> cleared;
+	
+	/**
+	 * Ids of paths that were undone, other than those that were cleared
+	 * since, sorted so that every copy writes them in the same order.
+	 */
+	private TreeSet<String> undone;
+	
+	/**
+	 * Highest logical clock seen.
+	 */
+	private long clock;
+	
 	/**
 	 * Name of the whiteboard, peer:port:boarid
 	 */
 	private String name;
 	
 	/**
-	 * The current version number of this whiteboard.
+	 * Id of the replica that paths drawn locally are added as.
+	 */
+	private final String replica;
+	
+	/**
+	 * The current version number of this whiteboard, which counts the
+	 * changes seen, so it never goes down and is the same on copies that
+	 * have seen the same changes.
 	 */
 	private long version;
 	
+	/**
+	 * Whether paths are written in the compact encoding.
+	 */
+	private boolean compactPaths=false;
+	
 	/**
 	 * Whether this whiteboard is being shared or not. Only relevant
 	 * for boards that are created locally.
@@ -45,59 +125,215 @@ public class Whiteboard {
 	 * the whiteboard is locally managed.
 	 */
 	public Whiteboard(String name,boolean remote) {
-		paths = new ArrayList<>();
+		this(name,remote,"standalone");
+	}
+	
+	/**
+	 * Initialize the whiteboard, for drawing on by a given peer.
+	 * @param remote is true if the whiteboard is remotely managed, otherwise
+	 * the whiteboard is locally managed.
+	 * @param peer the peer:port of the peer that draws on this copy, which
+	 * along with the start time of this process identifies its paths
+	 */
+	public Whiteboard(String name,boolean remote,String peer) {
 		this.name=name;
-		this.version=0;
 		this.remote=remote;
+		// the id is written in the board data, so keep to safe characters
+		this.replica=peer.replaceAll("[^A-Za-z0-9._-]", "_")+"."+nonce;
+		reset();
+	}
+	
+	private void reset() {
+		paths = new ArrayList<>();
+		pathIds = new HashMap<>();
+		latest = new HashMap<>();
+		cleared = new TreeMap<>();
+		undone = new TreeSet<>();
+		clock=0;
+		version=0;
 	}
 	
 	/**
 	 * Initialize a whiteboard from a string.
-	 * 
+	 *
 	 * @param name the board name, i.e. peer:port:boardid
-	 * @param data the board data, i.e. version%PATHS 
+	 * @param data the board data, i.e. version%REMOVED%PATHS
 	 */
-	public void whiteboardFromString(String name,String data) {
-		String[] parts = data.split("%");
-		paths = new ArrayList<>();
+	public synchronized void whiteboardFromString(String name,String data) {
 		this.name=name;
-		version=-1;
+		reset();
+		if(merge(data)==null && paths.isEmpty() && version==0) version=-1;
+	}
+	
+	/**
+	 * Merge a copy of the board, or a change to it, into this board.
+	 *
+	 * @param data the board data, i.e. version%REMOVED%PATHS, where REMOVED
+	 * is a comma separated list of replica!seq for paths that were undone
+	 * and replica!..seq for the paths of a replica that were cleared
+	 * @return the paths that were added to the end of the board, which is
+	 * empty if nothing changed, or null if the board has to be redrawn
+	 */
+	public synchronized List<WhiteboardPath> merge(String data) {
+		String[] parts = data.split("%");
 		if(parts.length<1) {
 			log.severe("whiteboard data is malformed: "+data);
-			return;
+			return null;
 		}
 		try {
-			version=Integer.parseInt(parts[0]);
+			Long.parseLong(parts[0]);
 		} catch (NumberFormatException e) {
 			log.severe("whiteboard data is malformed: "+data);
-			return;
+			return null;
+		}
+		boolean redraw=false;
+		int first=1;
+		if(parts.length>1 && parts[1].indexOf('>')<0 && parts[1].indexOf('~')<0) {
+			if(parts[1].length()>0 && remove(parts[1])) redraw=true;
+			first=2;
+		}
+		List<WhiteboardPath> added = new ArrayList<>();
+		for(int i=first;i<parts.length;i++) {
+			if(parts[i].length()==0) continue;
+			WhiteboardPath path = new WhiteboardPath(parts[i]);
+			if(path.getId()==null) {
+				log.warning("path without an id ignored: "+parts[i]);
+				continue;
+			}
+			if(path.isCompact()) compactPaths=true;
+			int index = add(path);
+			if(index<0) continue;
+			if(index==paths.size()-1) added.add(path);
+			else redraw=true;
+		}
+		updateVersion();
+		return redraw?null:added;
+	}
+	
+	/**
+	 * Summarise the changes seen, for another copy of the board to work out
+	 * which of its changes this copy lacks.
+	 *
+	 * @return "name%version%SEEN%REMOVED", where SEEN is a comma separated
+	 * list of replica!first-last for the ranges of sequence numbers of each
+	 * replica that have been seen, whether the paths are on the board or were
+	 * removed, and REMOVED is as for {@link #merge(String)}
+	 */
+	public synchronized String getSummary() {
+		HashMap<String,TreeMap<Long,Long>> seen = new HashMap<>();
+		for(Map.Entry<String,Long> entry : cleared.entrySet()) {
+			seen.computeIfAbsent(entry.getKey(), (r)->new TreeMap<>()).put(1L, entry.getValue());
+		}
+		for(WhiteboardPath path : paths) {
+			see(seen, path.getReplica(), path.getSeq());
+		}
+		for(String id : undone) {
+			int mark = id.indexOf('!');
+			see(seen, id.substring(0, mark), Long.parseLong(id.substring(mark+1)));
 		}
-		if(parts.length>1) {
-			for (int i = 1; i < parts.length; i++) {
-				String path = parts[i];
-				if (path.length() > 0) {
-					paths.add(new WhiteboardPath(path));
+		StringBuilder sb = new StringBuilder();
+		for(Map.Entry<String,TreeMap<Long,Long>> entry : seen.entrySet()) {
+			long first=0;
+			long last=-1;
+			// join the adjacent ranges
+			for(Map.Entry<Long,Long> range : entry.getValue().entrySet()) {
+				if(range.getKey()<=last+1) {
+					last=Math.max(last, range.getValue());
+					continue;
+				}
+				if(last>=first) appendRange(sb, entry.getKey(), first, last);
+				first=range.getKey();
+				last=range.getValue();
+			}
+			if(last>=first) appendRange(sb, entry.getKey(), first, last);
+		}
+		return getNameAndVersion()+"%"+sb+"%"+removedString();
+	}
+	
+	/**
+	 * Give the changes that another copy of the board lacks.
+	 *
+	 * @param summary the summary of the other copy, i.e. SEEN%REMOVED as given
+	 * by {@link #getSummary()} after name%version
+	 * @return the changes to send to the other copy, i.e.
+	 * name%version%REMOVED%PATHS, or null if it lacks none
+	 */
+	public synchronized String changesSince(String summary) {
+		String[] parts = summary.split("%",-1);
+		HashMap<String,TreeMap<Long,Long>> seen = new HashMap<>();
+		HashMap<String,Long> seenCleared = new HashMap<>();
+		HashSet<String> seenUndone = new HashSet<>();
+		try {
+			for(String entry : parts[0].split(",")) {
+				if(entry.length()==0) continue;
+				int mark = entry.indexOf('!');
+				int dash = entry.indexOf('-', mark);
+				seen.computeIfAbsent(entry.substring(0, mark), (r)->new TreeMap<>())
+					.put(Long.parseLong(entry.substring(mark+1, dash)),
+							Long.parseLong(entry.substring(dash+1)));
+			}
+			if(parts.length>1) {
+				for(String entry : parts[1].split(",")) {
+					if(entry.length()==0) continue;
+					int mark = entry.indexOf('!');
+					if(entry.startsWith("..", mark+1)) {
+						seenCleared.put(entry.substring(0, mark), Long.parseLong(entry.substring(mark+3)));
+					} else {
+						seenUndone.add(entry);
+					}
 				}
 			}
+		} catch (IndexOutOfBoundsException | NumberFormatException e) {
+			log.warning("board summary is malformed, sending the whole board: "+summary);
+			seen.clear();
+			seenCleared.clear();
+			seenUndone.clear();
+		}
+		StringBuilder removed = new StringBuilder();
+		for(Map.Entry<String,Long> entry : cleared.entrySet()) {
+			if(seenCleared.getOrDefault(entry.getKey(), 0L)>=entry.getValue()) continue;
+			if(removed.length()>0) removed.append(",");
+			removed.append(entry.getKey()+"!.."+entry.getValue());
+		}
+		for(String id : undone) {
+			if(seenUndone.contains(id)) continue;
+			if(removed.length()>0) removed.append(",");
+			removed.append(id);
+		}
+		StringBuilder added = new StringBuilder();
+		for(WhiteboardPath path : paths) {
+			TreeMap<Long,Long> ranges = seen.get(path.getReplica());
+			Map.Entry<Long,Long> range = ranges==null?null:ranges.floorEntry(path.getSeq());
+			if(range!=null && range.getValue()>=path.getSeq()) continue;
+			added.append("%"+path.toString(compactPaths));
 		}
+		if(removed.length()==0 && added.length()==0) return null;
+		return getNameAndVersion()+"%"+removed+added;
+	}
+	
+	private static void see(HashMap<String,TreeMap<Long,Long>> seen,String replica,long seq) {
+		TreeMap<Long,Long> ranges = seen.computeIfAbsent(replica, (r)->new TreeMap<>());
+		if(ranges.getOrDefault(seq, 0L)<seq) ranges.put(seq, seq);
+	}
+	
+	private static void appendRange(StringBuilder sb,String replica,long first,long last) {
+		if(sb.length()>0) sb.append(",");
+		sb.append(replica+"!"+first+"-"+last);
 	}
 	
 	/**
 	 * Convert this whiteboard to a string.
-	 * 
-	 * @return "name%version%" if the whiteboard has no paths or
-	 *         "name%version%PATHS" for the case when there are one or more paths,
-	 *         where each path is separated by a "%"
+	 *
+	 * @return "name%version%REMOVED" if the whiteboard has no paths or
+	 *         "name%version%REMOVED%PATHS" for the case when there are one or
+	 *         more paths, where each path is separated by a "%"
 	 */
-	public String toString() {
+	public synchronized String toString() {
 		StringBuilder sb = new StringBuilder("");
 		sb.append(getNameAndVersion());
-		if(paths.size()==0) 
-			sb.append("%");
-		else {
-			for (int i = 0; i < paths.size(); i++) {
-				sb.append("%"+paths.get(i));
-			}
+		sb.append("%"+removedString());
+		for (int i = 0; i < paths.size(); i++) {
+			sb.append("%"+paths.get(i).toString(compactPaths));
 		}
 		return sb.toString();
 	}
@@ -107,7 +343,7 @@ public class Whiteboard {
 	 * area and draws all paths.
 	 * @param drawArea
 	 */
-	public void draw(DrawArea drawArea) {
+	public synchronized void draw(DrawArea drawArea) {
 		drawArea.clear();
 		for(WhiteboardPath path : paths) {
 			drawArea.drawPath(path);
@@ -119,44 +355,141 @@ public class Whiteboard {
 	////
 	
 	/**
-	 * Add a path to the whiteboard.
+	 * Add a path drawn locally to the whiteboard, after any other path.
 	 * @param newPath
-	 * @param versionBeingUpdated should be the board version that the update applies to
-	 * @return true if the update was accepted, false if it was rejected
+	 * @return the change to send to other copies of the board,
+	 * i.e. name%version%%PATH
 	 */
-	public synchronized boolean addPath(WhiteboardPath newPath,long versionBeingUpdated) {
-		if(version!=versionBeingUpdated) return false;
-		paths.add(newPath);
-		this.version++;
-		return true;
+	public synchronized String addPath(WhiteboardPath newPath) {
+		newPath.stamp(replica, latest.getOrDefault(replica, 0L)+1, clock+1);
+		add(newPath);
+		updateVersion();
+		return getNameAndVersion()+"%%"+newPath.toString(compactPaths);
 	}
 	
 	/**
 	 * Clear the board of all paths.
-	 * @param versionBeingUpdated should be the board version that the update applies to
-	 * @return true if the update was accepted, false if it was rejected
+	 * @return the change to send to other copies of the board,
+	 * i.e. name%version%REMOVED
 	 */
-	public synchronized boolean clear(long versionBeingUpdated) {
-		if(version!=versionBeingUpdated) return false;
-		paths.clear();
-		this.version++;
-		return true;
+	public synchronized String clear() {
+		StringBuilder removed = new StringBuilder();
+		for(Map.Entry<String,Long> entry : latest.entrySet()) {
+			if(removed.length()>0) removed.append(",");
+			removed.append(entry.getKey()+"!.."+entry.getValue());
+		}
+		remove(removed.toString());
+		updateVersion();
+		return getNameAndVersion()+"%"+removed;
 	}
 	
 	/**
 	 * Remove the last path from the board.
+	 * @return the change to send to other copies of the board,
+	 * i.e. name%version%REMOVED, or null if there is no path to remove
 	 */
-	public synchronized boolean undo(long versionBeingUpdated) {
-		if(version!=versionBeingUpdated) return false;
-		if(paths.size()>0) {
-			paths.remove(paths.size()-1);
+	public synchronized String undo() {
+		if(paths.isEmpty()) return null;
+		String id = paths.get(paths.size()-1).getId();
+		remove(id);
+		updateVersion();
+		return getNameAndVersion()+"%"+id;
+	}
+	
+	/**
+	 * Add a path, unless it is already on the board or was removed.
+	 * @param path
+	 * @return the index of the path on the board, or -1 if it wasn't added
+	 */
+	private int add(WhiteboardPath path) {
+		String id = path.getId();
+		if(latest.getOrDefault(path.getReplica(), 0L)<path.getSeq())
+			latest.put(path.getReplica(), path.getSeq());
+		clock=Math.max(clock, path.getClock());
+		if(pathIds.containsKey(id) || isRemoved(path)) return -1;
+		pathIds.put(id, path);
+		int index = Collections.binarySearch(paths, path, order);
+		if(index<0) index=-index-1;
+		paths.add(index, path);
+		return index;
+	}
+	
+	/**
+	 * Apply removals.
+	 * @param removed a comma separated list of replica!seq and replica!..seq
+	 * @return true if any path on the board was removed
+	 */
+	private boolean remove(String removed) {
+		boolean any=false;
+		for(String entry : removed.split(",")) {
+			if(entry.length()==0) continue;
+			int mark = entry.indexOf('!');
+			if(mark<0) {
+				log.warning("invalid removal ignored: "+entry);
+				continue;
+			}
+			String from = entry.substring(0, mark);
+			boolean clear = entry.startsWith("..", mark+1);
+			long seq;
+			try {
+				seq = Long.parseLong(entry.substring(clear?mark+3:mark+1));
+			} catch (NumberFormatException e) {
+				log.warning("invalid removal ignored: "+entry);
+				continue;
+			}
+			// the removed paths have been drawn, even if we haven't seen them
+			if(latest.getOrDefault(from, 0L)<seq) latest.put(from, seq);
+			if(clear) {
+				if(cleared.getOrDefault(from, 0L)<seq) cleared.put(from, seq);
+			} else {
+				undone.add(entry);
+			}
+		}
+		// undos of paths that have since been cleared are no longer needed
+		undone.removeIf((id)->{
+			int mark = id.indexOf('!');
+			return cleared.getOrDefault(id.substring(0, mark), 0L)>=Long.parseLong(id.substring(mark+1));
+		});
+		for(int i=paths.size()-1;i>=0;i--) {
+			WhiteboardPath path = paths.get(i);
+			if(isRemoved(path)) {
+				paths.remove(i);
+				pathIds.remove(path.getId());
+				any=true;
+			}
+		}
+		return any;
+	}
+	
+	private boolean isRemoved(WhiteboardPath path) {
+		return undone.contains(path.getId())
+				|| cleared.getOrDefault(path.getReplica(), 0L)>=path.getSeq();
+	}
+	
+	private String removedString() {
+		StringBuilder sb = new StringBuilder();
+		for(Map.Entry<String,Long> entry : cleared.entrySet()) {
+			if(sb.length()>0) sb.append(",");
+			sb.append(entry.getKey()+"!.."+entry.getValue());
 		}
-		this.version++;
-		return true;
+		for(String id : undone) {
+			if(sb.length()>0) sb.append(",");
+			sb.append(id);
+		}
+		return sb.toString();
+	}
+	
+	private void updateVersion() {
+		long changes=undone.size();
+		for(long seq : latest.values()) changes+=seq;
+		// a clear can drop as many undos as the paths it clears, so it
+		// counts twice for the version to still go up
+		for(long seq : cleared.values()) changes+=2*seq;
+		version=changes;
 	}
 	
 	/**
-	 * 
+	 *
 	 * @return peer:port:boardid%version
 	 */
 	public String getNameAndVersion() {
@@ -164,7 +497,7 @@ public class Whiteboard {
 	}
 	
 	/**
-	 * 
+	 *
 	 * @return
 	 */
 	public String getName() {
@@ -172,7 +505,23 @@ public class Whiteboard {
 	}
 	
 	/**
-	 * 
+	 *
+	 * @return true if paths are written in the compact encoding
+	 */
+	public synchronized boolean isCompactPaths() {
+		return compactPaths;
+	}
+	
+	/**
+	 * Set whether paths are written in the compact encoding.
+	 * @param compactPaths
+	 */
+	public synchronized void setCompactPaths(boolean compactPaths) {
+		this.compactPaths=compactPaths;
+	}
+	
+	/**
+	 *
 	 * @return true if the board is shared, false otherwise
 	 */
 	public boolean isShared() {
@@ -186,7 +535,7 @@ public class Whiteboard {
 	public void setShared(boolean shared) {
 		this.shared=shared;
 	}
-
+	
 	/**
 	 * Set the remote status of the board
 	 * @param remote
@@ -194,17 +543,17 @@ public class Whiteboard {
 	public void setRemote(boolean remote) {
 		this.remote=remote;
 	}
-
+	
 	/**
-	 * 
+	 *
 	 * @return the version of the board
 	 */
-	public long getVersion() {
+	public synchronized long getVersion() {
 		return version;
 	}
 	
 	/**
-	 * 
+	 *
 	 * @return whether the board is maintained remotely or not
 	 */
 	public boolean isRemote() {
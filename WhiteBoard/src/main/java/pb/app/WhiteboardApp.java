@@ -36,9 +36,11 @@ import pb.WhiteboardPeer;
 import pb.WhiteboardServer;
 import pb.managers.ClientManager;
 import pb.managers.IOThread;
+import pb.managers.PeerChannel;
 import pb.managers.PeerManager;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.utils.Utils;
 
 
 /**
@@ -77,7 +79,8 @@ public class WhiteboardApp {
 
 	/**
 	 * Emitted to another peer to give the entire board data for a given board.
-	 * Argument must have format "host:port:boardid%version%PATHS".
+	 * Argument must have format "host:port:boardid%version%REMOVED%PATHS", as
+	 * given by {@link Whiteboard#toString()}.
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ul>
@@ -86,9 +89,11 @@ public class WhiteboardApp {
 
 	/**
 	 * Emitted to another peer to add a path to a board managed by that peer.
-	 * Argument must have format "host:port:boardid%version%PATH". The numeric value
-	 * of version must be equal to the version of the board without the PATH added,
-	 * i.e. the current version of the board.
+	 * Argument must have format "host:port:boardid%version%%PATH", as given by
+	 * {@link Whiteboard#addPath(WhiteboardPath)}, which is merged into the board
+	 * whatever its version. Also used to send the changes that the board lacks
+	 * in reply to {@link #boardSummary}, in the format
+	 * "host:port:boardid%version%REMOVED%PATHS".
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ul>
@@ -97,9 +102,8 @@ public class WhiteboardApp {
 
 	/**
 	 * Emitted to another peer to indicate a new path has been accepted. Argument
-	 * must have format "host:port:boardid%version%PATH". The numeric value of
-	 * version must be equal to the version of the board without the PATH added,
-	 * i.e. the current version of the board.
+	 * must have format "host:port:boardid%version%%PATH", where version is the
+	 * version of the board with the PATH merged into it.
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ul>
@@ -108,9 +112,9 @@ public class WhiteboardApp {
 
 	/**
 	 * Emitted to another peer to remove the last path on a board managed by that
-	 * peer. Argument must have format "host:port:boardid%version%". The numeric
-	 * value of version must be equal to the version of the board without the undo
-	 * applied, i.e. the current version of the board.
+	 * peer. Argument must have format "host:port:boardid%version%REMOVED", as
+	 * given by {@link Whiteboard#undo()}, which removes the path that was last
+	 * when the undo was made.
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ul>
@@ -119,9 +123,8 @@ public class WhiteboardApp {
 
 	/**
 	 * Emitted to another peer to indicate an undo has been accepted. Argument must
-	 * have format "host:port:boardid%version%". The numeric value of version must
-	 * be equal to the version of the board without the undo applied, i.e. the
-	 * current version of the board.
+	 * have format "host:port:boardid%version%REMOVED", where version is the
+	 * version of the board with the undo merged into it.
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ul>
@@ -130,9 +133,9 @@ public class WhiteboardApp {
 
 	/**
 	 * Emitted to another peer to clear a board managed by that peer. Argument must
-	 * have format "host:port:boardid%version%". The numeric value of version must
-	 * be equal to the version of the board without the clear applied, i.e. the
-	 * current version of the board.
+	 * have format "host:port:boardid%version%REMOVED", as given by
+	 * {@link Whiteboard#clear()}, which removes the paths that had been seen
+	 * when the clear was made.
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ul>
@@ -141,9 +144,8 @@ public class WhiteboardApp {
 
 	/**
 	 * Emitted to another peer to indicate an clear has been accepted. Argument must
-	 * have format "host:port:boardid%version%". The numeric value of version must
-	 * be equal to the version of the board without the clear applied, i.e. the
-	 * current version of the board.
+	 * have format "host:port:boardid%version%REMOVED", where version is the
+	 * version of the board with the clear merged into it.
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ul>
@@ -159,6 +161,30 @@ public class WhiteboardApp {
 	 */
 	public static final String boardDeleted = "BOARD_DELETED";
 
+	/**
+	 * Emitted to another peer, after reconnecting, to listen to a board again.
+	 * Argument must have format "host:port:boardid%version%SEEN%REMOVED", as
+	 * given by {@link Whiteboard#getSummary()}. The peer replies with
+	 * {@link #boardData} holding only the changes that we lack, if any, and
+	 * then with {@link #boardSummary}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String resumeBoard = "BOARD_RESUME";
+
+	/**
+	 * Emitted to another peer in reply to {@link #resumeBoard}, to give the
+	 * changes seen on the board. Argument must have format
+	 * "host:port:boardid%version%SEEN%REMOVED", as given by
+	 * {@link Whiteboard#getSummary()}. The peer sends back the changes that
+	 * the board lacks, if any, with {@link #boardPathUpdate}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String boardSummary = "BOARD_SUMMARY";
+
 	/**
 	 * Emitted to another peer to indicate an error has occurred.
 	 * <ul>
@@ -199,8 +225,57 @@ public class WhiteboardApp {
 	PeerManager peerManager;
 	Endpoint epToWhiteboardServer;
 
+	/**
+	 * Our board name to the endpoints of the peers listening to it.
+	 */
 	HashMap<String, ArrayList<Endpoint>> epToPeerClient=new HashMap<String, ArrayList<Endpoint>>();
-	HashMap<String, ArrayList<Endpoint>> targetClient=new HashMap<String, ArrayList<Endpoint>>();
+
+	/**
+	 * Remote board name to the channel we listen to it on. Channels to
+	 * boards on the same peer share one connection.
+	 */
+	HashMap<String, PeerChannel> remoteChannels=new HashMap<String, PeerChannel>();
+
+	/**
+	 * Remote board name to the changes we made to it that could not be sent
+	 * to its peer, as eventName and change, in the order they were made.
+	 */
+	HashMap<String, List<String[]>> unsent=new HashMap<String, List<String[]>>();
+
+	/**
+	 * Sequence number of the last change to the shared boards received from
+	 * the whiteboard server, or -1 if none has been received.
+	 */
+	long boardsSeq=-1;
+
+	/**
+	 * Whether the whiteboard server relays remote boards, in which case
+	 * we listen to them through the server instead of their peers.
+	 */
+	volatile boolean relayed=false;
+
+	/**
+	 * Host and port of the whiteboard server.
+	 */
+	String whiteboardServerHost;
+	int whiteboardServerPort;
+	
+	/**
+	 * Default tolerance in pixels that paths are simplified to.
+	 */
+	public static final double defaultSimplifyTolerance = 1.0;
+	
+	/**
+	 * Tolerance in pixels that paths drawn locally are simplified to before
+	 * they are added to a board, or 0 to keep every point.
+	 */
+	double simplifyTolerance = defaultSimplifyTolerance;
+	
+	/**
+	 * Whether boards created locally write their paths in the compact
+	 * encoding.
+	 */
+	boolean compactPaths = false;
 	
 	/**
 	 * Initialize the white board app.
@@ -209,7 +284,22 @@ public class WhiteboardApp {
 	 */
 	public WhiteboardApp(int peerPort,String whiteboardServerHost, 
 			int whiteboardServerPort){
+		this(peerPort,whiteboardServerHost,whiteboardServerPort,defaultSimplifyTolerance,false);
+	}
+	
+	/**
+	 * Initialize the white board app, simplifying paths to a given tolerance.
+	 * @param simplifyTolerance in pixels, or 0 to keep every point of a path
+	 * @param compactPaths whether boards created locally write their paths
+	 * in the compact encoding
+	 */
+	public WhiteboardApp(int peerPort,String whiteboardServerHost, 
+			int whiteboardServerPort,double simplifyTolerance,boolean compactPaths){
+		this.simplifyTolerance=simplifyTolerance;
+		this.compactPaths=compactPaths;
 		whiteboards=new HashMap<>();
+		this.whiteboardServerHost=whiteboardServerHost;
+		this.whiteboardServerPort=whiteboardServerPort;
 		
 		//*******************************************
 		peerManager = new PeerManager(peerPort);
@@ -221,17 +311,18 @@ public class WhiteboardApp {
 			clientManager.on(PeerManager.peerStarted, (args)->{
 				log.info("connecting to whiteboard server");		
 				epToWhiteboardServer = (Endpoint)args[0];
-				epToWhiteboardServer.on(WhiteboardServer.sharingBoard,(args2)->{
-					String sharingBoard = (String) args2[0];
-					if(!whiteboards.containsKey(getBoardName(sharingBoard))) {
-						log.info("onSharing whiteboard: " + sharingBoard);
-						addRemoteBoardToList(sharingBoard);
-					}
-				}).on(WhiteboardServer.unsharingBoard,(arg2)->{
-					// delete the unsharing board
-					String unsharingBoard = (String) arg2[0];
-					deleteUnshareBoard(unsharingBoard);
+				epToWhiteboardServer.on(WhiteboardServer.boardsSnapshot,(args2)->{
+					String snapshot = (String) args2[0];
+					log.info("shared boards snapshot: " + snapshot);
+					applyBoardsSnapshot(snapshot);
+				}).on(WhiteboardServer.boardsDelta,(args2)->{
+					applyBoardsDelta((String) args2[0]);
+				}).on(WhiteboardServer.relayingBoards,(args2)->{
+					log.info("whiteboard server is relaying boards");
+					relayed=true;
 				});
+				// resume from the last change we saw, if any
+				epToWhiteboardServer.emit(WhiteboardServer.boardsResume, Long.toString(boardsSeq));
 				//endpoint.emit(boardData, "");
 			}).on(PeerManager.peerStopped, (args)->{
 				Endpoint endpoint = (Endpoint)args[0];
@@ -252,63 +343,43 @@ public class WhiteboardApp {
 		//ArrayList<Endpoint> endpointList = new ArrayList<Endpoint>();
 		peerManager.on(PeerManager.peerStarted, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
-			if (epToPeerClient.get(selectedBoard.getName()) != null) {
-				epToPeerClient.get(selectedBoard.getName()).add(endpoint);
-			}
-			else {
-				ArrayList<Endpoint> endpoints = new ArrayList<Endpoint>();
-				endpoints.add(endpoint);
-				epToPeerClient.put(selectedBoard.getName(), endpoints);
-			}
-	       	//endpointList.add(endpoint); // multiple other peers
 			log.info("Connected From peer: "+endpoint.getOtherEndpointId());
+			// the peer may listen to any number of our boards on this connection
 			endpoint.on(getBoardData, (args2) -> {
 				String boardName = (String) args2[0];
-				String boardString = whiteboards.get(boardName).toString();
-				endpoint.emit(boardData, boardString);
+				Whiteboard whiteboard;
+				synchronized(whiteboards) {
+					whiteboard = whiteboards.get(boardName);
+				}
+				if(whiteboard==null || whiteboard.isRemote()) {
+					endpoint.emit(boardError, boardName);
+				} else {
+					endpoint.emit(boardData, whiteboard.toString());
+				}
 			}).on(listenBoard,(args2)->{
 				String requestBoard = (String) args2[0];
 				log.info("listen on board: " + requestBoard);
-				endpoint.on(boardPathUpdate, (args3) -> {
-					String data = (String) args3[0];
-					String boardName = getBoardName(data);
-					String boardData = getBoardData(data);
-					selectedBoard.whiteboardFromString(boardName, boardData);
-					log.info("Received updated path: " + data);
-					drawSelectedWhiteboard();
-					for (Endpoint end: epToPeerClient.get(boardName)) {
-						end.emit(boardPathAccepted, data);
-					}
-				}).on(boardUndoUpdate, (args1) -> {
-					String data = (String) args1[0];
-					String boardName = getBoardName(data);
-					String boardData = getBoardData(data);
-					selectedBoard.whiteboardFromString(boardName, boardData);
-					log.info("Received undo path: " + data);
-					drawSelectedWhiteboard();
-					for (Endpoint end: epToPeerClient.get(boardName)) {
-						end.emit(boardUndoAccepted, data);
-					}
-				}).on(boardClearUpdate, (args1) -> {
-					String data = (String) args1[0];
-					String boardName = getBoardName(data);
-					String boardData = getBoardData(data);
-					selectedBoard.whiteboardFromString(boardName, boardData);
-					log.info("Received clear board: " + data);
-					drawSelectedWhiteboard();
-					for (Endpoint end: epToPeerClient.get(boardName)) {
-						end.emit(boardClearAccepted, data);
-					}
-				});
+				addListener(requestBoard, endpoint);
 				// share the board that another peer requests
 				shareRequestBoard(requestBoard, endpoint);
+			}).on(resumeBoard,(args2)->{
+				String data = (String) args2[0];
+				log.info("resume listening on board: " + data);
+				resumeListener(data, endpoint);
+			}).on(unlistenBoard,(args2)->{
+				removeListener((String) args2[0], endpoint);
+			}).on(boardPathUpdate, (args1) -> {
+				String data = (String) args1[0];
+				log.info("Received updated path: " + data);
+				updateFromListener(boardPathAccepted, data);
 			}).on(boardUndoUpdate, (args1) -> {
 				String data = (String) args1[0];
-				String boardName = getBoardName(data);
-				String boardData = getBoardData(data);
-				selectedBoard.whiteboardFromString(boardName, boardData);
 				log.info("Received undo path: " + data);
-				drawSelectedWhiteboard();
+				updateFromListener(boardUndoAccepted, data);
+			}).on(boardClearUpdate, (args1) -> {
+				String data = (String) args1[0];
+				log.info("Received clear board: " + data);
+				updateFromListener(boardClearAccepted, data);
 			}).on(boardDeleted, (args1) -> {
 				String unshareboard = (String) args1[0];
 				log.info("Delete the board:" + unshareboard);
@@ -316,11 +387,20 @@ public class WhiteboardApp {
 			});
 		}).on(PeerManager.peerStopped,(args)->{
 	        Endpoint endpoint = (Endpoint)args[0];
+	        removeListener(endpoint);
 	       	System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
 		}).on(PeerManager.peerError,(args)->{
 			Endpoint endpoint = (Endpoint)args[0];
+			// keep its boards for as long as the peer can resume the session
+			Utils.getInstance().setTimeout(()->{
+				removeListener(endpoint);
+			}, ((ServerManager)args[1]).getResumeTimeout());
 			System.out.println("There was an error communicating with the peer: "
 	        			+endpoint.getOtherEndpointId());
+		}).on(PeerManager.peerResumed,(args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			replaceListener((Endpoint)args[2], endpoint);
+			log.info("peer resumed its session: "+endpoint.getOtherEndpointId());
 		}).on(PeerManager.peerServerManager, (args)->{
         	ServerManager serverManager = (ServerManager)args[0];
         	serverManager.on(IOThread.ioThread, (args2)->{
@@ -423,11 +503,375 @@ public class WhiteboardApp {
 	
 	public void addRemoteBoardToList(String remoteBoardData) {
 		String boardName = getBoardName(remoteBoardData);
-		Whiteboard newBoard = new Whiteboard(boardName, true);
+		Whiteboard newBoard = new Whiteboard(boardName, true, peerport);
 		newBoard.setShared(true);
 		addBoard(newBoard, false);
 	}
 	
+	// From peers listening to our boards
+
+	/**
+	 * Send updates of one of our boards to a peer.
+	 * @param boardName
+	 * @param endpoint
+	 */
+	public void addListener(String boardName, Endpoint endpoint) {
+		synchronized(epToPeerClient) {
+			ArrayList<Endpoint> endpoints = epToPeerClient.computeIfAbsent(boardName,
+					(name)->new ArrayList<Endpoint>());
+			if(!endpoints.contains(endpoint)) endpoints.add(endpoint);
+		}
+	}
+
+	/**
+	 * Stop sending updates of one of our boards to a peer.
+	 * @param boardName
+	 * @param endpoint
+	 */
+	public void removeListener(String boardName, Endpoint endpoint) {
+		synchronized(epToPeerClient) {
+			ArrayList<Endpoint> endpoints = epToPeerClient.get(boardName);
+			if(endpoints!=null) endpoints.remove(endpoint);
+		}
+	}
+
+	/**
+	 * Send updates of one of our boards to a peer that has reconnected, along
+	 * with the changes to the board that the peer lacks, and tell the peer
+	 * what we have seen so that it can send us the changes that we lack.
+	 * @param data host:port:boardid%version%SEEN%REMOVED
+	 * @param endpoint
+	 */
+	public void resumeListener(String data, Endpoint endpoint) {
+		String boardName = getBoardName(data);
+		Whiteboard whiteboard;
+		synchronized(whiteboards) {
+			whiteboard = whiteboards.get(boardName);
+		}
+		if(whiteboard==null || whiteboard.isRemote()) {
+			endpoint.emit(boardError, boardName);
+			return;
+		}
+		addListener(boardName, endpoint);
+		String[] parts = data.split("%",3);
+		String changes = whiteboard.changesSince(parts.length>2?parts[2]:"");
+		if(changes!=null) endpoint.emit(boardData, changes);
+		endpoint.emit(boardSummary, whiteboard.getSummary());
+	}
+
+	/**
+	 * A peer has resumed its session on a new endpoint, so send the updates
+	 * that went to the old endpoint to the new one.
+	 * @param previous
+	 * @param endpoint
+	 */
+	public void replaceListener(Endpoint previous, Endpoint endpoint) {
+		synchronized(epToPeerClient) {
+			for(ArrayList<Endpoint> endpoints : epToPeerClient.values()) {
+				if(endpoints.remove(previous) && !endpoints.contains(endpoint)) endpoints.add(endpoint);
+			}
+		}
+	}
+
+	/**
+	 * Stop sending updates of any of our boards to a peer that has gone.
+	 * @param endpoint
+	 */
+	public void removeListener(Endpoint endpoint) {
+		synchronized(epToPeerClient) {
+			epToPeerClient.values().forEach((endpoints)->endpoints.remove(endpoint));
+		}
+	}
+
+	/**
+	 *
+	 * @param boardName
+	 * @return a copy of the endpoints of the peers listening to our board
+	 */
+	public List<Endpoint> listenersOf(String boardName) {
+		synchronized(epToPeerClient) {
+			ArrayList<Endpoint> endpoints = epToPeerClient.get(boardName);
+			return endpoints==null?new ArrayList<Endpoint>():new ArrayList<Endpoint>(endpoints);
+		}
+	}
+
+	/**
+	 * A listening peer has updated one of our boards, so merge its change
+	 * and tell all of the listeners that it was accepted.
+	 * @param accepted the event to send to the listeners
+	 * @param data host:port:boardid%version%REMOVED%PATHS
+	 */
+	public void updateFromListener(String accepted, String data) {
+		String boardName = getBoardName(data);
+		Whiteboard whiteboard;
+		synchronized(whiteboards) {
+			whiteboard = whiteboards.get(boardName);
+		}
+		if(whiteboard==null || whiteboard.isRemote()) {
+			log.warning("update for a board that is not ours: " + boardName);
+			return;
+		}
+		long version = whiteboard.getVersion();
+		List<WhiteboardPath> added = whiteboard.merge(getBoardData(data));
+		// a removal may change the board without removing a path from view
+		if(whiteboard.getVersion()==version && added!=null && added.isEmpty()) return; // seen it already
+		if(whiteboard==selectedBoard) drawChanges(added);
+		// pass on the change with the version it made
+		Endpoint.broadcast(listenersOf(boardName), accepted,
+				whiteboard.getNameAndVersion()+"%"+getBoardPaths(data));
+	}
+
+	// From the peers of remote boards
+
+	/**
+	 * Listen to a remote board, on a channel to its peer (or to the
+	 * whiteboard server when it is relaying). Does nothing if we are
+	 * already listening to it.
+	 * @param boardName host:port:boardid
+	 */
+	public void listenToRemoteBoard(String boardName) {
+		synchronized(remoteChannels) {
+			if(remoteChannels.containsKey(boardName)) return;
+		}
+		String host = getIP(boardName);
+		int port;
+		try {
+			port = getPort(boardName);
+		} catch (NumberFormatException e) {
+			System.out.println("Port is not a number: "+boardName);
+			return;
+		}
+		if(relayed) {
+			// get the board from the whiteboard server instead of its peer
+			host = whiteboardServerHost;
+			port = whiteboardServerPort;
+		}
+		PeerChannel channel;
+		try {
+			channel = peerManager.openChannel(port, host, boardName);
+		} catch (UnknownHostException e) {
+			System.out.println("Could not find the peer IP address: "+host);
+			return;
+		} catch (InterruptedException e) {
+			System.out.println("Interrupted");
+			return;
+		}
+		channel.on(PeerManager.peerStarted, (args) -> {
+			Whiteboard whiteboard;
+			synchronized(whiteboards) {
+				whiteboard = whiteboards.get(boardName);
+			}
+			sendUnsent(boardName, channel);
+			if(whiteboard!=null && whiteboard.getVersion()>0) {
+				// reconnected, so only exchange the changes that either side lacks
+				channel.send(resumeBoard, whiteboard.getSummary());
+			} else {
+				// request the board data
+				channel.send(getBoardData, boardName);
+			}
+		}).on(boardSummary, (args1) -> {
+			String data = (String) args1[0];
+			log.info("Received board summary: " + data);
+			Whiteboard whiteboard;
+			synchronized(whiteboards) {
+				whiteboard = whiteboards.get(boardName);
+			}
+			if(whiteboard==null) return;
+			String changes = whiteboard.changesSince(getBoardPaths(data));
+			if(changes!=null) sendToOwner(boardPathUpdate, whiteboard, changes);
+		}).on(boardData, (args1) -> {
+			// host:port:boardid%version%PATHS
+			String data = (String) args1[0];
+			log.info("Received board data: " + data);
+			updateFromOwner(data);
+			channel.send(listenBoard, boardName);
+		}).on(boardPathUpdate, (args1) ->{
+			String data = (String) args1[0];
+			log.info("Received updated path: " + data);
+			updateFromOwner(data);
+		}).on(boardUndoUpdate, (args1) -> {
+			String data = (String) args1[0];
+			log.info("Received undo path: " + data);
+			updateFromOwner(data);
+		}).on(boardClearUpdate, (args1) -> {
+			String data = (String) args1[0];
+			log.info("Received clear board: " + data);
+			updateFromOwner(data);
+		}).on(boardPathAccepted, (args1) ->{
+			String data = (String) args1[0];
+			log.info("acc updated path: " + data);
+			updateFromOwner(data);
+		}).on(boardUndoAccepted, (args1) -> {
+			String data = (String) args1[0];
+			log.info("acc undo path: " + data);
+			updateFromOwner(data);
+		}).on(boardClearAccepted, (args1) -> {
+			String data = (String) args1[0];
+			log.info("acc clear board: " + data);
+			updateFromOwner(data);
+		}).on(boardDeleted, (args1) -> {
+			deleteUnshareBoard((String) args1[0]);
+		}).on(boardError, (args1) -> {
+			log.warning("peer could not provide board: " + args1[0]);
+		}).on(PeerManager.peerStopped, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
+		}).on(PeerManager.peerError, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			System.out.println("There was error while communication with peer: "
+					+endpoint.getOtherEndpointId());
+		}).on(PeerManager.peerTerminated, (args)->{
+			// the peer can't be reached, so let the board be listened to afresh
+			synchronized(remoteChannels) {
+				remoteChannels.remove(boardName, channel);
+			}
+			System.out.println("Gave up connecting to the peer of board: "+boardName);
+		});
+		synchronized(remoteChannels) {
+			remoteChannels.put(boardName, channel);
+		}
+		channel.open();
+	}
+
+	/**
+	 * Stop listening to a remote board.
+	 * @param boardName
+	 */
+	public void stopListeningToRemoteBoard(String boardName) {
+		PeerChannel channel;
+		synchronized(remoteChannels) {
+			channel = remoteChannels.remove(boardName);
+		}
+		synchronized(unsent) {
+			unsent.remove(boardName);
+		}
+		if(channel!=null) {
+			channel.send(unlistenBoard, boardName);
+			channel.close();
+		}
+	}
+
+	/**
+	 * Send a change we made to a remote board to its peer. If it can't be
+	 * sent then it is kept, along with any later changes, until the channel
+	 * to the peer starts again.
+	 * @param eventName
+	 * @param whiteboard
+	 * @param change host:port:boardid%version%REMOVED%PATHS
+	 */
+	public void sendToOwner(String eventName, Whiteboard whiteboard, String change) {
+		String boardName = whiteboard.getName();
+		PeerChannel channel;
+		synchronized(remoteChannels) {
+			channel = remoteChannels.get(boardName);
+		}
+		synchronized(unsent) {
+			List<String[]> changes = unsent.get(boardName);
+			// keep the changes in order behind those not yet sent
+			if(changes==null && channel!=null && channel.send(eventName, change)) return;
+			if(changes==null) {
+				log.warning("not connected to the peer of board "+boardName+", keeping changes until reconnected");
+				changes = new ArrayList<String[]>();
+				unsent.put(boardName, changes);
+			}
+			changes.add(new String[] {eventName,change});
+		}
+	}
+
+	/**
+	 * Send the changes to a remote board that could not be sent before.
+	 * @param boardName
+	 * @param channel
+	 */
+	private void sendUnsent(String boardName, PeerChannel channel) {
+		synchronized(unsent) {
+			List<String[]> changes = unsent.get(boardName);
+			if(changes==null) return;
+			while(!changes.isEmpty()) {
+				String[] change = changes.get(0);
+				if(!channel.send(change[0], change[1])) return;
+				changes.remove(0);
+			}
+			unsent.remove(boardName);
+			log.info("sent the changes to board "+boardName+" made while not connected");
+		}
+	}
+
+	/**
+	 * Merge the data of a remote board, or a change to it, from its peer.
+	 * @param data host:port:boardid%version%REMOVED%PATHS
+	 */
+	public void updateFromOwner(String data) {
+		String boardName = getBoardName(data);
+		Whiteboard whiteboard;
+		synchronized(whiteboards) {
+			whiteboard = whiteboards.get(boardName);
+		}
+		if(whiteboard==null) return;
+		List<WhiteboardPath> added = whiteboard.merge(getBoardData(data));
+		if(whiteboard==selectedBoard) drawChanges(added);
+	}
+
+	/**
+	 * Draw the changes merged into the selected board, redrawing it only
+	 * if they were not all added at the end.
+	 * @param added as given by {@link Whiteboard#merge(String)}
+	 */
+	private void drawChanges(List<WhiteboardPath> added) {
+		if(added==null) {
+			drawSelectedWhiteboard();
+		} else {
+			added.forEach((path)->drawArea.drawPath(path));
+		}
+	}
+
+	/**
+	 * Replace the list of remote boards with the boards in a snapshot from
+	 * the whiteboard server.
+	 * @param snapshot seq%host:port:boardid%host:port:boardid...
+	 */
+	public synchronized void applyBoardsSnapshot(String snapshot) {
+		List<String> sharedBoards = SharedBoardRegistry.getSnapshotBoards(snapshot);
+		List<String> remoteBoards = new ArrayList<String>();
+		synchronized(whiteboards) {
+			for(Whiteboard whiteboard : whiteboards.values()) {
+				if(whiteboard.isRemote()) remoteBoards.add(whiteboard.getName());
+			}
+		}
+		for(String boardName : remoteBoards) {
+			if(!sharedBoards.contains(boardName)) deleteUnshareBoard(boardName);
+		}
+		for(String sharingBoard : sharedBoards) {
+			if(!whiteboards.containsKey(sharingBoard)) addRemoteBoardToList(sharingBoard);
+		}
+		boardsSeq = SharedBoardRegistry.getSeq(snapshot);
+	}
+
+	/**
+	 * Apply a change to the shared boards from the whiteboard server. Changes
+	 * arrive in order on the session, so only the next one is applied; any
+	 * others were already included in what we have, or will be included
+	 * in the reply to our resume.
+	 * @param delta seq%+host:port:boardid or seq%-host:port:boardid
+	 */
+	public synchronized void applyBoardsDelta(String delta) {
+		long seq = SharedBoardRegistry.getSeq(delta);
+		if(boardsSeq<0 || seq!=boardsSeq+1) {
+			log.info("ignoring shared boards change: " + delta);
+			return;
+		}
+		boardsSeq = seq;
+		String sharingBoard = SharedBoardRegistry.getDeltaBoard(delta);
+		if(SharedBoardRegistry.isShare(delta)) {
+			if(!whiteboards.containsKey(sharingBoard)) {
+				log.info("onSharing whiteboard: " + sharingBoard);
+				addRemoteBoardToList(sharingBoard);
+			}
+		} else {
+			deleteUnshareBoard(sharingBoard);
+		}
+	}
+	
 	// From whiteboard peer
 	
 	/**
@@ -466,7 +910,7 @@ public class WhiteboardApp {
 	public void addRemoteBoardToApp(String remoteBoardData) {
 		String boardName = getBoardName(remoteBoardData);
 		String data = getBoardData(remoteBoardData);
-		Whiteboard newBoard = new Whiteboard(boardName, true);
+		Whiteboard newBoard = new Whiteboard(boardName, true, peerport);
 		newBoard.whiteboardFromString(boardName, data);
 		addBoard(newBoard, false);
 	}
@@ -548,28 +992,19 @@ public class WhiteboardApp {
 	public void deleteBoard(String boardname) {
 		synchronized(whiteboards) {
 			Whiteboard whiteboard = whiteboards.get(boardname);
-			if(whiteboard != null && epToWhiteboardServer != null && !epToPeerClient.isEmpty()) {
-				if(!whiteboard.isRemote()) {
-					this.epToWhiteboardServer.emit(WhiteboardServer.unshareBoard,selectedBoard.getName());
-					try {
-						for (Endpoint end: epToPeerClient.get(boardname)) {
-							end.emit(boardDeleted, boardname);
-						}
-						whiteboards.remove(boardname);
-					}
-					catch (Exception e) {
-						log.info("there is no such board" + boardname);
-					}
+			if(whiteboard != null && !whiteboard.isRemote()) {
+				if(epToWhiteboardServer != null) {
+					this.epToWhiteboardServer.emit(WhiteboardServer.unshareBoard,boardname);
+				}
+				Endpoint.broadcast(listenersOf(boardname), boardDeleted, boardname);
+				synchronized(epToPeerClient) {
+					epToPeerClient.remove(boardname);
 				}
-				else {
-					// this.epToPeerClient.emit(unlistenBoard, selectedBoard.getName());
-					whiteboards.remove(boardname);
-				} 
-		} 	
-		else {
-				whiteboards.remove(boardname);
+			} else if(whiteboard != null) {
+				stopListeningToRemoteBoard(boardname);
+			}
+			whiteboards.remove(boardname);
 		}
-	}
 		updateComboBox(null);
 	}
 	
@@ -579,34 +1014,30 @@ public class WhiteboardApp {
 	 */
 	public void createBoard() {
 		String name = peerport+":board"+Instant.now().toEpochMilli();
-		Whiteboard whiteboard = new Whiteboard(name,false);
+		Whiteboard whiteboard = new Whiteboard(name,false,peerport);
+		whiteboard.setCompactPaths(compactPaths);
 		addBoard(whiteboard,true);
 	}
 	
 	/**
 	 * Add a path to the selected board. The path has already
-	 * been drawn on the draw area; so if it can't be accepted then
-	 * the board needs to be redrawn without it.
+	 * been drawn on the draw area, and is always accepted, since
+	 * changes from other peers are merged with it. The path is
+	 * simplified first, which moves it by no more than the tolerance,
+	 * so it is not redrawn.
 	 * @param currentPath
 	 */
 	public void pathCreatedLocally(WhiteboardPath currentPath) {
 		if(selectedBoard!=null) {
-			if(!selectedBoard.addPath(currentPath,selectedBoard.getVersion())) {
-				// some other peer modified the board in between
-				drawSelectedWhiteboard(); // just redraw the screen without the path
-			} else {
-				// was accepted locally, so do remote stuff if needed
-				if (selectedBoard.isShared()) {
-					if(!selectedBoard.isRemote() && !this.epToPeerClient.isEmpty()) {
-						for (Endpoint end: epToPeerClient.get(selectedBoard.getName())) {
-							end.emit(boardPathUpdate,selectedBoard.toString());
-						}
-					}
-					if(selectedBoard.isRemote() && !this.targetClient.isEmpty()) {
-						for (Endpoint end: targetClient.get(selectedBoard.getName())) {
-							end.emit(boardPathUpdate,selectedBoard.toString());
-						}
-					}
+			int drawn = currentPath.length();
+			int removed = currentPath.simplify(simplifyTolerance);
+			if(removed>0) log.info("simplified path from "+drawn+" to "+currentPath.length()+" points");
+			String change = selectedBoard.addPath(currentPath);
+			if (selectedBoard.isShared()) {
+				if(!selectedBoard.isRemote()) {
+					Endpoint.broadcast(listenersOf(selectedBoard.getName()), boardPathUpdate, change);
+				} else {
+					sendToOwner(boardPathUpdate, selectedBoard, change);
 				}
 			}
 		} else {
@@ -619,25 +1050,15 @@ public class WhiteboardApp {
 	 */
 	public void clearedLocally() {
 		if(selectedBoard!=null) {
-			if(!selectedBoard.clear(selectedBoard.getVersion())) {
-				// some other peer modified the board in between
-				drawSelectedWhiteboard();
-			} else {
-				// was accepted locally, so do remote stuff if needed
-				if (selectedBoard.isShared()) {
-					if(!selectedBoard.isRemote() && !this.epToPeerClient.isEmpty()) {
-						for (Endpoint end: epToPeerClient.get(selectedBoard.getName())) {
-							end.emit(boardClearUpdate,selectedBoard.toString());
-						}
-					}
-					if(selectedBoard.isRemote() && !this.targetClient.isEmpty()) {
-						for (Endpoint end: targetClient.get(selectedBoard.getName())) {
-							end.emit(boardClearUpdate, selectedBoard.toString());
-						}
-					}
+			String change = selectedBoard.clear();
+			if (selectedBoard.isShared()) {
+				if(!selectedBoard.isRemote()) {
+					Endpoint.broadcast(listenersOf(selectedBoard.getName()), boardClearUpdate, change);
+				} else {
+					sendToOwner(boardClearUpdate, selectedBoard, change);
 				}
-				drawSelectedWhiteboard();
 			}
+			drawSelectedWhiteboard();
 		} else {
 			log.severe("cleared without a selected board");
 		}
@@ -648,24 +1069,16 @@ public class WhiteboardApp {
 	 */
 	public void undoLocally() {
 		if(selectedBoard!=null) {
-			if(!selectedBoard.undo(selectedBoard.getVersion())) {
-				// some other peer modified the board in between
-				drawSelectedWhiteboard();
-			} else {
-				if (selectedBoard.isShared()) {
-					if(!selectedBoard.isRemote() && !this.epToPeerClient.isEmpty()) {
-						for (Endpoint end: epToPeerClient.get(selectedBoard.getName())) {
-							end.emit(boardUndoUpdate,selectedBoard.toString());
-						}
-					}
-					if(selectedBoard.isRemote() && !this.targetClient.isEmpty()) {
-						for (Endpoint end: targetClient.get(selectedBoard.getName())) {
-							end.emit(boardUndoUpdate, selectedBoard.toString());
-						}
-					}
+			String change = selectedBoard.undo();
+			if(change==null) return; // nothing to undo
+			if (selectedBoard.isShared()) {
+				if(!selectedBoard.isRemote()) {
+					Endpoint.broadcast(listenersOf(selectedBoard.getName()), boardUndoUpdate, change);
+				} else {
+					sendToOwner(boardUndoUpdate, selectedBoard, change);
 				}
-				drawSelectedWhiteboard();
 			}
+			drawSelectedWhiteboard();
 		} else {
 			log.severe("undo without a selected board");
 		}
@@ -678,91 +1091,7 @@ public class WhiteboardApp {
 		drawSelectedWhiteboard();
 		log.info("selected board: "+selectedBoard.getName());
 		if(selectedBoard.isRemote()) {
-
-			String[] parts = selectedBoard.getName().split(":",3);
-			ClientManager clientManager;
-			try {
-				clientManager = peerManager.connect(Integer.valueOf(parts[1]),parts[0]);
-			} catch (NumberFormatException e) {
-				System.out.println("Port is not a number: "+parts[1]);
-				return;
-			} catch (UnknownHostException e) {
-				System.out.println("Could not find the peer IP address: "+parts[0]);
-				return;
-			} catch (InterruptedException e) {
-				System.out.println("Interrupted");
-				return;
-			}
-
-			clientManager.on(PeerManager.peerStarted, (args) -> {
-				Endpoint endpoint = (Endpoint) args[0];
-				if (targetClient.get(selectedBoard.getName()) != null) {
-					targetClient.get(selectedBoard.getName()).add(endpoint);
-				}
-				else {
-					ArrayList<Endpoint> endpoints = new ArrayList<Endpoint>();
-					endpoints.add(endpoint);
-					targetClient.put(selectedBoard.getName(), endpoints);
-				}
-				endpoint.emit(getBoardData, selectedBoard.getName());
-				endpoint.on(boardData, (args1) -> {
-					// host:port:boardid%version%PATHS
-					String data = (String) args1[0];
-					String boardName = getBoardName(data);
-					String boardData = getBoardData(data);
-					selectedBoard.whiteboardFromString(boardName, boardData);
-					log.info("Received board data: " + data);
-					drawSelectedWhiteboard();
-					endpoint.emit(listenBoard, boardName);
-				}).on(boardPathUpdate, (args1) ->{
-					String data = (String) args1[0];
-					String boardName = getBoardName(data);
-					String boardData = getBoardData(data);
-					selectedBoard.whiteboardFromString(boardName, boardData);
-					log.info("Received updated path: " + data);
-					drawSelectedWhiteboard();
-				}).on(boardUndoUpdate, (args1) -> {
-					String data = (String) args1[0];
-					String boardName = getBoardName(data);
-					String boardData = getBoardData(data);
-					selectedBoard.whiteboardFromString(boardName, boardData);
-					log.info("Received undo path: " + data);
-					drawSelectedWhiteboard();
-				}).on(boardDeleted, (args1) -> {
-					String unshareboard = (String) args1[0];
-					deleteUnshareBoard(unshareboard);
-					endpoint.emit(unlistenBoard, unshareboard);
-				}).on(boardClearUpdate, (args1) -> {
-					String data = (String) args1[0];
-					String boardName = getBoardName(data);
-					String boardData = getBoardData(data);
-					selectedBoard.whiteboardFromString(boardName, boardData);
-					log.info("Received clear board: " + data);
-					drawSelectedWhiteboard();
-				}).on(boardClearAccepted, (args1) -> {
-					String data = (String) args1[0];
-					String boardName = getBoardName(data);
-					String boardData = getBoardData(data);
-					selectedBoard.whiteboardFromString(boardName, boardData);
-					log.info("acc clear board: " + data);
-					drawSelectedWhiteboard();
-				}).on(boardUndoAccepted, (args1) -> {
-					String data = (String) args1[0];
-					String boardName = getBoardName(data);
-					String boardData = getBoardData(data);
-					selectedBoard.whiteboardFromString(boardName, boardData);
-					log.info("acc undo path: " + data);
-					drawSelectedWhiteboard();
-				}).on(boardPathAccepted, (args1) ->{
-					String data = (String) args1[0];
-					String boardName = getBoardName(data);
-					String boardData = getBoardData(data);
-					selectedBoard.whiteboardFromString(boardName, boardData);
-					log.info("acc updated path: " + data);
-					drawSelectedWhiteboard();
-				});
-			});
-			clientManager.start();
+			listenToRemoteBoard(selectedBoard.getName());
 		}
 	}
 	
@@ -811,12 +1140,9 @@ public class WhiteboardApp {
 				}
 			}
 		}
-		if(!targetClient.isEmpty()){
-			for (String key : targetClient.keySet()) {
-				for (Endpoint EP : targetClient.get(key)){
-					EP.close();
-				}
-			}
+		synchronized(remoteChannels) {
+			remoteChannels.values().forEach((channel)->channel.close());
+			remoteChannels.clear();
 		}
 	    
 		peerManager.shutdown();
@@ -24,6 +24,27 @@ public class WhiteboardPath {
 	 */
 	Color color;
 	
+	/**
+	 * Replica that drew the path, or null if it has not been added to
+	 * a board yet.
+	 */
+	String replica=null;
+	
+	/**
+	 * Sequence number of the path among those drawn by its replica.
+	 */
+	long seq=0;
+	
+	/**
+	 * Logical clock of the path, which orders it on the board.
+	 */
+	long clock=0;
+	
+	/**
+	 * Whether the path was read from the compact encoding.
+	 */
+	boolean compact=false;
+	
 	/**
 	 * Create a new path with a color.
 	 * @param color
@@ -35,21 +56,50 @@ public class WhiteboardPath {
 	
 	/**
 	 * Initialize a path from a string, in the format color>POINTS, where
-	 * POINTS has format point>point>....
+	 * POINTS has format point>point>..., or in the compact format
+	 * color~ENCODED, as written by {@link #toString(boolean)}. In either
+	 * format color may be preceded by replica!seq!clock! to identify the path.
 	 * @param data
 	 */
 	public WhiteboardPath(String data) {
-		String[] parts = data.split(">");
 		points=new ArrayList<>();
 		this.color=Color.black;
+		int encoded = data.indexOf('~');
+		if(encoded>=0) {
+			compact=true;
+			parseHead(data.substring(0, encoded));
+			if(!PathCodec.decode(data, encoded+1, points)) {
+				log.severe("invalid path encoding ["+data+"]");
+			}
+			return;
+		}
+		String[] parts = data.split(">");
 		if(parts.length>=1) {
-			color=parseColor(parts[0]);
+			parseHead(parts[0]);
 			for(int i=1;i<parts.length;i++) {
 				points.add(new WhiteboardPoint(parts[i]));
 			}
 		}
 	}
 	
+	/**
+	 * Parse the id, if any, and the color of the path.
+	 * @param head [replica!seq!clock!]color
+	 */
+	private void parseHead(String head) {
+		String[] id = head.split("!");
+		if(id.length==4) {
+			try {
+				seq=Long.parseLong(id[1]);
+				clock=Long.parseLong(id[2]);
+				replica=id[0];
+			} catch (NumberFormatException e) {
+				log.warning("invalid path id ["+head+"]");
+			}
+		}
+		color=parseColor(id[id.length-1]);
+	}
+	
 	/**
 	 * Add a point to the class.
 	 * @param x
@@ -59,6 +109,60 @@ public class WhiteboardPath {
 		points.add(new WhiteboardPoint(x,y));
 	}
 	
+	/**
+	 * Identify the path, when it is added to a board.
+	 * @param replica
+	 * @param seq
+	 * @param clock
+	 */
+	void stamp(String replica, long seq, long clock) {
+		this.replica=replica;
+		this.seq=seq;
+		this.clock=clock;
+	}
+	
+	/**
+	 * 
+	 * @return replica!seq, which identifies the path on every copy of
+	 * the board, or null if it has not been added to a board yet
+	 */
+	public String getId() {
+		return replica==null?null:replica+"!"+seq;
+	}
+	
+	/**
+	 * 
+	 * @return the replica that drew the path
+	 */
+	public String getReplica() {
+		return replica;
+	}
+	
+	/**
+	 * 
+	 * @return the sequence number of the path among those drawn by
+	 * its replica
+	 */
+	public long getSeq() {
+		return seq;
+	}
+	
+	/**
+	 * 
+	 * @return the logical clock of the path
+	 */
+	public long getClock() {
+		return clock;
+	}
+	
+	/**
+	 * 
+	 * @return true if the path was read from the compact encoding
+	 */
+	public boolean isCompact() {
+		return compact;
+	}
+	
 	/**
 	 * 
 	 * @return the length of the path
@@ -67,6 +171,66 @@ public class WhiteboardPath {
 		return points.size();
 	}
 	
+	/**
+	 * Simplify the path with the Ramer-Douglas-Peucker algorithm, removing
+	 * points that are within a tolerance of the line through the points that
+	 * are kept either side of them. The first and last points are always kept.
+	 * @param tolerance in pixels, or 0 to keep every point
+	 * @return the number of points removed
+	 */
+	public int simplify(double tolerance) {
+		int n = points.size();
+		if(tolerance<=0 || n<=2) return 0;
+		double tolerance2 = tolerance*tolerance;
+		boolean[] keep = new boolean[n];
+		keep[0]=true;
+		keep[n-1]=true;
+		// spans still to be simplified, as pairs of first and last index
+		int[] stack = new int[2*n];
+		int top=0;
+		stack[top++]=0;
+		stack[top++]=n-1;
+		while(top>0) {
+			int last=stack[--top];
+			int first=stack[--top];
+			WhiteboardPoint a=points.get(first);
+			WhiteboardPoint b=points.get(last);
+			double dx=b.x-a.x, dy=b.y-a.y;
+			double length2=dx*dx+dy*dy;
+			double furthest=-1;
+			int index=-1;
+			for(int i=first+1;i<last;i++) {
+				WhiteboardPoint p=points.get(i);
+				double px=p.x-a.x, py=p.y-a.y;
+				double distance2;
+				if(length2==0) {
+					distance2=px*px+py*py;
+				} else {
+					// squared distance from the line through a and b
+					double cross=px*dy-py*dx;
+					distance2=cross*cross/length2;
+				}
+				if(distance2>furthest) {
+					furthest=distance2;
+					index=i;
+				}
+			}
+			if(index>=0 && furthest>tolerance2) {
+				keep[index]=true;
+				stack[top++]=first;
+				stack[top++]=index;
+				stack[top++]=index;
+				stack[top++]=last;
+			}
+		}
+		ArrayList<WhiteboardPoint> kept = new ArrayList<>();
+		for(int i=0;i<n;i++) {
+			if(keep[i]) kept.add(points.get(i));
+		}
+		points=kept;
+		return n-kept.size();
+	}
+	
 	/**
 	 * Draw the path on the given graphics resource.
 	 * @param g2
@@ -84,10 +248,29 @@ public class WhiteboardPath {
 	
 	/**
 	 * 
-	 * @return the path as a string in the format color>POINTS
+	 * @return the path as a string in the format color>POINTS, preceded
+	 * by replica!seq!clock! if it has been added to a board
 	 */
 	public String toString() {
+		return toString(false);
+	}
+	
+	/**
+	 * 
+	 * @param compact whether to write the points in the compact encoding
+	 * of {@link PathCodec}
+	 * @return the path as a string in the format color>POINTS, or
+	 * color~ENCODED if compact, preceded by replica!seq!clock! if it has
+	 * been added to a board
+	 */
+	public String toString(boolean compact) {
 		StringBuilder sb = new StringBuilder();
+		if(replica!=null) sb.append(replica+"!"+seq+"!"+clock+"!");
+		if(compact) {
+			sb.append(colorString()+"~");
+			PathCodec.encode(points, sb);
+			return sb.toString();
+		}
 		sb.append(colorString()+">");
 		for(int i=0;i<points.size();i++) {
 			sb.append(points.get(i).toString());
@@ -0,0 +1,485 @@
+package pb.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The index used by the {@link pb.IndexServer}. For each filename it keeps a
+ * {@link pb.index.PeerHeap} of the peers that have the file, ordered by the
+ * last time each peer was seen, so that the freshest peer for a file is
+ * available in O(1) and the top k peers in O(k log k). A reverse map from
+ * peer to its filenames lets a peer update reach every heap the peer is in.
+ * <br/>
+ * Filenames are spread over a number of shards by hash. There is no global
+ * lock: updates on different shards (and different files) proceed in
+ * parallel, and each heap has its own lock. Queries iterate over an
+ * immutable per-shard snapshot of the filenames, which is brought up to date
+ * from a log of changed filenames when read, so writers are never blocked by
+ * a query. The memory used by the index is estimated as entries are added
+ * and updates are refused once the configured limit is reached.
+ * <br/>
+ * Peers can be expired when they have not been seen for a given time, using
+ * a {@link pb.index.TimerWheel} that is advanced by {@link #expire(long)}, and
+ * the number of entries can be capped, in which case each shard evicts its
+ * least recently used files.
+ *
+ * @see {@link pb.index.PeerHeap}
+ *
+ */
+public class FileIndex {
+
+	/**
+	 * Largest number of shards an index may have.
+	 */
+	public static final int maxShards = 65536;
+
+	/**
+	 * Estimated bytes for a filename entry, excluding the characters.
+	 */
+	private static final long fileEntryBytes = 160;
+
+	/**
+	 * Estimated bytes for each peer that has a file.
+	 */
+	private static final long peerEntryBytes = 96;
+
+	/**
+	 * Number of slots in the expiry timer wheel.
+	 */
+	private static final int expirySlots = 64;
+
+	/**
+	 * A shard of the index.
+	 */
+	private static class Shard {
+		/**
+		 * "filename" to the heap of "PeerIP:PeerPort" strings that have that file.
+		 */
+		final Map<String,PeerHeap> files = new ConcurrentHashMap<>();
+
+		/**
+		 * Filenames that have been added to (or removed from) the shard since
+		 * the snapshot was last made.
+		 */
+		final Queue<String> changed = new ConcurrentLinkedQueue<>();
+
+		/**
+		 * Filenames in order of least recently used first, guarded by itself.
+		 */
+		final LinkedHashMap<String,Boolean> recency = new LinkedHashMap<>(16,0.75f,true);
+
+		/**
+		 * Number of (filename,peer) entries in the shard.
+		 */
+		final AtomicInteger entries = new AtomicInteger();
+
+		/**
+		 * Immutable list of filenames as of the last time it was made.
+		 */
+		volatile List<String> snapshot = Collections.emptyList();
+
+		/**
+		 * Bring the snapshot up to date, only readers need to take this lock.
+		 * @return the up to date snapshot
+		 */
+		List<String> snapshot() {
+			if(changed.isEmpty()) return snapshot;
+			synchronized(this) {
+				if(changed.isEmpty()) return snapshot;
+				Set<String> names = new LinkedHashSet<>(snapshot);
+				String filename;
+				while((filename=changed.poll())!=null) {
+					if(files.containsKey(filename)) {
+						names.add(filename);
+					} else {
+						names.remove(filename);
+					}
+				}
+				snapshot = Collections.unmodifiableList(new ArrayList<>(names));
+				return snapshot;
+			}
+		}
+	}
+
+	/**
+	 * The shards, the length is a power of two.
+	 */
+	private final Shard[] shards;
+
+	/**
+	 * "PeerIP:PeerPort" to the last time the peer has been seen.
+	 */
+	private final Map<String,Long> lastSeen = new ConcurrentHashMap<>();
+
+	/**
+	 * "PeerIP:PeerPort" to the filenames that the peer has.
+	 */
+	private final Map<String,Set<String>> peerFiles = new ConcurrentHashMap<>();
+
+	/**
+	 * Estimated number of bytes used by the index.
+	 */
+	private final AtomicLong memoryUsed = new AtomicLong();
+
+	/**
+	 * Upper limit on the estimated number of bytes used by the index.
+	 */
+	private final long maxMemory;
+
+	/**
+	 * Maximum number of (filename,peer) entries in each shard, beyond which
+	 * the least recently used filenames of the shard are evicted.
+	 */
+	private final long maxShardEntries;
+
+	/**
+	 * Time in ms after a peer was last seen that it expires, or 0 for never.
+	 */
+	private final long peerTtl;
+
+	/**
+	 * Peers waiting to be checked for expiry.
+	 */
+	private final TimerWheel expiryWheel;
+
+	/**
+	 * Initialise with a shard per available processor (rounded to a power of
+	 * two), no memory or entry limit and no expiry.
+	 */
+	public FileIndex() {
+		this(Runtime.getRuntime().availableProcessors(),Long.MAX_VALUE,Long.MAX_VALUE,0);
+	}
+
+	/**
+	 * Initialise with a number of shards and a memory limit.
+	 * @param numShards the number of shards, rounded up to a power of two,
+	 * from 1 to {@link #maxShards}
+	 * @param maxMemory the estimated number of bytes that the index may use
+	 */
+	public FileIndex(int numShards,long maxMemory) {
+		this(numShards,maxMemory,Long.MAX_VALUE,0);
+	}
+
+	/**
+	 * Initialise with a number of shards, a memory limit, an entry limit
+	 * and a peer expiry time.
+	 * @param numShards the number of shards, rounded up to a power of two,
+	 * from 1 to {@link #maxShards}
+	 * @param maxMemory the estimated number of bytes that the index may use
+	 * @param maxEntries the number of (filename,peer) entries the index may hold,
+	 * spread evenly over the shards
+	 * @param peerTtl time in ms after a peer was last seen that it expires,
+	 * or 0 for never
+	 */
+	public FileIndex(int numShards,long maxMemory,long maxEntries,long peerTtl) {
+		if(numShards<1 || numShards>maxShards)
+			throw new IllegalArgumentException("number of shards must be from 1 to "+maxShards+": "+numShards);
+		int n=1;
+		while(n<numShards) n<<=1;
+		shards = new Shard[n];
+		for(int i=0;i<n;i++) shards[i]=new Shard();
+		this.maxMemory=maxMemory;
+		this.maxShardEntries=maxEntries==Long.MAX_VALUE?Long.MAX_VALUE:Math.max(1, (maxEntries+n-1)/n);
+		this.peerTtl=peerTtl;
+		// one turn of the wheel covers the expiry time
+		expiryWheel = new TimerWheel(Math.max(1000, peerTtl/expirySlots), expirySlots);
+	}
+
+	/**
+	 * Record that the peer has the file.
+	 * @param filename
+	 * @param peer
+	 * @return true if the update was accepted, false if the index is full
+	 */
+	public boolean indexUpdate(String filename,String peer) {
+		return indexUpdateAll(Collections.singletonList(filename),peer).isEmpty();
+	}
+
+	/**
+	 * Record that the peer has all of the files. The peer's reverse entry is
+	 * looked up once for the whole batch.
+	 * @param filenames
+	 * @param peer
+	 * @return the filenames that were not accepted because the index is full
+	 */
+	public List<String> indexUpdateAll(List<String> filenames,String peer) {
+		List<String> rejected = new ArrayList<>();
+		// the reverse entry must be visible before we read the peer's time,
+		// so that a concurrent peerUpdate either sees the file or we see
+		// its new time; heaps ignore times that go backwards
+		Set<String> reverse = peerFiles.computeIfAbsent(peer, (p)->ConcurrentHashMap.newKeySet());
+		// announcing files is also proof of life
+		if(lastSeen.putIfAbsent(peer, System.currentTimeMillis())==null) scheduleExpiry(peer);
+		Set<Shard> touched = new HashSet<>();
+		for(String filename : filenames) {
+			Shard shard = shardFor(filename);
+			PeerHeap heap = shard.files.get(filename);
+			if(heap!=null && heap.contains(peer)) continue;
+			long cost = peerEntryBytes + (heap==null?fileEntryBytes+2L*filename.length():0);
+			if(memoryUsed.get()+cost>maxMemory) {
+				rejected.add(filename);
+				continue;
+			}
+			reverse.add(filename);
+			// the heap is updated inside compute so that it can't be removed
+			// by a concurrent delete in between
+			shard.files.compute(filename, (f,h)->{
+				if(h==null) {
+					h = new PeerHeap();
+					memoryUsed.addAndGet(fileEntryBytes+2L*f.length());
+					shard.changed.add(f);
+				}
+				if(h.add(peer, lastSeen.getOrDefault(peer, 0L))) {
+					memoryUsed.addAndGet(peerEntryBytes);
+					shard.entries.incrementAndGet();
+				}
+				return h;
+			});
+			touch(shard,filename);
+			touched.add(shard);
+		}
+		for(Shard shard : touched) {
+			evict(shard);
+		}
+		return rejected;
+	}
+
+	/**
+	 * Record that the peer no longer has the file. The file is removed
+	 * from the index once no peer has it.
+	 * @param filename
+	 * @param peer
+	 * @return true if the peer had the file
+	 */
+	public boolean indexDelete(String filename,String peer) {
+		Set<String> reverse = peerFiles.get(peer);
+		if(reverse!=null) reverse.remove(filename);
+		return removePeer(shardFor(filename),filename,peer);
+	}
+
+	/**
+	 * Remove a peer from the index, as though it had deleted all of its files.
+	 * The cost is proportional to the number of files the peer has.
+	 * @param peer
+	 * @return the number of files the peer had
+	 */
+	public int removePeer(String peer) {
+		lastSeen.remove(peer);
+		Set<String> filenames = peerFiles.remove(peer);
+		if(filenames==null) return 0;
+		int count=0;
+		for(String filename : filenames) {
+			if(removePeer(shardFor(filename),filename,peer)) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Advance the expiry timer wheel and remove every peer that has not been
+	 * seen within the expiry time. Peers that are not yet due are scheduled
+	 * again for when they will be.
+	 * @param now time in ms
+	 * @return the peers that expired
+	 */
+	public List<String> expire(long now) {
+		List<String> expired = new ArrayList<>();
+		if(peerTtl<=0) return expired;
+		for(String peer : expiryWheel.advance(now)) {
+			Long seen = lastSeen.get(peer);
+			if(seen==null) continue; // already removed
+			if(seen+peerTtl<=now) {
+				removePeer(peer);
+				expired.add(peer);
+			} else {
+				scheduleExpiry(peer);
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 *
+	 * @return the time between calls to {@link #expire(long)} in ms
+	 */
+	public long getExpiryTick() {
+		return expiryWheel.getTick();
+	}
+
+	/**
+	 * Record the time the peer was last seen and reorder the peer
+	 * in the heap of every file it has.
+	 * @param peer
+	 * @param time
+	 */
+	public void peerUpdate(String peer,long time) {
+		lastSeen.merge(peer, time, Math::max);
+		scheduleExpiry(peer);
+		Set<String> filenames = peerFiles.get(peer);
+		if(filenames==null) return;
+		for(String filename : filenames) {
+			PeerHeap heap = shardFor(filename).files.get(filename);
+			if(heap!=null) heap.update(peer, lastSeen.get(peer));
+		}
+	}
+
+	/**
+	 *
+	 * @param filename
+	 * @return the most recently seen peer that has the file, or null if
+	 * no peer has the file
+	 */
+	public String bestPeer(String filename) {
+		Shard shard = shardFor(filename);
+		PeerHeap heap = shard.files.get(filename);
+		if(heap==null) return null;
+		touch(shard,filename);
+		return heap.best();
+	}
+
+	/**
+	 *
+	 * @param filename
+	 * @param k
+	 * @return up to k peers that have the file, most recently seen first
+	 */
+	public List<String> topPeers(String filename,int k) {
+		Shard shard = shardFor(filename);
+		PeerHeap heap = shard.files.get(filename);
+		if(heap==null) return Collections.emptyList();
+		touch(shard,filename);
+		return heap.top(k);
+	}
+
+	/**
+	 *
+	 * @return the filenames currently in the index, made from the
+	 * snapshot of each shard
+	 */
+	public List<String> filenames() {
+		List<String> filenames = new ArrayList<>();
+		for(Shard shard : shards) {
+			filenames.addAll(shard.snapshot());
+		}
+		return filenames;
+	}
+
+	/**
+	 *
+	 * @return the estimated number of bytes used by the index
+	 */
+	public long memoryUsed() {
+		return memoryUsed.get();
+	}
+
+	/**
+	 *
+	 * @return the estimated number of bytes the index may use
+	 */
+	public long maxMemory() {
+		return maxMemory;
+	}
+
+	/**
+	 *
+	 * @return the number of (filename,peer) entries in the index
+	 */
+	public long size() {
+		long size=0;
+		for(Shard shard : shards) size+=shard.entries.get();
+		return size;
+	}
+
+	/**
+	 * Remove a peer from a file's heap and remove the file once no
+	 * peer has it.
+	 * @param shard
+	 * @param filename
+	 * @param peer
+	 * @return true if the peer had the file
+	 */
+	private boolean removePeer(Shard shard,String filename,String peer) {
+		boolean[] removed = new boolean[1];
+		shard.files.computeIfPresent(filename, (f,h)->{
+			if(h.remove(peer)) {
+				removed[0]=true;
+				memoryUsed.addAndGet(-peerEntryBytes);
+				shard.entries.decrementAndGet();
+			}
+			if(h.size()>0) return h;
+			memoryUsed.addAndGet(-(fileEntryBytes+2L*f.length()));
+			shard.changed.add(f);
+			synchronized(shard.recency) {
+				shard.recency.remove(f);
+			}
+			return null;
+		});
+		return removed[0];
+	}
+
+	/**
+	 * Evict the least recently used files of the shard until it is
+	 * within its entry limit.
+	 * @param shard
+	 */
+	private void evict(Shard shard) {
+		while(shard.entries.get()>maxShardEntries) {
+			String eldest;
+			synchronized(shard.recency) {
+				if(shard.recency.isEmpty()) return;
+				eldest = shard.recency.keySet().iterator().next();
+				shard.recency.remove(eldest);
+			}
+			PeerHeap heap = shard.files.get(eldest);
+			if(heap==null) continue;
+			for(String peer : heap.peers()) {
+				Set<String> reverse = peerFiles.get(peer);
+				if(reverse!=null) reverse.remove(eldest);
+				removePeer(shard,eldest,peer);
+			}
+		}
+	}
+
+	/**
+	 * Mark the file as recently used.
+	 * @param shard
+	 * @param filename
+	 */
+	private void touch(Shard shard,String filename) {
+		if(maxShardEntries==Long.MAX_VALUE) return; // no need to track
+		synchronized(shard.recency) {
+			shard.recency.put(filename, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Put the peer in the expiry wheel for when it will next be due.
+	 * @param peer
+	 */
+	private void scheduleExpiry(String peer) {
+		if(peerTtl<=0) return;
+		Long seen = lastSeen.get(peer);
+		if(seen!=null) expiryWheel.schedule(peer, seen+peerTtl);
+	}
+
+	/**
+	 *
+	 * @param filename
+	 * @return the shard that the filename belongs to
+	 */
+	private Shard shardFor(String filename) {
+		int h = filename.hashCode();
+		h ^= (h>>>16);
+		return shards[h & (shards.length-1)];
+	}
+}
@@ -0,0 +1,114 @@
+package pb.index;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Encodes lists of filenames as compressed batches for bulk index updates,
+ * see {@link pb.IndexServer#indexBulkUpdate}. A batch is the filenames
+ * separated by newlines, deflated and then Base64 encoded so that it can be
+ * sent as an event String. A filename that contains a newline, or that is
+ * too long for a batch, can't be put in one and must be sent on its own.
+ *
+ */
+public class FileListCodec {
+	private static Logger log = Logger.getLogger(FileListCodec.class.getName());
+
+	/**
+	 * Maximum number of uncompressed bytes in a batch. Filenames compress well
+	 * so the encoded batch stays well under the limit of a single message.
+	 * Batches that decompress to more than this are rejected.
+	 */
+	public static final int maxBatchBytes = 32*1024;
+
+	/**
+	 * Split the filenames into encoded batches.
+	 * @param filenames
+	 * @param unbatched the filenames that can't be put in a batch are
+	 * added to this list, to be sent on their own
+	 * @return list of encoded batches
+	 */
+	public static List<String> encode(List<String> filenames,List<String> unbatched) {
+		List<String> batches = new ArrayList<>();
+		StringBuilder sb = new StringBuilder();
+		int size=0; // UTF-8 bytes in the batch
+		for(String filename : filenames) {
+			int bytes = filename.getBytes(StandardCharsets.UTF_8).length;
+			if(filename.indexOf('\n')!=-1 || bytes>=maxBatchBytes) {
+				// can't be represented, or can't fit in a batch
+				log.warning("filename can't be sent in a batch: "
+						+(filename.length()>80?filename.substring(0, 80)+"...":filename));
+				unbatched.add(filename);
+				continue;
+			}
+			if(size>0 && size+1+bytes>maxBatchBytes) {
+				batches.add(compress(sb.toString()));
+				sb.setLength(0);
+				size=0;
+			}
+			if(size>0) {
+				sb.append('\n');
+				size++;
+			}
+			sb.append(filename);
+			size+=bytes;
+		}
+		if(sb.length()>0) batches.add(compress(sb.toString()));
+		return batches;
+	}
+
+	/**
+	 * Decode a batch back into filenames.
+	 * @param batch
+	 * @return the filenames, or null if the batch is malformed
+	 */
+	public static List<String> decode(String batch) {
+		String text = decompress(batch);
+		if(text==null) return null;
+		if(text.length()==0) return new ArrayList<>();
+		return Arrays.asList(text.split("\n"));
+	}
+
+	private static String compress(String text) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(text.getBytes(StandardCharsets.UTF_8));
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		while(!deflater.finished()) {
+			int n = deflater.deflate(buffer);
+			out.write(buffer, 0, n);
+		}
+		deflater.end();
+		return new String(Base64.encodeBase64(out.toByteArray()),StandardCharsets.US_ASCII);
+	}
+
+	private static String decompress(String batch) {
+		Inflater inflater = new Inflater();
+		inflater.setInput(Base64.decodeBase64(batch));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		try {
+			while(!inflater.finished()) {
+				int n = inflater.inflate(buffer);
+				if(n==0 && (inflater.needsInput() || inflater.needsDictionary())) return null;
+				out.write(buffer, 0, n);
+				if(out.size()>maxBatchBytes) return null; // not made by encode
+			}
+		} catch (DataFormatException e) {
+			return null;
+		} finally {
+			inflater.end();
+		}
+		return new String(out.toByteArray(),StandardCharsets.UTF_8);
+	}
+}
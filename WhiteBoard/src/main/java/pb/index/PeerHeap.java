@@ -0,0 +1,204 @@
+package pb.index;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * An indexed max-heap of "PeerIP:PeerPort" strings, ordered by the time that
+ * each peer was last seen. The index (peer to heap position) allows a peer's
+ * time to be updated in place in O(log n), while the most recently seen peer
+ * is always at the root and can be read in O(1). All methods are synchronized
+ * on the heap itself, so different heaps can be used concurrently.
+ *
+ * @see {@link pb.index.FileIndex}
+ *
+ */
+public class PeerHeap {
+
+	/**
+	 * Peers in heap order, only the first {@link #size} are valid.
+	 */
+	private String[] peers = new String[4];
+
+	/**
+	 * Last seen times, parallel to {@link #peers}.
+	 */
+	private long[] times = new long[4];
+
+	/**
+	 * Number of peers in the heap.
+	 */
+	private int size=0;
+
+	/**
+	 * Peer to its current position in the heap.
+	 */
+	private final Map<String,Integer> positions = new HashMap<>();
+
+	/**
+	 * Add a peer to the heap, or if it is already in the heap then update
+	 * its time as per {@link #update(String, long)}.
+	 * @param peer
+	 * @param lastSeen
+	 * @return true if the peer was not already in the heap
+	 */
+	public synchronized boolean add(String peer,long lastSeen) {
+		Integer pos = positions.get(peer);
+		if(pos!=null) {
+			update(peer,lastSeen);
+			return false;
+		}
+		if(size==peers.length) {
+			String[] newPeers = new String[size*2];
+			long[] newTimes = new long[size*2];
+			System.arraycopy(peers, 0, newPeers, 0, size);
+			System.arraycopy(times, 0, newTimes, 0, size);
+			peers=newPeers;
+			times=newTimes;
+		}
+		peers[size]=peer;
+		times[size]=lastSeen;
+		positions.put(peer, size);
+		siftUp(size++);
+		return true;
+	}
+
+	/**
+	 * Move a peer's time forward. Times never go backwards, so an
+	 * older time than the one already held is ignored.
+	 * @param peer
+	 * @param lastSeen
+	 * @return true if the peer is in the heap
+	 */
+	public synchronized boolean update(String peer,long lastSeen) {
+		Integer pos = positions.get(peer);
+		if(pos==null) return false;
+		if(lastSeen>times[pos]) {
+			times[pos]=lastSeen;
+			siftUp(pos);
+		}
+		return true;
+	}
+
+	/**
+	 * Remove a peer from the heap.
+	 * @param peer
+	 * @return true if the peer was in the heap
+	 */
+	public synchronized boolean remove(String peer) {
+		Integer pos = positions.remove(peer);
+		if(pos==null) return false;
+		size--;
+		if(pos!=size) {
+			long removedTime = times[pos];
+			move(size,pos);
+			if(times[pos]>removedTime) {
+				siftUp(pos);
+			} else {
+				siftDown(pos);
+			}
+		}
+		peers[size]=null;
+		return true;
+	}
+
+	/**
+	 *
+	 * @return the most recently seen peer, or null if the heap is empty
+	 */
+	public synchronized String best() {
+		return size==0?null:peers[0];
+	}
+
+	/**
+	 * Get up to k peers in order of most recently seen first, without
+	 * disturbing the heap. Only O(k log k) of the heap is visited.
+	 * @param k
+	 * @return list of at most k peers
+	 */
+	public synchronized List<String> top(int k) {
+		List<String> result = new ArrayList<>(Math.min(k, size));
+		if(size==0 || k<=0) return result;
+		PriorityQueue<Integer> frontier = new PriorityQueue<>(
+				(a,b)->Long.compare(times[b], times[a]));
+		frontier.add(0);
+		while(!frontier.isEmpty() && result.size()<k) {
+			int pos = frontier.poll();
+			result.add(peers[pos]);
+			int left = 2*pos+1;
+			if(left<size) frontier.add(left);
+			if(left+1<size) frontier.add(left+1);
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 * @return a copy of all of the peers in the heap, in no particular order
+	 */
+	public synchronized List<String> peers() {
+		List<String> result = new ArrayList<>(size);
+		for(int i=0;i<size;i++) result.add(peers[i]);
+		return result;
+	}
+
+	/**
+	 *
+	 * @param peer
+	 * @return true if the peer is in the heap
+	 */
+	public synchronized boolean contains(String peer) {
+		return positions.containsKey(peer);
+	}
+
+	/**
+	 *
+	 * @return the number of peers in the heap
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/*
+	 * Private methods to maintain the heap property.
+	 */
+
+	private void siftUp(int pos) {
+		String peer = peers[pos];
+		long time = times[pos];
+		while(pos>0) {
+			int parent = (pos-1)/2;
+			if(times[parent]>=time) break;
+			move(parent,pos);
+			pos=parent;
+		}
+		peers[pos]=peer;
+		times[pos]=time;
+		positions.put(peer, pos);
+	}
+
+	private void siftDown(int pos) {
+		String peer = peers[pos];
+		long time = times[pos];
+		while(true) {
+			int child = 2*pos+1;
+			if(child>=size) break;
+			if(child+1<size && times[child+1]>times[child]) child++;
+			if(time>=times[child]) break;
+			move(child,pos);
+			pos=child;
+		}
+		peers[pos]=peer;
+		times[pos]=time;
+		positions.put(peer, pos);
+	}
+
+	private void move(int from,int to) {
+		peers[to]=peers[from];
+		times[to]=times[from];
+		positions.put(peers[to], to);
+	}
+}
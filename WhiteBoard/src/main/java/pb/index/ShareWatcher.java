@@ -0,0 +1,185 @@
+package pb.index;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import pb.utils.Eventable;
+
+/**
+ * Keeps a manifest of the regular files in a share directory and watches the
+ * directory using a {@link java.nio.file.WatchService}. Whenever a file is
+ * added to or removed from the directory the manifest is updated and an
+ * event is emitted, so that only the changes need to be sent to the
+ * {@link pb.IndexServer}. Filenames are the directory path joined with the
+ * file's name, so they can be opened by the peer as given.
+ *
+ */
+public class ShareWatcher extends Eventable {
+	private static Logger log = Logger.getLogger(ShareWatcher.class.getName());
+
+	/**
+	 * Events emitted by the ShareWatcher
+	 */
+
+	/**
+	 * Emitted when a file has been added to the share directory.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String fileAdded = "FILE_ADDED";
+
+	/**
+	 * Emitted when a file has been removed from the share directory.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String fileRemoved = "FILE_REMOVED";
+
+	/**
+	 * The directory being watched.
+	 */
+	private final Path dir;
+
+	/**
+	 * The watch service for the directory.
+	 */
+	private final WatchService watchService;
+
+	/**
+	 * The filenames currently in the directory.
+	 */
+	private final Set<String> manifest = new HashSet<>();
+
+	/**
+	 * Initialise the watcher and make the initial manifest. The directory is
+	 * registered before it is scanned so that no change can be missed.
+	 * @param dir the share directory
+	 * @throws IOException if the directory can't be watched or read
+	 */
+	public ShareWatcher(Path dir) throws IOException {
+		this.dir=dir;
+		watchService = dir.getFileSystem().newWatchService();
+		dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE);
+		synchronized(manifest) {
+			manifest.addAll(scan());
+		}
+		setName("ShareWatcher");
+	}
+
+	/**
+	 *
+	 * @return a copy of the filenames currently in the share directory
+	 */
+	public List<String> getManifest() {
+		synchronized(manifest) {
+			return new ArrayList<String>(manifest);
+		}
+	}
+
+	/**
+	 * Stop watching the directory.
+	 */
+	public void shutDown() {
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			log.warning("exception closing watch service: "+e.getMessage());
+		}
+		interrupt();
+	}
+
+	/**
+	 * Wait for changes to the directory and emit them until shut down.
+	 */
+	@Override
+	public void run() {
+		log.info("watching share directory "+dir);
+		while(!isInterrupted()) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				break;
+			}
+			for(WatchEvent<?> event : key.pollEvents()) {
+				if(event.kind()==StandardWatchEventKinds.OVERFLOW) {
+					rescan();
+					continue;
+				}
+				String filename = dir.resolve((Path)event.context()).toString();
+				if(event.kind()==StandardWatchEventKinds.ENTRY_CREATE) {
+					if(!Files.isRegularFile(Path.of(filename))) continue;
+					added(filename);
+				} else if(event.kind()==StandardWatchEventKinds.ENTRY_DELETE) {
+					removed(filename);
+				}
+			}
+			if(!key.reset()) {
+				log.warning("share directory is no longer accessible: "+dir);
+				break;
+			}
+		}
+		log.info("stopped watching share directory "+dir);
+	}
+
+	/**
+	 * Some events were lost, so compare the directory with the manifest
+	 * and emit the differences.
+	 */
+	private void rescan() {
+		Set<String> current;
+		try {
+			current = scan();
+		} catch (IOException e) {
+			log.warning("could not rescan share directory: "+e.getMessage());
+			return;
+		}
+		for(String filename : getManifest()) {
+			if(!current.contains(filename)) removed(filename);
+		}
+		for(String filename : current) {
+			added(filename);
+		}
+	}
+
+	private void added(String filename) {
+		boolean isNew;
+		synchronized(manifest) {
+			isNew=manifest.add(filename);
+		}
+		if(isNew) emit(fileAdded,filename);
+	}
+
+	private void removed(String filename) {
+		boolean existed;
+		synchronized(manifest) {
+			existed=manifest.remove(filename);
+		}
+		if(existed) emit(fileRemoved,filename);
+	}
+
+	private Set<String> scan() throws IOException {
+		Set<String> filenames = new HashSet<>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for(Path path : stream) {
+				if(Files.isRegularFile(path)) filenames.add(path.toString());
+			}
+		}
+		return filenames;
+	}
+}
@@ -0,0 +1,89 @@
+package pb.index;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A simple timer wheel of keys. Each key is placed in the slot for the tick
+ * of its deadline and the wheel is advanced by a periodic sweep, which
+ * returns the keys of every slot passed over. The cost of a sweep is the
+ * number of keys that are due, not the number of keys scheduled. Deadlines
+ * more than one turn of the wheel away come out a turn early, so callers
+ * should check the key and schedule it again if it is not yet due.
+ * A key is in the wheel at most once.
+ *
+ */
+public class TimerWheel {
+
+	/**
+	 * Length of a tick in ms.
+	 */
+	private final long tick;
+
+	/**
+	 * The slots of the wheel.
+	 */
+	private final List<Set<String>> slots;
+
+	/**
+	 * Keys that are in the wheel.
+	 */
+	private final Set<String> scheduled = new HashSet<>();
+
+	/**
+	 * The last tick that has been swept, or -1 if none.
+	 */
+	private long currentTick=-1;
+
+	/**
+	 * Initialise the wheel.
+	 * @param tick length of a tick in ms
+	 * @param numSlots number of slots in the wheel
+	 */
+	public TimerWheel(long tick,int numSlots) {
+		this.tick=tick;
+		slots = new ArrayList<>(numSlots);
+		for(int i=0;i<numSlots;i++) slots.add(new HashSet<String>());
+	}
+
+	/**
+	 * Schedule a key, unless it is already in the wheel.
+	 * @param key
+	 * @param deadline time in ms that the key is due
+	 * @return true if the key was scheduled
+	 */
+	public synchronized boolean schedule(String key,long deadline) {
+		if(!scheduled.add(key)) return false;
+		long t = Math.max(deadline/tick, currentTick+1);
+		slots.get((int)(t%slots.size())).add(key);
+		return true;
+	}
+
+	/**
+	 * Advance the wheel to the given time.
+	 * @param now time in ms
+	 * @return the keys that are due, they are no longer in the wheel
+	 */
+	public synchronized List<String> advance(long now) {
+		List<String> due = new ArrayList<>();
+		long target = now/tick;
+		for(long t=Math.max(currentTick+1, target-slots.size()+1);t<=target;t++) {
+			Set<String> slot = slots.get((int)(t%slots.size()));
+			due.addAll(slot);
+			slot.clear();
+		}
+		currentTick=Math.max(currentTick, target);
+		scheduled.removeAll(due);
+		return due;
+	}
+
+	/**
+	 *
+	 * @return the length of a tick in ms
+	 */
+	public long getTick() {
+		return tick;
+	}
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
@@ -62,6 +63,25 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String sessionError="SESSION_ERROR";
 	
+	/**
+	 * Emitted straight after {@link #sessionStarted} when the server has
+	 * resumed the previous session, after the connection was lost.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String sessionResumed="SESSION_RESUMED";
+	
+	/**
+	 * Emitted when the manager has finished and will not connect again,
+	 * because the session ended cleanly, the manager was interrupted or it
+	 * gave up retrying.
+	 * <ul>
+	 * <li>{@code args[0] instanceof ClientManager}</li>
+	 * </ul>
+	 */
+	public static final String clientTerminated="CLIENT_TERMINATED";
+	
 	/**
 	 * The session protocol for this client, so we can stop the
 	 * session when we need to.
@@ -88,6 +108,44 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private boolean shouldWeRetry=false;
 	
+	/**
+	 * Whether a session was started on the current connection.
+	 */
+	private volatile boolean sessionEstablished=false;
+	
+	/**
+	 * Token given by the server to resume the session with, or null.
+	 */
+	private volatile String resumeToken=null;
+	
+	/**
+	 * Whether the server resumed the previous session.
+	 */
+	private volatile boolean resumed=false;
+	
+	/**
+	 * Maximum number of attempts to connect in a row without a session
+	 * being started.
+	 */
+	private int maxRetries=10;
+	
+	/**
+	 * Upper bound of the delay before the first retry, in milliseconds,
+	 * doubling for each further retry.
+	 */
+	private int retryBase=500;
+	
+	/**
+	 * Largest upper bound of the delay before a retry, in milliseconds.
+	 */
+	private int retryCap=30000;
+	
+	/**
+	 * Checks the liveness of the endpoint, shared with other managers,
+	 * or null.
+	 */
+	private volatile LivenessSweeper livenessSweeper=null;
+	
 	/**
 	 * Initialise the client manage with a host and port to connect to.
 	 * @param host
@@ -100,6 +158,37 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 		this.port=port;
 	}
 	
+	/**
+	 * Set how to retry when the connection fails, before the manager is
+	 * started.
+	 * @param maxRetries attempts in a row without a session before giving up
+	 * @param retryBase upper bound of the first delay, in milliseconds
+	 * @param retryCap largest upper bound of a delay, in milliseconds
+	 */
+	public void setRetries(int maxRetries,int retryBase,int retryCap) {
+		this.maxRetries=maxRetries;
+		this.retryBase=retryBase;
+		this.retryCap=retryCap;
+	}
+	
+	/**
+	 * 
+	 * @return the sweeper that checks the liveness of the endpoints, or null
+	 */
+	@Override
+	public LivenessSweeper getLivenessSweeper() {
+		return livenessSweeper;
+	}
+	
+	/**
+	 * Set the sweeper that checks the liveness of the endpoints, before
+	 * the manager is started. May be shared with other managers.
+	 * @param livenessSweeper or null for each endpoint to keep its own timer
+	 */
+	public void setLivenessSweeper(LivenessSweeper livenessSweeper) {
+		this.livenessSweeper=livenessSweeper;
+	}
+	
 	@Override
 	public void shutdown() {
 		sessionProtocol.stopSession();
@@ -107,16 +196,32 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	
 	@Override
 	public void run() {
-		int retries=10;
-		while(retries-- > 0) {
+		try {
+			connectAndRetry();
+		} finally {
+			localEmit(clientTerminated,this);
+		}
+	}
+	
+	/**
+	 * Keep connecting while the connection ends in error, until there
+	 * have been too many failures in a row.
+	 */
+	private void connectAndRetry() {
+		int failures=0;
+		while(failures < maxRetries) {
 			if(attemptToConnect(host,port)) {
 				// the connection ended in error, so let's just
 				// try to get it back up, transparently to the
 				// higher layer
+				if(sessionEstablished) failures=0; // it was working, so back off afresh
+				long delay = retryDelay(failures++);
+				log.info("retrying in "+delay+"ms");
 				try {
-					Thread.sleep(5000); // short pause before retrying
+					Thread.sleep(delay);
 				} catch (InterruptedException e) {
-					continue;
+					log.info("interrupted, not retrying");
+					return;
 				} 
 			} else {
 				// connection ended cleanly, so we can terminate this manager
@@ -126,6 +231,17 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 		log.severe("no more retries, giving up");
 		
 	}
+	
+	/**
+	 * Exponential backoff with full jitter, so that clients that lost
+	 * their connections at the same time don't all retry at the same time.
+	 * @param failures number of failed attempts so far
+	 * @return the delay before the next attempt, in milliseconds
+	 */
+	private long retryDelay(int failures) {
+		long bound = Math.min((long)retryCap, (long)retryBase << Math.min(failures, 20));
+		return ThreadLocalRandom.current().nextLong(bound+1);
+	}
 	/**
 	 * Attempt to connect.
 	 * @param host
@@ -135,6 +251,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	private boolean attemptToConnect(final String host,final int port) {
 		shouldWeRetry=false; // may be set to true by another thread
 						     // if errors occur on the connection
+		sessionEstablished=false;
 		log.info("attempting to connect to "+host+":"+port);
 		try {
 			socket=new Socket(InetAddress.getByName(host),port);
@@ -170,7 +287,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointReady(Endpoint endpoint) {
 		log.info("connection with server established");
-		sessionProtocol = new SessionProtocol(endpoint,this);
+		sessionProtocol = new SessionProtocol(endpoint,this,resumeToken);
 		try {
 			// we need to add it to the endpoint before starting it
 			endpoint.handleProtocol(sessionProtocol);
@@ -262,7 +379,31 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 			// hmmm... already requested by the client
 		}
 		
+		sessionEstablished=true;
 		localEmit(sessionStarted,endpoint);
+		if(resumed) localEmit(sessionResumed,endpoint);
+	}
+	
+	/**
+	 * The server has accepted the session, remember the token to present
+	 * if we have to reconnect.
+	 * @param endpoint
+	 * @param resumeToken
+	 * @param resumed
+	 */
+	@Override
+	public void sessionAccepted(Endpoint endpoint, String resumeToken, boolean resumed) {
+		if(resumed) log.info("server resumed the previous session");
+		this.resumeToken=resumeToken;
+		this.resumed=resumed;
+	}
+	
+	/**
+	 * Only received by servers.
+	 */
+	@Override
+	public String sessionRequested(Endpoint endpoint, String resumeToken) {
+		return null;
 	}
 
 	/**
@@ -272,6 +413,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void sessionStopped(Endpoint endpoint) {
 		log.info("session has stopped with server");
+		resumeToken=null;
 		localEmit(sessionStopped,endpoint);
 		endpoint.close(); // this will stop all the protocols as well
 	}
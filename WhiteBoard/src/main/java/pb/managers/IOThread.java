@@ -2,9 +2,16 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
 
 /**
@@ -14,6 +21,14 @@ import java.util.logging.Logger;
  * {@link pb.managers.ServerManager} is responsible for creating a thread for this
  * connection, else the IOThread will not accept any more connections until this
  * connection is finished.
+ * <br/>
+ * To cope with many clients connecting at once, e.g. reconnecting after a
+ * network blip, there can be a number of acceptor threads, with a larger
+ * accept backlog. The acceptors then only accept and hand the sockets off
+ * to a pool of workers that create the endpoints, so that they get back to
+ * accepting straight away. Where the platform supports SO_REUSEPORT each
+ * acceptor can have its own server socket, so that the kernel spreads the
+ * connections over the acceptors rather than them contending for one.
  * 
  * @see {@link pb.managers.ServerManager}
  * @author aaron
@@ -25,6 +40,27 @@ public class IOThread extends Thread {
 	private int port;
 	private ServerManager serverManager;
 	
+	/**
+	 * Default length of the queue of connections waiting to be accepted.
+	 */
+	public static final int defaultBacklog = 50;
+	
+	/**
+	 * Server sockets of the other acceptors, when each has its own.
+	 */
+	private final List<ServerSocket> otherSockets = new ArrayList<>();
+	
+	/**
+	 * Threads accepting connections, other than this one.
+	 */
+	private final List<Thread> acceptors = new ArrayList<>();
+	
+	/**
+	 * Workers that accepted sockets are handed off to, or null to pass
+	 * them to the server manager on the accepting thread.
+	 */
+	private ExecutorService handoff=null;
+	
 	/**
 	 * Emitted when the io thread has started. The argument
 	 * provides the io thread's Internet address in the 
@@ -50,19 +86,91 @@ public class IOThread extends Thread {
 		start();
 	}
 	
+	/**
+	 * Initialise the IOThread with a number of acceptor threads, which
+	 * hand accepted sockets off to as many workers.
+	 * @param port to listen on
+	 * @param serverManager to send connections to
+	 * @param backlog length of the queue of connections waiting to be
+	 * accepted, of each server socket
+	 * @param numAcceptors number of threads accepting connections,
+	 * including this one
+	 * @param reusePort whether to give each acceptor its own server socket
+	 * using SO_REUSEPORT, which is ignored if the platform doesn't support it
+	 * @throws IOException whenever a server socket can't be created
+	 */
+	public IOThread(int port, ServerManager serverManager, int backlog, int numAcceptors,
+			boolean reusePort) throws IOException{
+		serverSocket = new ServerSocket();
+		reusePort = reusePort && numAcceptors>1 &&
+				serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		if(reusePort) serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		serverSocket.bind(new InetSocketAddress(port), backlog);
+		// in case the port was 0
+		this.port=serverSocket.getLocalPort();
+		this.serverManager=serverManager;
+		setName("IOThread");
+		try {
+			for(int i=1;i<numAcceptors;i++) {
+				ServerSocket socket = serverSocket;
+				if(reusePort) {
+					socket = new ServerSocket();
+					socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+					otherSockets.add(socket);
+					socket.bind(new InetSocketAddress(this.port), backlog);
+				}
+				final ServerSocket acceptorSocket = socket;
+				Thread acceptor = new Thread(()->{
+					accept(acceptorSocket);
+				}, "IOThread-acceptor-"+i);
+				acceptor.setDaemon(true);
+				acceptors.add(acceptor);
+			}
+		} catch (IOException e) {
+			closeSockets();
+			throw e;
+		}
+		if(numAcceptors>1) {
+			handoff = Executors.newFixedThreadPool(numAcceptors, (runnable)->{
+				Thread thread = new Thread(runnable, "IOThread-handoff");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		log.info("accepting with "+numAcceptors+" threads, backlog "+backlog+
+				(reusePort?", a server socket each":""));
+		start();
+	}
+	
 	/**
 	 * Close the server socket and make sure the thread terminates.
 	 */
 	public void shutDown() {
-		if(serverSocket!=null)
-			try {
-				serverSocket.close();
-			} catch (IOException e) {
-				log.warning("exception closing server socket: "+e.getMessage());
-			}
+		closeSockets();
 		interrupt();
 	}
 	
+	private void closeSockets() {
+		List<ServerSocket> sockets = new ArrayList<>(otherSockets);
+		sockets.add(serverSocket);
+		for(ServerSocket socket : sockets) {
+			if(socket!=null)
+				try {
+					socket.close();
+				} catch (IOException e) {
+					log.warning("exception closing server socket: "+e.getMessage());
+				}
+		}
+	}
+	
+	/**
+	 * 
+	 * @return the port being listened on
+	 */
+	public int getPort() {
+		return port;
+	}
+	
 	/**
 	 * Listen for connections and pass them to the ServerManager.
 	 */
@@ -75,21 +183,51 @@ public class IOThread extends Thread {
 			log.severe("Could not get address of local host, continuing anyway, assuming 127.0.0.1");
 			serverManager.emit(ioThread,"127.0.0.1:"+port);
 		}
-		while(!isInterrupted() && !serverSocket.isClosed()){
+		acceptors.forEach((acceptor)->acceptor.start());
+		accept(serverSocket);
+		log.info("IOThread terminating");
+		closeSockets();
+		for(Thread acceptor : acceptors) {
+			try {
+				acceptor.join();
+			} catch (InterruptedException e) {
+				// the acceptors terminate once their sockets are closed
+			}
+		}
+		// sockets already handed off still get their endpoints
+		if(handoff!=null) handoff.shutdown();
+	}
+	
+	/**
+	 * Accept connections on a server socket until it is closed.
+	 * @param socket
+	 */
+	private void accept(ServerSocket socket) {
+		while(!isInterrupted() && !socket.isClosed()){
 			Socket clientSocket;
 			try {
-				clientSocket = serverSocket.accept();
-				log.info("Received connection from "+clientSocket.getInetAddress());
-				serverManager.acceptClient(clientSocket);
+				clientSocket = socket.accept();
 			} catch (IOException e) {
-				log.warning("exception accepting connection: "+e.getMessage());
-			} 
-		}
-		log.info("IOThread terminating");
-		try {
-			serverSocket.close();
-		} catch (IOException e) {
-			log.warning("exception closing server socket: "+e.getMessage());
+				if(!socket.isClosed()) log.warning("exception accepting connection: "+e.getMessage());
+				continue;
+			}
+			log.info("Received connection from "+clientSocket.getInetAddress());
+			if(handoff==null) {
+				serverManager.acceptClient(clientSocket);
+				continue;
+			}
+			try {
+				handoff.execute(()->{
+					serverManager.acceptClient(clientSocket);
+				});
+			} catch (RejectedExecutionException e) {
+				// shutting down
+				try {
+					clientSocket.close();
+				} catch (IOException e1) {
+					log.warning("exception closing client socket: "+e1.getMessage());
+				}
+			}
 		}
 	}
 }
@@ -0,0 +1,168 @@
+package pb.managers;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.utils.Utils;
+
+/**
+ * Checks the liveness of all of the endpoints of a manager in one periodic
+ * pass, rather than each {@link KeepAliveProtocol} keeping timer callbacks
+ * of its own. Each protocol is given a slot, and the time that it is next
+ * due to be checked is kept in a primitive array indexed by slot, so a pass
+ * is a scan of that array that only calls the protocols that are due. There
+ * is only ever one timer callback outstanding, whatever the number of
+ * endpoints, and none at all while there are no endpoints.
+ * <br/>
+ * A protocol is checked with {@link KeepAliveProtocol#check(long)}, which
+ * returns the next time it is due, or -1 when it has stopped, which frees
+ * its slot.
+ *
+ * @see {@link pb.protocols.keepalive.IKeepAliveProtocolHandler#getLivenessSweeper()}
+ *
+ */
+public class LivenessSweeper {
+	private static Logger log = Logger.getLogger(LivenessSweeper.class.getName());
+
+	/**
+	 * Default time between passes in milliseconds.
+	 */
+	public static final int defaultPeriod = 1000;
+
+	/**
+	 * Time between passes in milliseconds.
+	 */
+	private final int period;
+
+	/**
+	 * The protocol in each slot, null if the slot is free.
+	 */
+	private KeepAliveProtocol[] protocols = new KeepAliveProtocol[16];
+
+	/**
+	 * Time in milliseconds that the protocol in each slot is next due.
+	 */
+	private long[] deadlines = new long[16];
+
+	/**
+	 * Stack of free slots below {@link #high}.
+	 */
+	private int[] free = new int[16];
+
+	/**
+	 * Number of slots on the free stack.
+	 */
+	private int numFree=0;
+
+	/**
+	 * Slots from here up have never been used.
+	 */
+	private int high=0;
+
+	/**
+	 * Whether a pass is scheduled.
+	 */
+	private boolean scheduled=false;
+
+	/**
+	 * Initialise the sweeper with the default period.
+	 */
+	public LivenessSweeper() {
+		this(defaultPeriod);
+	}
+
+	/**
+	 * Initialise the sweeper.
+	 * @param period time between passes in milliseconds, which is how late
+	 * a protocol may be checked
+	 */
+	public LivenessSweeper(int period) {
+		this.period=period;
+	}
+
+	/**
+	 * Add a protocol to be checked.
+	 * @param protocol
+	 * @param deadline time in milliseconds that it is first due
+	 */
+	public synchronized void add(KeepAliveProtocol protocol,long deadline) {
+		int slot;
+		if(numFree>0) {
+			slot=free[--numFree];
+		} else {
+			if(high==protocols.length) {
+				protocols=Arrays.copyOf(protocols, high*2);
+				deadlines=Arrays.copyOf(deadlines, high*2);
+				free=Arrays.copyOf(free, high*2);
+			}
+			slot=high++;
+		}
+		protocols[slot]=protocol;
+		deadlines[slot]=deadline;
+		if(!scheduled) {
+			scheduled=true;
+			Utils.getInstance().setTimeout(()->{
+				sweep();
+			}, period);
+		}
+	}
+
+	/**
+	 *
+	 * @return the number of protocols being checked
+	 */
+	public synchronized int size() {
+		return high-numFree;
+	}
+
+	/**
+	 * Check the protocols that are due. They are checked outside of the lock,
+	 * since a check may send a request or time the endpoint out.
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		int[] due;
+		KeepAliveProtocol[] dueProtocols;
+		int numDue=0;
+		synchronized(this) {
+			due = new int[high];
+			for(int i=0;i<high;i++) {
+				if(protocols[i]!=null && deadlines[i]<=now) due[numDue++]=i;
+			}
+			dueProtocols = new KeepAliveProtocol[numDue];
+			for(int i=0;i<numDue;i++) dueProtocols[i]=protocols[due[i]];
+		}
+		long[] next = new long[numDue];
+		for(int i=0;i<numDue;i++) {
+			try {
+				next[i]=dueProtocols[i].check(now);
+			} catch (RuntimeException e) {
+				log.severe("liveness check failed: "+e.getMessage());
+				next[i]=-1;
+			}
+		}
+		synchronized(this) {
+			for(int i=0;i<numDue;i++) {
+				int slot=due[i];
+				if(protocols[slot]!=dueProtocols[i]) continue;
+				if(next[i]<0) {
+					protocols[slot]=null;
+					free[numFree++]=slot;
+				} else {
+					deadlines[slot]=next[i];
+				}
+			}
+			if(numFree==high) {
+				// nothing left to check, so stop until something is added
+				high=0;
+				numFree=0;
+				scheduled=false;
+				return;
+			}
+		}
+		Utils.getInstance().setTimeout(()->{
+			sweep();
+		}, period);
+	}
+}
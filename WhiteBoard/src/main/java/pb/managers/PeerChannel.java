@@ -0,0 +1,95 @@
+package pb.managers;
+
+import pb.protocols.event.IEventCallback;
+import pb.utils.Eventable;
+
+/**
+ * A named channel over a connection to a peer that may be shared with other
+ * channels, e.g. one channel for each board being listened to on a peer.
+ * Callbacks added to the channel receive only the events from the peer
+ * whose data names this channel, as well as the {@link PeerManager#peerStarted},
+ * {@link PeerManager#peerStopped}, {@link PeerManager#peerError} and
+ * {@link PeerManager#peerTerminated} events of the connection. After
+ * {@link PeerManager#peerTerminated} the channel is closed and a new one
+ * has to be opened to reach the peer again. Add the callbacks and then call {@link #open()}; if the
+ * connection is already up then {@link PeerManager#peerStarted} is emitted
+ * straight away.
+ *
+ * @see {@link pb.managers.PeerManager#openChannel(int, String, String)}
+ *
+ */
+public class PeerChannel extends Eventable {
+
+	/**
+	 * The connection this channel is on.
+	 */
+	private final PeerConnection connection;
+
+	/**
+	 * Name of this channel.
+	 */
+	private final String channelName;
+
+	/**
+	 * Initialise the channel.
+	 * @param connection
+	 * @param channelName
+	 */
+	PeerChannel(PeerConnection connection,String channelName) {
+		this.connection=connection;
+		this.channelName=channelName;
+	}
+
+	/**
+	 * Start receiving events on this channel.
+	 */
+	public void open() {
+		connection.open(this);
+	}
+
+	/**
+	 * Stop receiving events on this channel. The connection is closed
+	 * once it has had no open channels for the idle timeout.
+	 */
+	public void close() {
+		connection.close(this);
+	}
+
+	/**
+	 * Send an event to the peer.
+	 * @param eventName
+	 * @param eventData
+	 * @return true if the event was sent, false if the connection is not
+	 * currently up
+	 */
+	public boolean send(String eventName,String eventData) {
+		return connection.send(eventName, eventData);
+	}
+
+	/**
+	 *
+	 * @return the name of this channel
+	 */
+	public String getChannelName() {
+		return channelName;
+	}
+
+	/**
+	 *
+	 * @return host:port of the peer
+	 */
+	public String getPeer() {
+		return connection.getKey();
+	}
+
+	@Override
+	public synchronized Eventable on(String eventName, IEventCallback callback) {
+		super.on(eventName, callback);
+		if(!eventName.equals(PeerManager.peerStarted) && !eventName.equals(PeerManager.peerStopped)
+				&& !eventName.equals(PeerManager.peerError)
+				&& !eventName.equals(PeerManager.peerTerminated)) {
+			connection.addEventName(eventName);
+		}
+		return this;
+	}
+}
@@ -0,0 +1,295 @@
+package pb.managers;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import pb.managers.endpoint.Endpoint;
+import pb.utils.Utils;
+
+/**
+ * A single client connection to a peer, shared by all of the
+ * {@link PeerChannel}s open to that peer. Received events are passed to the
+ * channel named by their data. Each event name is only registered once on
+ * the endpoint, whatever the number of channels. When the last channel is
+ * closed the connection is idle, and it is shut down if no channel is opened
+ * again within the idle timeout. If the client manager terminates, e.g.
+ * because it gave up retrying, the connection is removed from the peer
+ * manager and the channels are told with {@link PeerManager#peerTerminated}.
+ *
+ * @see {@link pb.managers.PeerManager#openChannel(int, String, String)}
+ *
+ */
+class PeerConnection {
+	private static Logger log = Logger.getLogger(PeerConnection.class.getName());
+
+	/**
+	 * The peer manager this connection belongs to.
+	 */
+	private final PeerManager peerManager;
+
+	/**
+	 * host:port of the peer.
+	 */
+	private final String key;
+
+	/**
+	 * Gives the channel name of the data of a received event.
+	 */
+	private final Function<String,String> channelOf;
+
+	/**
+	 * The client manager of the connection.
+	 */
+	private final ClientManager clientManager;
+
+	/**
+	 * Endpoint of the current session, null when there is none.
+	 */
+	private Endpoint endpoint=null;
+
+	/**
+	 * Open channels by name.
+	 */
+	private final Map<String,PeerChannel> channels = new HashMap<>();
+
+	/**
+	 * Names of the events that channels have callbacks for.
+	 */
+	private final Set<String> eventNames = new HashSet<>();
+
+	/**
+	 * Names of the events registered on the current endpoint.
+	 */
+	private final Set<String> registered = new HashSet<>();
+
+	/**
+	 * Incremented every time the connection becomes idle, so that an
+	 * eviction scheduled earlier can tell that it is stale.
+	 */
+	private long idleCount=0;
+
+	/**
+	 * Initialise the connection, it must be started with {@link #start()}.
+	 * @param peerManager
+	 * @param serverPort
+	 * @param host
+	 * @param channelOf
+	 * @throws UnknownHostException
+	 * @throws InterruptedException
+	 */
+	PeerConnection(PeerManager peerManager,int serverPort,String host,
+			Function<String,String> channelOf) throws UnknownHostException, InterruptedException {
+		this.peerManager=peerManager;
+		this.key=host+":"+serverPort;
+		this.channelOf=channelOf;
+		clientManager = peerManager.connect(serverPort, host);
+		clientManager.on(PeerManager.peerStarted, (args)->{
+			sessionStarted((Endpoint)args[0]);
+		}).on(PeerManager.peerStopped, (args)->{
+			sessionEnded(PeerManager.peerStopped,(Endpoint)args[0]);
+		}).on(PeerManager.peerError, (args)->{
+			sessionEnded(PeerManager.peerError,(Endpoint)args[0]);
+		}).on(PeerManager.peerTerminated, (args)->{
+			terminated();
+		});
+	}
+
+	/**
+	 * Start connecting to the peer.
+	 */
+	void start() {
+		clientManager.start();
+	}
+
+	/**
+	 *
+	 * @return host:port of the peer
+	 */
+	String getKey() {
+		return key;
+	}
+
+	/**
+	 *
+	 * @return the client manager of the connection
+	 */
+	ClientManager getClientManager() {
+		return clientManager;
+	}
+
+	/**
+	 *
+	 * @param name
+	 * @return the open channel with the given name, or null
+	 */
+	synchronized PeerChannel getChannel(String name) {
+		return channels.get(name);
+	}
+
+	/**
+	 * Add a channel, telling it straight away if the session has
+	 * already started.
+	 * @param channel
+	 */
+	void open(PeerChannel channel) {
+		Endpoint current;
+		synchronized(this) {
+			channels.put(channel.getChannelName(), channel);
+			current=endpoint;
+		}
+		if(current!=null) channel.localEmit(PeerManager.peerStarted, current, clientManager);
+	}
+
+	/**
+	 * Remove a channel. If it was the last one then the connection is
+	 * shut down after the idle timeout, unless a channel is opened again.
+	 * @param channel
+	 */
+	void close(PeerChannel channel) {
+		long count;
+		synchronized(this) {
+			if(channels.get(channel.getChannelName())!=channel) return;
+			channels.remove(channel.getChannelName());
+			if(!channels.isEmpty()) return;
+			count=++idleCount;
+		}
+		Utils.getInstance().setTimeout(()->{
+			peerManager.evict(this,count);
+		}, peerManager.getIdleTimeout());
+	}
+
+	/**
+	 * Cancel any eviction that is scheduled, because a channel is about to
+	 * be opened. If it never is, the connection is evicted after the idle
+	 * timeout as usual.
+	 */
+	void reserve() {
+		long count;
+		synchronized(this) {
+			count=++idleCount;
+			if(!channels.isEmpty()) return;
+		}
+		Utils.getInstance().setTimeout(()->{
+			peerManager.evict(this,count);
+		}, peerManager.getIdleTimeout());
+	}
+
+	/**
+	 *
+	 * @param count the idle count when the eviction was scheduled
+	 * @return true if the connection has been idle since then
+	 */
+	synchronized boolean isIdle(long count) {
+		return channels.isEmpty() && count==idleCount;
+	}
+
+	/**
+	 * Shut the connection down.
+	 */
+	void shutdown() {
+		boolean connected;
+		synchronized(this) {
+			connected = endpoint!=null;
+		}
+		log.info("closing idle connection to "+key);
+		if(connected) {
+			clientManager.shutdown();
+		} else {
+			clientManager.interrupt();
+		}
+	}
+
+	/**
+	 * Make sure that received events with the given name are passed to
+	 * the channels.
+	 * @param eventName
+	 */
+	void addEventName(String eventName) {
+		Endpoint current;
+		synchronized(this) {
+			if(!eventNames.add(eventName)) return;
+			current=endpoint;
+		}
+		if(current!=null) register(current,eventName);
+	}
+
+	/**
+	 * Send an event to the peer, without calling any of the local
+	 * callbacks for the event.
+	 * @param eventName
+	 * @param eventData
+	 * @return true if the event was sent
+	 */
+	boolean send(String eventName,String eventData) {
+		Endpoint current;
+		synchronized(this) {
+			current=endpoint;
+		}
+		if(current==null) return false;
+		return Endpoint.broadcast(List.of(current), eventName, eventData)==1;
+	}
+
+	private void sessionStarted(Endpoint newEndpoint) {
+		List<String> names;
+		List<PeerChannel> open;
+		synchronized(this) {
+			endpoint=newEndpoint;
+			registered.clear();
+			names = new ArrayList<String>(eventNames);
+			open = new ArrayList<PeerChannel>(channels.values());
+		}
+		for(String eventName : names) {
+			register(newEndpoint,eventName);
+		}
+		for(PeerChannel channel : open) {
+			channel.localEmit(PeerManager.peerStarted, newEndpoint, clientManager);
+		}
+	}
+
+	private void sessionEnded(String eventName,Endpoint oldEndpoint) {
+		List<PeerChannel> open;
+		synchronized(this) {
+			if(endpoint==oldEndpoint) endpoint=null;
+			open = new ArrayList<PeerChannel>(channels.values());
+		}
+		for(PeerChannel channel : open) {
+			channel.localEmit(eventName, oldEndpoint, clientManager);
+		}
+	}
+
+	private void terminated() {
+		peerManager.remove(this);
+		List<PeerChannel> open;
+		synchronized(this) {
+			endpoint=null;
+			open = new ArrayList<PeerChannel>(channels.values());
+			channels.clear();
+		}
+		if(!open.isEmpty()) log.warning("connection to "+key+" has terminated");
+		for(PeerChannel channel : open) {
+			channel.localEmit(PeerManager.peerTerminated, clientManager);
+		}
+	}
+
+	private void register(Endpoint current,String eventName) {
+		synchronized(this) {
+			if(current!=endpoint || !registered.add(eventName)) return;
+		}
+		current.on(eventName, (args)->{
+			if(args.length<1 || !(args[0] instanceof String)) return;
+			PeerChannel channel = getChannel(channelOf.apply((String) args[0]));
+			if(channel!=null) {
+				channel.localEmit(eventName, args);
+			} else {
+				log.info("no channel for "+eventName+" from "+key);
+			}
+		});
+	}
+}
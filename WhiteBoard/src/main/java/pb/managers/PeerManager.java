@@ -1,8 +1,11 @@
 package pb.managers;
 
 import java.net.UnknownHostException;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
@@ -55,6 +58,20 @@ public class PeerManager extends Manager {
 	 */
 	public static final String peerError = "PEER_ERROR";
 	
+	/**
+	 * Emitted straight after {@link #peerStarted} when the session resumed
+	 * a previous session that ended in error.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * <li>{@code args[1] instanceof ServerManager}</li>
+	 * <li>{@code args[2] instanceof Endpoint} the endpoint of the previous session</li>
+	 * </ul>
+	 * Note that this event is also emitted on new client managers and
+	 * in this case {@code args[1] instanceof ClientManager} and there
+	 * is no {@code args[2]}
+	 */
+	public static final String peerResumed = "PEER_RESUMED";
+	
 	/**
 	 * ServerManager has been initialized but not started.
 	 * <ul>
@@ -63,6 +80,15 @@ public class PeerManager extends Manager {
 	 */
 	public static final String peerServerManager = "PEER_SERVER_MANAGER";
 	
+	/**
+	 * Emitted on a client manager when it has finished and will not
+	 * connect again, e.g. because it gave up retrying.
+	 * <ul>
+	 * <li>{@code args[0] instanceof ClientManager}</li>
+	 * </ul>
+	 */
+	public static final String peerTerminated = "PEER_TERMINATED";
+	
 	/**
 	 * The client managers are for connecting to the server and other peers.
 	 */
@@ -77,6 +103,29 @@ public class PeerManager extends Manager {
 	 * My server port
 	 */
 	private int myServerPort;
+
+	/**
+	 * Shared connections to other peers, by host:port.
+	 */
+	private final Map<String,PeerConnection> connections = new HashMap<>();
+
+	/**
+	 * Time in ms that a shared connection is kept with no open channels.
+	 */
+	private int idleTimeout = 30000;
+
+	/**
+	 * Gives the channel name of the data of an event received on a shared
+	 * connection. By default it is the data up to the first '%', which is
+	 * the board name for the whiteboard events.
+	 */
+	private Function<String,String> channelOf = (data)->data.split("%",2)[0];
+	
+	/**
+	 * Checks the liveness of the endpoints of the server manager and of
+	 * all of the client managers, in one periodic pass.
+	 */
+	private final LivenessSweeper livenessSweeper = new LivenessSweeper();
 	
 	/**
 	 * Initialize with a port for the server manager for this peer
@@ -84,7 +133,7 @@ public class PeerManager extends Manager {
 	 * @param myServerPort
 	 */
 	public PeerManager(int myServerPort) {
-		clientManagers = new HashSet<>();
+		clientManagers = ConcurrentHashMap.newKeySet();
 		this.myServerPort=myServerPort;
 	}
 	
@@ -107,6 +156,7 @@ public class PeerManager extends Manager {
 	 */
 	public ClientManager connect(int serverPort,String host) throws UnknownHostException, InterruptedException {
 		ClientManager clientManager = new ClientManager(host,serverPort);
+		clientManager.setLivenessSweeper(livenessSweeper);
 		clientManagers.add(clientManager);
 		clientManager.on(ClientManager.sessionStarted, (args)->{
 			Endpoint client = (Endpoint)args[0];
@@ -117,10 +167,99 @@ public class PeerManager extends Manager {
 		}).on(ClientManager.sessionError, (args)->{
 			Endpoint client = (Endpoint)args[0];
 			clientManager.emit(peerError, client,clientManager);
+		}).on(ClientManager.sessionResumed, (args)->{
+			Endpoint client = (Endpoint)args[0];
+			clientManager.emit(peerResumed, client,clientManager);
+		}).on(ClientManager.clientTerminated, (args)->{
+			clientManagers.remove(clientManager);
+			clientManager.localEmit(peerTerminated, clientManager);
 		});
 		return clientManager;
 	}
 	
+	/**
+	 * Open a channel to another peer, over a connection that is shared by
+	 * all channels to that peer. The connection is made when the first
+	 * channel is opened and closed once it has had no open channels for the
+	 * idle timeout. If the connection's client manager gives up then the
+	 * channels get {@link #peerTerminated} and the next channel opened to
+	 * the peer makes a new connection. If a channel with the same name is
+	 * already open then that channel is returned. Add callbacks to the
+	 * channel and then call {@link PeerChannel#open()}.
+	 * @param serverPort the port of the peer to connect to
+	 * @param host the hostname of the peer to connect to
+	 * @param channelName
+	 * @return the channel
+	 * @throws UnknownHostException
+	 * @throws InterruptedException
+	 */
+	public PeerChannel openChannel(int serverPort,String host,String channelName) throws UnknownHostException, InterruptedException {
+		synchronized(connections) {
+			String key = host+":"+serverPort;
+			PeerConnection connection = connections.get(key);
+			if(connection==null) {
+				connection = new PeerConnection(this,serverPort,host,channelOf);
+				connections.put(key, connection);
+				connection.start();
+			}
+			// evict it if the channel is never opened, and otherwise
+			// keep it from being evicted before the channel is opened
+			connection.reserve();
+			PeerChannel channel = connection.getChannel(channelName);
+			if(channel==null) channel = new PeerChannel(connection,channelName);
+			return channel;
+		}
+	}
+
+	/**
+	 * Shut down a shared connection if it is still idle.
+	 * @param connection
+	 * @param idleCount the connection's idle count when the eviction was scheduled
+	 */
+	void evict(PeerConnection connection,long idleCount) {
+		synchronized(connections) {
+			if(!connection.isIdle(idleCount)) return;
+			connections.remove(connection.getKey());
+		}
+		clientManagers.remove(connection.getClientManager());
+		connection.shutdown();
+	}
+
+	/**
+	 * Forget a shared connection whose client manager has terminated, so
+	 * that it isn't reused.
+	 * @param connection
+	 */
+	void remove(PeerConnection connection) {
+		synchronized(connections) {
+			connections.remove(connection.getKey(), connection);
+		}
+	}
+
+	/**
+	 *
+	 * @return time in ms that a shared connection is kept with no open channels
+	 */
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * @param idleTimeout time in ms that a shared connection is kept with
+	 * no open channels
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout=idleTimeout;
+	}
+
+	/**
+	 * @param channelOf gives the channel name of the data of an event
+	 * received on a shared connection
+	 */
+	public void setChannelOf(Function<String,String> channelOf) {
+		this.channelOf=channelOf;
+	}
+	
 	/**
 	 * Close the server and all remaining connections.
 	 * We will do a graceful shutdown here, to allow any other peers that
@@ -139,6 +278,7 @@ public class PeerManager extends Manager {
 	public void run() {
 		// initialize a server manager for other peers to connect to
 		serverManager=new ServerManager(myServerPort);
+		serverManager.setLivenessSweeper(livenessSweeper);
 		// setup the callbacks for when another peer connects to this peer
 		serverManager.on(ServerManager.sessionStarted, (args)->{
 			Endpoint client = (Endpoint)args[0];
@@ -149,6 +289,9 @@ public class PeerManager extends Manager {
 		}).on(ServerManager.sessionError, (args)->{
 			Endpoint client = (Endpoint)args[0];
 			localEmit(peerError,client,serverManager);
+		}).on(ServerManager.sessionResumed, (args)->{
+			Endpoint client = (Endpoint)args[0];
+			localEmit(peerResumed,client,serverManager,args[1]);
 		});
 		localEmit(peerServerManager,serverManager);
 		serverManager.start();
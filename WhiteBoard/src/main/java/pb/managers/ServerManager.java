@@ -1,9 +1,20 @@
 package pb.managers;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
@@ -16,6 +27,8 @@ import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
 import pb.protocols.session.SessionProtocol;
+import pb.utils.TokenBucket;
+import pb.utils.Utils;
 
 
 /**
@@ -63,6 +76,17 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String sessionError="SESSION_ERROR";
 	
+	/**
+	 * Emitted straight after {@link #sessionStarted} when the client has
+	 * resumed a previous session, so that any state kept for the previous
+	 * endpoint can be moved over to the new one.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint} the new endpoint</li>
+	 * <li>{@code args[1] instanceof Endpoint} the endpoint of the previous session</li>
+	 * </ul>
+	 */
+	public static final String sessionResumed="SESSION_RESUMED";
+	
 	/**
 	 * Emitted when a session should shutdown. Message is reason
 	 * for shutting down.
@@ -125,6 +149,118 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private String password=null;
 	
+	/**
+	 * Resume token to the endpoint of its session. The token of a session
+	 * that ended in error is kept for the resume timeout, so that the client
+	 * can resume the session when it reconnects. Also synchronizes
+	 * {@link #endpointTokens} and {@link #resumedFrom}.
+	 */
+	private final Map<String,Endpoint> resumeTokens = new HashMap<>();
+	
+	/**
+	 * Endpoint to its resume token.
+	 */
+	private final Map<Endpoint,String> endpointTokens = new HashMap<>();
+	
+	/**
+	 * New endpoint to the endpoint of the session that it resumed, until
+	 * its session has started.
+	 */
+	private final Map<Endpoint,Endpoint> resumedFrom = new HashMap<>();
+	
+	/**
+	 * How long in milliseconds a session that ended in error can be resumed
+	 * for. Sessions can't be resumed if it is not positive.
+	 */
+	private volatile int resumeTimeout=60000;
+	
+	/**
+	 * Checks the liveness of all of the endpoints in one periodic pass.
+	 */
+	private volatile LivenessSweeper livenessSweeper = new LivenessSweeper();
+	
+	/**
+	 * Worker loops that the events of endpoints are handled on, or null to
+	 * handle them on each endpoint's own thread.
+	 */
+	private ExecutorService[] shards=null;
+	
+	/**
+	 * Used to spread endpoints over the shards when they connect.
+	 */
+	private final AtomicInteger nextShard = new AtomicInteger();
+	
+	/**
+	 * Number of threads accepting connections.
+	 */
+	private int numAcceptors=1;
+	
+	/**
+	 * Length of the queue of connections waiting to be accepted.
+	 */
+	private int backlog=IOThread.defaultBacklog;
+	
+	/**
+	 * Whether each acceptor has its own server socket, where supported.
+	 */
+	private boolean reusePort=false;
+	
+	/**
+	 * Messages per second that each endpoint may send, or 0 for no limit.
+	 */
+	private volatile double messagesPerSecond=0;
+	
+	/**
+	 * Characters per second that each endpoint may send, or 0 for no limit.
+	 */
+	private volatile double bytesPerSecond=0;
+	
+	/**
+	 * Events per second that each endpoint may send, by event name.
+	 */
+	private final Map<String,Double> eventRates = new HashMap<>();
+	
+	/**
+	 * System load per processor above which no new clients are admitted,
+	 * or 0 to not check the load.
+	 */
+	private volatile double maxLoad=0;
+	
+	/**
+	 * Number of received events waiting to be handled on the worker loops
+	 * above which no new clients are admitted, or 0 to not check it.
+	 */
+	private volatile int maxQueueDepth=0;
+	
+	/**
+	 * Number of received events waiting to be handled on the worker loops
+	 * above which the client with the most waiting has its session stopped,
+	 * or 0 to never stop sessions.
+	 */
+	private volatile int shedQueueDepth=0;
+	
+	/**
+	 * Time in milliseconds that a client whose session was stopped to shed
+	 * load has to end it, before it is disconnected.
+	 */
+	private volatile int shedTimeout=5000;
+	
+	/**
+	 * Clients whose sessions have been stopped to shed load, until they
+	 * end or are disconnected, so that they aren't asked again.
+	 */
+	private final Set<Endpoint> shedding = ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * Time in milliseconds between checks of the load and queue depth.
+	 */
+	private int admissionPeriod=1000;
+	
+	/**
+	 * Whether new clients are currently being turned away.
+	 */
+	private volatile boolean overloaded=false;
+	
 	/**
 	 * Initialise the ServerManager with a port number for the io thread to listen on.
 	 * @param port to use when creating the io thread
@@ -174,6 +310,255 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		ioThread.shutDown();
 	}
 	
+	/**
+	 * 
+	 * @param resumeTimeout how long in milliseconds a session that ended in
+	 * error can be resumed for, or 0 to not allow sessions to be resumed
+	 */
+	public void setResumeTimeout(int resumeTimeout) {
+		this.resumeTimeout=resumeTimeout;
+	}
+	
+	/**
+	 * 
+	 * @return how long in milliseconds a session that ended in error can
+	 * be resumed for, or 0 if sessions can't be resumed
+	 */
+	public int getResumeTimeout() {
+		return Math.max(resumeTimeout, 0);
+	}
+	
+	/**
+	 * 
+	 * @return the sweeper that checks the liveness of the endpoints, or null
+	 */
+	@Override
+	public LivenessSweeper getLivenessSweeper() {
+		return livenessSweeper;
+	}
+	
+	/**
+	 * Set the sweeper that checks the liveness of the endpoints, before
+	 * the manager is started. May be shared with other managers.
+	 * @param livenessSweeper or null for each endpoint to keep its own timer
+	 */
+	public void setLivenessSweeper(LivenessSweeper livenessSweeper) {
+		this.livenessSweeper=livenessSweeper;
+	}
+	
+	/**
+	 * Handle the events of endpoints on a number of worker loops, rather
+	 * than on each endpoint's own thread. Endpoints are spread over the
+	 * loops as they connect, and can be moved with
+	 * {@link #assignShard(Endpoint, String)}. Must be called before the
+	 * manager is started.
+	 * @param numShards number of worker loops, usually one per core
+	 */
+	public void setShards(int numShards) {
+		shards = new ExecutorService[numShards];
+		for(int i=0;i<numShards;i++) {
+			final String name = "ServerManager-shard-"+i;
+			shards[i] = Executors.newSingleThreadExecutor((runnable)->{
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+	
+	/**
+	 * 
+	 * @return the number of worker loops, or 0 if events are handled on
+	 * each endpoint's own thread
+	 */
+	public int getNumShards() {
+		return shards==null?0:shards.length;
+	}
+	
+	/**
+	 * 
+	 * @param key e.g. a board name
+	 * @return the worker loop for everything to do with the key, or null
+	 * if there are no worker loops
+	 */
+	public Executor shardFor(String key) {
+		if(shards==null) return null;
+		return shards[Math.floorMod(key.hashCode(), shards.length)];
+	}
+	
+	/**
+	 * Move an endpoint to the worker loop for a key, so that the endpoints
+	 * with the same key, e.g. listening to the same board, are handled on
+	 * the same loop. Does nothing if there are no worker loops.
+	 * @param endpoint
+	 * @param key
+	 */
+	public void assignShard(Endpoint endpoint, String key) {
+		Executor shard = shardFor(key);
+		if(shard!=null) endpoint.setDispatcher(shard);
+	}
+	
+	/**
+	 * Accept connections on a number of threads, which hand them off to
+	 * as many workers to create the endpoints, e.g. to cope with many
+	 * clients reconnecting at once. Must be called before the manager
+	 * is started.
+	 * @param numAcceptors number of threads accepting connections
+	 * @param backlog length of the queue of connections waiting to be accepted
+	 * @param reusePort whether to give each acceptor its own server socket
+	 * using SO_REUSEPORT, where the platform supports it
+	 */
+	public void setAcceptors(int numAcceptors, int backlog, boolean reusePort) {
+		this.numAcceptors=numAcceptors;
+		this.backlog=backlog;
+		this.reusePort=reusePort;
+	}
+	
+	/**
+	 * Limit the rate that each client may send messages at. A client over
+	 * the limit is not read from until it is back under it, which holds it
+	 * back without affecting other clients.
+	 * @param messagesPerSecond or 0 for no limit
+	 * @param bytesPerSecond characters per second, or 0 for no limit
+	 */
+	public void setRateLimits(double messagesPerSecond, double bytesPerSecond) {
+		this.messagesPerSecond=messagesPerSecond;
+		this.bytesPerSecond=bytesPerSecond;
+	}
+	
+	/**
+	 * Limit the rate that each client may send an event at. Events over
+	 * the limit are dropped. Applies to sessions started after it is set.
+	 * @param eventName
+	 * @param eventsPerSecond or 0 for no limit
+	 */
+	public void setEventRateLimit(String eventName, double eventsPerSecond) {
+		synchronized(eventRates) {
+			if(eventsPerSecond>0) {
+				eventRates.put(eventName, eventsPerSecond);
+			} else {
+				eventRates.remove(eventName);
+			}
+		}
+	}
+	
+	/**
+	 * Turn new clients away while the server is overloaded, and stop the
+	 * sessions of the clients with the most events waiting to be handled
+	 * when it is badly overloaded. The queue depths only apply when there
+	 * are worker loops, see {@link #setShards(int)}. Must be called before
+	 * the manager is started.
+	 * @param maxLoad system load average per processor above which new clients
+	 * are turned away, or 0 to not check it
+	 * @param maxQueueDepth events waiting to be handled above which new
+	 * clients are turned away, or 0 to not check it
+	 * @param shedQueueDepth events waiting to be handled above which sessions
+	 * are stopped, or 0 to never stop sessions
+	 */
+	public void setAdmissionControl(double maxLoad, int maxQueueDepth, int shedQueueDepth) {
+		this.maxLoad=maxLoad;
+		this.maxQueueDepth=maxQueueDepth;
+		this.shedQueueDepth=shedQueueDepth;
+	}
+	
+	/**
+	 * 
+	 * @param shedTimeout time in milliseconds that a client whose session
+	 * was stopped to shed load has to end it, before it is disconnected
+	 */
+	public void setShedTimeout(int shedTimeout) {
+		this.shedTimeout=shedTimeout;
+	}
+	
+	/**
+	 * 
+	 * @return true if new clients are currently being turned away
+	 */
+	public boolean isOverloaded() {
+		return overloaded;
+	}
+	
+	/**
+	 * Check the load and queue depth, and check again after the admission
+	 * period for as long as the server is accepting clients.
+	 */
+	private void checkAdmission() {
+		if(ioThread==null || !ioThread.isAlive()) return;
+		List<Endpoint> currentEndpoints;
+		synchronized(liveEndpoints) {
+			currentEndpoints = new ArrayList<>(liveEndpoints);
+		}
+		int depth=0;
+		Endpoint deepest=null;
+		int deepestSize=0;
+		for(Endpoint endpoint : currentEndpoints) {
+			int size=endpoint.getInboxSize();
+			depth+=size;
+			if(size>deepestSize && !shedding.contains(endpoint)) {
+				deepest=endpoint;
+				deepestSize=size;
+			}
+		}
+		double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+		// not available on all platforms
+		if(load>=0) load/=Runtime.getRuntime().availableProcessors();
+		boolean wasOverloaded=overloaded;
+		overloaded = (maxLoad>0 && load>maxLoad) || (maxQueueDepth>0 && depth>maxQueueDepth);
+		if(overloaded!=wasOverloaded) {
+			log.warning((overloaded?"overloaded, turning new clients away":"no longer overloaded")+
+					", load "+String.format("%.2f", load)+", queue depth "+depth);
+		}
+		if(shedQueueDepth>0 && depth>shedQueueDepth && deepest!=null) {
+			log.warning("shedding client "+deepest.getOtherEndpointId()+" with "+deepestSize+
+					" events waiting, queue depth "+depth);
+			SessionProtocol sessionProtocol=(SessionProtocol) deepest.getProtocol("SessionProtocol");
+			if(sessionProtocol!=null) {
+				shedding.add(deepest);
+				sessionProtocol.stopSession();
+				disconnectIfLive(deepest);
+			} else {
+				deepest.close();
+			}
+		}
+		Utils.getInstance().setTimeout(()->{
+			checkAdmission();
+		}, admissionPeriod);
+	}
+	
+	/**
+	 * Disconnect a client whose session was stopped to shed load, if it
+	 * is still connected after the shed timeout, e.g. because it ignored
+	 * the session stop.
+	 * @param endpoint
+	 */
+	private void disconnectIfLive(Endpoint endpoint) {
+		Utils.getInstance().setTimeout(()->{
+			shedding.remove(endpoint);
+			boolean live;
+			synchronized(liveEndpoints) {
+				live=liveEndpoints.contains(endpoint);
+			}
+			if(live) {
+				log.warning("client "+endpoint.getOtherEndpointId()+" did not stop its session, disconnecting it");
+				endpoint.close();
+			}
+		}, shedTimeout);
+	}
+	
+	/**
+	 * Give an event protocol the event rate limits, with its own buckets.
+	 * @param eventProtocol
+	 */
+	private void limitEvents(EventProtocol eventProtocol) {
+		Map<String,TokenBucket> eventLimits = new HashMap<>();
+		synchronized(eventRates) {
+			eventRates.forEach((eventName,rate)->{
+				eventLimits.put(eventName, new TokenBucket(rate,Math.max(1, rate)));
+			});
+		}
+		if(!eventLimits.isEmpty()) eventProtocol.setEventLimits(eventLimits);
+	}
+	
 	/**
 	 * Convenience wrapper
 	 * @return the number of live endpoints
@@ -190,11 +575,12 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		// when the IO thread terminates, and all endpoints have terminated,
 		// then the server will terminate
 		try {
-			ioThread = new IOThread(port,this);
+			ioThread = new IOThread(port,this,backlog,numAcceptors,reusePort);
 		} catch (IOException e1) {
 			log.severe("could not start the io thread");
 			return;
 		}
+		if(maxLoad>0 || maxQueueDepth>0 || shedQueueDepth>0) checkAdmission();
 		
 		try {
 			// just wait for this thread to terminate
@@ -258,6 +644,9 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 				});
 			}
 		}
+		if(shards!=null) {
+			for(ExecutorService shard : shards) shard.shutdown();
+		}
 		log.info("terminated");
 	}
 	
@@ -287,9 +676,23 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			endpoint.close(); // we'll kill it here
 			return;
 		}
+		if(overloaded) {
+			log.warning("turning away client "+endpoint.getOtherEndpointId()+" while overloaded");
+			endpoint.close();
+			return;
+		}
 		synchronized(liveEndpoints) {
 			liveEndpoints.add(endpoint);
 		}
+		if(messagesPerSecond>0 || bytesPerSecond>0) {
+			// allow a second's worth in a burst
+			endpoint.setRateLimits(
+					messagesPerSecond>0?new TokenBucket(messagesPerSecond,Math.max(1, messagesPerSecond)):null,
+					bytesPerSecond>0?new TokenBucket(bytesPerSecond,Math.max(1, bytesPerSecond)):null);
+		}
+		if(shards!=null) {
+			endpoint.setDispatcher(shards[Math.floorMod(nextShard.getAndIncrement(), shards.length)]);
+		}
 		
 		if(password!=null) {
 			// listen for admin client events
@@ -345,6 +748,58 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		synchronized(liveEndpoints) {
 			liveEndpoints.remove(endpoint);
 		}
+		// the token is still held if the session didn't stop cleanly,
+		// so keep it for a while for the client to resume with
+		String token;
+		synchronized(resumeTokens) {
+			token=endpointTokens.get(endpoint);
+		}
+		if(token!=null) {
+			Utils.getInstance().setTimeout(()->{
+				synchronized(resumeTokens) {
+					if(resumeTokens.get(token)==endpoint) resumeTokens.remove(token);
+					endpointTokens.remove(endpoint);
+				}
+			}, resumeTimeout);
+		}
+	}
+	
+	/**
+	 * A client has requested a session. If it presents the token of a
+	 * session that can still be resumed then the new session takes over
+	 * that token, otherwise it is given a new one.
+	 * @param endpoint
+	 * @param resumeToken the token presented by the client, or null
+	 * @return the token for the session, or null if sessions can't be resumed
+	 */
+	@Override
+	public String sessionRequested(Endpoint endpoint, String resumeToken) {
+		if(resumeTimeout<=0) return null;
+		synchronized(resumeTokens) {
+			if(resumeToken!=null) {
+				Endpoint previous = resumeTokens.get(resumeToken);
+				if(previous!=null && previous!=endpoint) {
+					log.info("client "+endpoint.getOtherEndpointId()+" is resuming its previous session");
+					resumeTokens.put(resumeToken, endpoint);
+					endpointTokens.remove(previous);
+					endpointTokens.put(endpoint, resumeToken);
+					resumedFrom.put(endpoint, previous);
+					return resumeToken;
+				}
+			}
+			String token = UUID.randomUUID().toString();
+			resumeTokens.put(token, endpoint);
+			endpointTokens.put(endpoint, token);
+			return token;
+		}
+	}
+	
+	/**
+	 * Only received by clients.
+	 */
+	@Override
+	public void sessionAccepted(Endpoint endpoint, String resumeToken, boolean resumed) {
+		// nothing to do
 	}
 
 	/**
@@ -365,6 +820,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		
 		// now start the event protocol
 		EventProtocol eventProtocol = new EventProtocol(endpoint,this);
+		limitEvents(eventProtocol);
 		try {
 			endpoint.handleProtocol(eventProtocol);
 			eventProtocol.startAsServer();
@@ -376,6 +832,11 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		// could have been received at this point
 		localEmit(sessionStarted,endpoint);
 		
+		Endpoint previous;
+		synchronized(resumeTokens) {
+			previous=resumedFrom.remove(endpoint);
+		}
+		if(previous!=null) localEmit(sessionResumed,endpoint,previous);
 	}
 
 	/**
@@ -389,6 +850,12 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	public void sessionStopped(Endpoint endpoint) {
 		log.info("session has stopped with client: "+endpoint.getOtherEndpointId());
 		
+		// stopped cleanly, so the session won't be resumed
+		synchronized(resumeTokens) {
+			String token = endpointTokens.remove(endpoint);
+			if(token!=null) resumeTokens.remove(token);
+		}
+		
 		localEmit(sessionStopped,endpoint);
 		
 		// we can now signal the client endpoint to close and forget this client
@@ -405,6 +872,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	@Override
 	public boolean protocolRequested(Endpoint endpoint, Protocol protocol) {
+		if(protocol instanceof EventProtocol) limitEvents((EventProtocol)protocol);
 		// the only protocols in this system are this kind...
 		try {
 			((IRequestReplyProtocol)protocol).startAsServer();
@@ -0,0 +1,129 @@
+package pb.managers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import pb.managers.endpoint.Endpoint;
+
+/**
+ * A registry of endpoints subscribed to named topics, so that a server can
+ * send an event to only the endpoints that are interested in it. The cost
+ * of publishing to a topic is proportional to the number of subscribers of
+ * the topic rather than the number of connections. A reverse map from
+ * endpoint to its topics lets all of an endpoint's subscriptions be removed
+ * as soon as its session ends. All methods can be called from any thread.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint}
+ *
+ */
+public class SubscriptionRegistry {
+
+	/**
+	 * Topic to the endpoints subscribed to it.
+	 */
+	private final Map<String,Set<Endpoint>> topics = new ConcurrentHashMap<>();
+
+	/**
+	 * Endpoint to the topics it is subscribed to.
+	 */
+	private final Map<Endpoint,Set<String>> subscriptions = new ConcurrentHashMap<>();
+
+	/**
+	 * Subscribe the endpoint to the topic.
+	 * @param endpoint
+	 * @param topic
+	 */
+	public void subscribe(Endpoint endpoint,String topic) {
+		subscriptions.computeIfAbsent(endpoint, (e)->ConcurrentHashMap.newKeySet()).add(topic);
+		topics.compute(topic, (t,subscribers)->{
+			if(subscribers==null) subscribers=ConcurrentHashMap.newKeySet();
+			subscribers.add(endpoint);
+			return subscribers;
+		});
+	}
+
+	/**
+	 * Unsubscribe the endpoint from the topic.
+	 * @param endpoint
+	 * @param topic
+	 */
+	public void unsubscribe(Endpoint endpoint,String topic) {
+		Set<String> endpointTopics = subscriptions.get(endpoint);
+		if(endpointTopics!=null) endpointTopics.remove(topic);
+		removeSubscriber(topic,endpoint);
+	}
+
+	/**
+	 * Remove all of the endpoint's subscriptions, e.g. when its session
+	 * has ended.
+	 * @param endpoint
+	 */
+	public void unsubscribeAll(Endpoint endpoint) {
+		Set<String> endpointTopics = subscriptions.remove(endpoint);
+		if(endpointTopics==null) return;
+		for(String topic : endpointTopics) {
+			removeSubscriber(topic,endpoint);
+		}
+	}
+
+	/**
+	 *
+	 * @param topic
+	 * @return the endpoints subscribed to the topic
+	 */
+	public Collection<Endpoint> subscribers(String topic) {
+		Set<Endpoint> subscribers = topics.get(topic);
+		if(subscribers==null) return Collections.emptyList();
+		return new ArrayList<Endpoint>(subscribers);
+	}
+
+	/**
+	 *
+	 * @param topics
+	 * @return the endpoints subscribed to any of the topics, each
+	 * endpoint appears once
+	 */
+	public Collection<Endpoint> subscribers(List<String> topics) {
+		Set<Endpoint> subscribers = new HashSet<>();
+		for(String topic : topics) {
+			Set<Endpoint> topicSubscribers = this.topics.get(topic);
+			if(topicSubscribers!=null) subscribers.addAll(topicSubscribers);
+		}
+		return subscribers;
+	}
+
+	/**
+	 * Send an event to every endpoint subscribed to any of the topics. The
+	 * event is serialised once for all of them.
+	 * @see {@link pb.managers.endpoint.Endpoint#broadcast(Collection, String, String)}
+	 * @param topics
+	 * @param eventName
+	 * @param eventData
+	 * @return the number of endpoints the event was sent to
+	 */
+	public int publish(List<String> topics,String eventName,String eventData) {
+		return Endpoint.broadcast(subscribers(topics), eventName, eventData);
+	}
+
+	/**
+	 *
+	 * @return the number of endpoints with at least one subscription
+	 */
+	public int numSubscribers() {
+		return subscriptions.size();
+	}
+
+	private void removeSubscriber(String topic,Endpoint endpoint) {
+		// drop topics that have no subscribers left
+		topics.computeIfPresent(topic, (t,subscribers)->{
+			subscribers.remove(endpoint);
+			return subscribers.isEmpty()?null:subscribers;
+		});
+	}
+}
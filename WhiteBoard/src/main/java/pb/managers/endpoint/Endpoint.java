@@ -3,19 +3,34 @@ package pb.managers.endpoint;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UTFDataFormatException;
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.DataFormatException;
 import java.util.logging.Logger;
 
 import pb.utils.Eventable;
+import pb.utils.TokenBucket;
 import pb.utils.Utils;
+import pb.protocols.EncodedMessage;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.protocols.event.EventCredit;
 import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventPublisher;
+import pb.protocols.event.EventRequest;
 import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.ICallback;
 import pb.protocols.IRequestReplyProtocol;
@@ -23,14 +38,20 @@ import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
 import pb.protocols.session.SessionProtocol;
+import pb.protocols.session.SessionStartReply;
+import pb.protocols.session.SessionStartRequest;
 
 /**
  * The endpoint is a thread that blocking reads incoming messages (on a socket)
  * and sends them to the appropriate protocol for processing; thus a
  * thread-per-connection model is being used. It also provides a synchronized
  * method to send data to the socket which will be sent to the other endpoint.
+ * Sent messages are queued by {@link Priority} and written to the socket by
+ * a writer thread, so that keep alives and replies are never stuck behind
+ * bulk transfers.
  * Any number of protocols can be handled by the endpoint, but there can be only
- * one instance of each protocol running at a time.
+ * one instance of each protocol running at a time, other than on
+ * {@link Stream}s, each of which has its own instance of the event protocol.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.protocols.session.SessionProtocol}
@@ -41,6 +62,16 @@ import pb.protocols.session.SessionProtocol;
 public class Endpoint extends Eventable {
 	private static Logger log = Logger.getLogger(Endpoint.class.getName());
 	
+	/**
+	 * Emitted when the other side has opened a stream, before the first
+	 * event on the stream is emitted on it, so that callbacks can be added
+	 * to the stream.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Stream}</li>
+	 * </ul>
+	 */
+	public static final String streamOpened = "STREAM_OPENED";
+	
 	/**
 	 * The socket this endpoint is wrapped around.
 	 */
@@ -76,11 +107,127 @@ public class Endpoint extends Eventable {
 	 */
 	private Set<Long> outstandingIds;
 	
+	/**
+	 * Futures of requests sent with {@link #request(Message, int)} by
+	 * their timeout id, which are completed by the reply rather than the
+	 * reply going to its protocol.
+	 */
+	private final Map<Long,CompletableFuture<Message>> replyFutures = new HashMap<>();
+	
 	/**
 	 * stopped flag
 	 */
 	private volatile boolean stopped=true; // the use of send will return false always
 	
+	/**
+	 * Time in milliseconds that a message was last received, which is proof
+	 * that the other endpoint is alive.
+	 */
+	private volatile long lastReceived;
+	
+	/**
+	 * Time in milliseconds that a message was last sent.
+	 */
+	private volatile long lastSent;
+	
+	/**
+	 * Whether compression may be negotiated for this endpoint.
+	 */
+	private volatile boolean compressionAllowed=true;
+	
+	/**
+	 * Length in characters below which messages are not compressed.
+	 */
+	private volatile int compressionThreshold=FrameCompressor.defaultThreshold;
+	
+	/**
+	 * Compresses the frames once compression has been negotiated, null
+	 * before then.
+	 */
+	private volatile FrameCompressor compressor=null;
+	
+	/**
+	 * Worker loop that received events are handled on, or null to handle
+	 * them on this endpoint's thread.
+	 */
+	private volatile Executor dispatcher=null;
+	
+	/**
+	 * Received events waiting to be handled on the worker loop.
+	 */
+	private final ArrayDeque<Message> inbox = new ArrayDeque<>();
+	
+	/**
+	 * Whether a task to handle the inbox is on a worker loop.
+	 */
+	private boolean draining=false;
+	
+	/**
+	 * Most messages handled by one task before giving other endpoints
+	 * on the loop a turn.
+	 */
+	private static final int maxDrain=64;
+	
+	/**
+	 * Most received events waiting to be handled on the worker loop, after
+	 * which this endpoint stops reading until half of them have been
+	 * handled.
+	 */
+	private static final int maxInbox=1024;
+	
+	/**
+	 * Limits the messages received per second, or null for no limit.
+	 */
+	private volatile TokenBucket messageLimit=null;
+	
+	/**
+	 * Limits the characters received per second, or null for no limit.
+	 */
+	private volatile TokenBucket byteLimit=null;
+	
+	/**
+	 * Frames waiting to be written to the socket.
+	 */
+	private final OutboundQueue outbound = new OutboundQueue();
+	
+	/**
+	 * Writes the frames to the socket, started with the endpoint.
+	 */
+	private Thread writer=null;
+	
+	/**
+	 * Priorities of events by event name, those not given are interactive.
+	 */
+	private final Map<String,Priority> eventPriorities = new HashMap<>();
+	
+	/**
+	 * Most time in milliseconds that closing waits for queued frames to
+	 * be written.
+	 */
+	private static final int closeTimeout=2000;
+	
+	/**
+	 * Open streams by their id at this side.
+	 */
+	private final Map<Long,Stream> streams = new HashMap<>();
+	
+	/**
+	 * Id of the next stream opened at this side. The other side sees the
+	 * stream with the negated id, so the ids chosen by either side never
+	 * clash.
+	 */
+	private long nextStreamId=1;
+	
+	/**
+	 * Number of open streams that were opened by the other side.
+	 */
+	private int remoteStreams=0;
+	
+	/**
+	 * Most streams that the other side may have open at a time.
+	 */
+	private volatile int maxRemoteStreams=256;
+	
 	/**
 	 * Initialise the endpoint with a socket and a manager.
 	 * @param socket
@@ -97,20 +244,115 @@ public class Endpoint extends Eventable {
 	/**
 	 * Send a Message on the socket for this endpoint. This is synchronized
 	 * to avoid multiple concurrent messages overwriting each other on the socket.
+	 * The priority of the message is given by {@link #priorityOf(Message)}.
 	 * @param msg
 	 * @return true if the message was sent, false otherwise
 	 */
 	public synchronized boolean send(Message msg) {
+		return send(msg,priorityOf(msg));
+	}
+	
+	/**
+	 * Send a Message with a given priority. Messages of the same priority
+	 * are sent in order, but may overtake or be overtaken by messages of
+	 * other priorities, except that session messages are only sent after
+	 * every message sent before them.
+	 * @param msg
+	 * @param priority
+	 * @return true if the message was queued to be sent, false otherwise
+	 */
+	public synchronized boolean send(Message msg,Priority priority) {
 		if(stopped) return false;
-		try {
-			log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
-			out.writeUTF(msg.toJsonString());
-			out.flush();
-		} catch (IOException e) {
-			manager.endpointDisconnectedAbruptly(this);
-			return false;
+		log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
+		String json = msg.toJsonString();
+		String frame = compressor==null?null:compressor.compress(json);
+		return outbound.add(new OutboundQueue.Frame(frame==null?json:frame,
+				msg.getProtocolName().equals(SessionProtocol.protocolName)), priority);
+	}
+	
+	/**
+	 * 
+	 * @param msg
+	 * @return the priority that the message is sent with: keep alives,
+	 * event replies and event credits are control messages, events are as
+	 * given by {@link #setEventPriority(String, Priority)}, and everything else
+	 * is interactive
+	 */
+	public Priority priorityOf(Message msg) {
+		if(msg.getProtocolName().equals(KeepAliveProtocol.protocolName)) return Priority.Control;
+		if(!msg.getProtocolName().equals(EventProtocol.protocolName)) return Priority.Interactive;
+		if(msg.getType()==Message.Type.Reply || msg instanceof EventCredit) return Priority.Control;
+		if(msg instanceof EventRequest) return getEventPriority(((EventRequest)msg).getEventName());
+		return Priority.Interactive;
+	}
+	
+	/**
+	 * Set the priority that an event is sent with. Bulk events are not
+	 * batched with other events, and may be overtaken by them.
+	 * @param eventName
+	 * @param priority
+	 */
+	public void setEventPriority(String eventName,Priority priority) {
+		synchronized(eventPriorities) {
+			eventPriorities.put(eventName, priority);
+		}
+	}
+	
+	/**
+	 * 
+	 * @param eventName
+	 * @return the priority that the event is sent with
+	 */
+	public Priority getEventPriority(String eventName) {
+		synchronized(eventPriorities) {
+			return eventPriorities.getOrDefault(eventName, Priority.Interactive);
+		}
+	}
+	
+	/**
+	 * Set the shares of the link that interactive and bulk messages get
+	 * when there are both to send, counted in characters.
+	 * @param interactiveWeight
+	 * @param bulkWeight
+	 */
+	public void setLaneWeights(int interactiveWeight,int bulkWeight) {
+		outbound.setWeights(interactiveWeight, bulkWeight);
+	}
+	
+	/**
+	 * 
+	 * @param priority
+	 * @return the number of messages of the priority waiting to be sent
+	 */
+	public int getOutboundSize(Priority priority) {
+		return outbound.size(priority);
+	}
+	
+	/**
+	 * Write queued frames to the socket until the endpoint is closed.
+	 * @param stream the socket's output stream
+	 */
+	private void write(DataOutputStream stream) {
+		while(true) {
+			OutboundQueue.Frame frame;
+			try {
+				frame = outbound.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if(frame==null) return;
+			try {
+				frame.writeTo(stream);
+				stream.flush();
+				lastSent=System.currentTimeMillis();
+			} catch (IOException e) {
+				// nothing more can be written
+				outbound.close();
+				if(!stopped) manager.endpointDisconnectedAbruptly(this);
+				return;
+			}
+			outbound.written();
 		}
-		return true;
 	}
 	
 	/**
@@ -124,20 +366,108 @@ public class Endpoint extends Eventable {
 	 */
 	public synchronized boolean sendWithTimeout(Message msg,
 			ICallback timeoutCallback,int timeInterval) {
-		long nextId = timeoutId++;
-		synchronized(outstandingIds) {
-			outstandingIds.add(nextId);
-		}
+		long nextId = nextTimeoutId();
 		msg.setTimeoutId(nextId);
 		boolean sent=send(msg);
 		if(!sent) return false;
-		Utils.getInstance().setTimeout(()->{
-			boolean timedout;
-			synchronized(outstandingIds) {
-				timedout=outstandingIds.contains(nextId);
-			}
-			if(timedout) timeoutCallback.callback();
-		}, timeInterval);
+		setTimeout(nextId,timeoutCallback,timeInterval);
+		return sent;
+	}
+
+	/**
+	 * Send a message that has already been serialised, attaching a timeout
+	 * identifier to this copy of it, as per
+	 * {@link #sendWithTimeout(Message, ICallback, int)}. An event is sent
+	 * with the priority given by {@link #setEventPriority(String, Priority)}.
+	 * @param msg
+	 * @param timeoutCallback
+	 * @param timeInterval
+	 * @return true if the message was sent and false otherwise
+	 */
+	public synchronized boolean sendWithTimeout(EncodedMessage msg,
+			ICallback timeoutCallback,int timeInterval) {
+		if(stopped) return false;
+		long nextId = nextTimeoutId();
+		log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
+		String frame = compressor==null?null:msg.getCompressed(compressor);
+		Priority priority = msg.getEventName()==null?Priority.Interactive:getEventPriority(msg.getEventName());
+		boolean sent = outbound.add(frame==null?new OutboundQueue.Frame(msg, nextId):
+			new OutboundQueue.Frame(frame+FrameCompressor.marker+nextId,false), priority);
+		if(!sent) return false;
+		setTimeout(nextId,timeoutCallback,timeInterval);
+		return true;
+	}
+
+	/**
+	 * Set whether compression may be negotiated for this endpoint, before
+	 * the session starts.
+	 * @param allowed
+	 * @param threshold length in characters below which messages are
+	 * not compressed
+	 */
+	public void setCompression(boolean allowed,int threshold) {
+		compressionAllowed=allowed;
+		compressionThreshold=threshold;
+	}
+	
+	/**
+	 * 
+	 * @return true if compression may be negotiated for this endpoint
+	 */
+	public boolean isCompressionAllowed() {
+		return compressionAllowed;
+	}
+	
+	/**
+	 * Compress frames from now on, once the session protocol has
+	 * negotiated it.
+	 */
+	public synchronized void startCompression() {
+		if(compressor==null) compressor = new FrameCompressor(compressionThreshold);
+	}
+	
+	/**
+	 * 
+	 * @return the time in milliseconds that a message was last received
+	 */
+	public long getLastReceived() {
+		return lastReceived;
+	}
+	
+	/**
+	 * 
+	 * @return the time in milliseconds that a message was last sent
+	 */
+	public long getLastSent() {
+		return lastSent;
+	}
+
+	/**
+	 * Send an event to every endpoint in a group that is running the
+	 * {@link pb.protocols.event.EventProtocol}. The event request is
+	 * serialised once and the same bytes are written to every endpoint, rather
+	 * than each endpoint building and serialising its own copy as
+	 * {@link #emit(String, Object...)} does. Only the event is sent, no
+	 * callbacks of the endpoints are called.
+	 * @param endpoints
+	 * @param eventName
+	 * @param eventData
+	 * @return the number of endpoints the event was sent to
+	 */
+	public static int broadcast(Collection<Endpoint> endpoints,String eventName,String eventData) {
+		if(endpoints==null || endpoints.isEmpty()) return 0;
+		EncodedMessage msg;
+		try {
+			msg = new EncodedMessage(new EventRequest(eventName,eventData));
+		} catch (UTFDataFormatException e) {
+			log.severe("event is too long to be sent: "+eventName);
+			return 0;
+		}
+		int sent=0;
+		for(Endpoint endpoint : endpoints) {
+			Protocol protocol = endpoint.getProtocol(EventProtocol.protocolName);
+			if(protocol!=null && ((EventProtocol)protocol).sendEncoded(msg)) sent++;
+		}
 		return sent;
 	}
 	
@@ -152,36 +482,143 @@ public class Endpoint extends Eventable {
 	public synchronized boolean sendAndCancelTimeout(Message msg,
 			Message replyingTo) {
 		msg.setTimeoutId(replyingTo.getTimeoutId());
+		msg.setStreamId(replyingTo.getStreamId());
 		return(send(msg));
 	}
 	
+	/**
+	 * Send a request and get its reply as a future, rather than the reply
+	 * going to the protocol. Any number of requests can be waiting for their
+	 * replies, which are matched to them by timeout id. The future is
+	 * completed on the thread that handles the endpoint's messages, so
+	 * lengthy work should be done with the async methods of the future.
+	 * @param msg a request
+	 * @param timeInterval milliseconds to wait for the reply
+	 * @return a future that is completed with the reply, or completed
+	 * exceptionally with a {@link TimeoutException} if there is no reply in
+	 * time, or an {@link IOException} if the request could not be sent or
+	 * the endpoint closed before the reply
+	 */
+	public synchronized CompletableFuture<Message> request(Message msg,int timeInterval) {
+		CompletableFuture<Message> future = new CompletableFuture<>();
+		long nextId = nextTimeoutId();
+		msg.setTimeoutId(nextId);
+		synchronized(replyFutures) {
+			replyFutures.put(nextId, future);
+		}
+		if(!send(msg)) {
+			synchronized(replyFutures) {
+				replyFutures.remove(nextId);
+			}
+			synchronized(outstandingIds) {
+				outstandingIds.remove(nextId);
+			}
+			future.completeExceptionally(new IOException("request could not be sent: "+msg.getName()));
+			return future;
+		}
+		setTimeout(nextId,()->{
+			CompletableFuture<Message> timedout;
+			synchronized(replyFutures) {
+				timedout=replyFutures.remove(nextId);
+			}
+			if(timedout!=null) timedout.completeExceptionally(new TimeoutException(
+					"no reply to "+msg.getName()+" within "+timeInterval+"ms"));
+		},timeInterval);
+		return future;
+	}
+	
+	/**
+	 * Call an event on the other side and get its response, as per
+	 * {@link pb.protocols.event.EventProtocol#call(String, String)}.
+	 * @param eventName
+	 * @param eventData
+	 * @return a future that is completed with the response
+	 */
+	public CompletableFuture<String> call(String eventName,String eventData) {
+		Protocol protocol = getProtocol(EventProtocol.protocolName);
+		if(protocol==null) return CompletableFuture.failedFuture(
+				new IOException("event protocol is not running"));
+		return ((EventProtocol)protocol).call(eventName, eventData);
+	}
+	
+	/**
+	 * Publish the data of an event received on the endpoint to subscribers,
+	 * as per {@link pb.protocols.event.EventProtocol#publisher(String, Executor)}.
+	 * @param eventName
+	 * @param executor that subscribers are called on
+	 * @return the publisher, or null if the event protocol is not running
+	 */
+	public EventPublisher publisher(String eventName,Executor executor) {
+		Protocol protocol = getProtocol(EventProtocol.protocolName);
+		if(protocol==null) return null;
+		return ((EventProtocol)protocol).publisher(eventName, executor);
+	}
+	
+	private long nextTimeoutId() {
+		long nextId = timeoutId++;
+		synchronized(outstandingIds) {
+			outstandingIds.add(nextId);
+		}
+		return nextId;
+	}
+
+	private void setTimeout(long id,ICallback timeoutCallback,int timeInterval) {
+		Utils.getInstance().setTimeout(()->{
+			boolean timedout;
+			synchronized(outstandingIds) {
+				timedout=outstandingIds.contains(id);
+			}
+			if(timedout) timeoutCallback.callback();
+		}, timeInterval);
+	}
+	
 	/**
 	 * Closes the endpoint, which closes the socket. Both the endpoint thread
 	 * and the timer thread may end up attempting to do this in the event that
-	 * they detect problems.
-	 */
-	public synchronized void close() {
-		// we are stopping this endpoint, the send method will return false always now.
-		stopped=true;
-		/* 
-	    * Tell all of the protocols to stop - they may not be able to correctly complete
-		* their intended function however - and this should be flagged as an error
-		* if it is the case.
-		*/
-		Set<String> protocolNames;
-		synchronized(protocols) {
-			protocolNames = new HashSet<String>(protocols.keySet());
+	 * they detect problems. The endpoint is stopped while holding its lock,
+	 * but the wait for queued frames to be written is outside of it, so that
+	 * other threads sending to the endpoint are told straight away that it
+	 * is closed rather than waiting with it.
+	 */
+	public void close() {
+		DataOutputStream current;
+		synchronized(this) {
+			// we are stopping this endpoint, the send method will return false always now.
+			stopped=true;
+			/* 
+		    * Tell all of the protocols to stop - they may not be able to correctly complete
+			* their intended function however - and this should be flagged as an error
+			* if it is the case.
+			*/
+			Set<String> protocolNames;
+			synchronized(protocols) {
+				protocolNames = new HashSet<String>(protocols.keySet());
+			}
+			if(protocolNames!=null)
+				protocolNames.forEach((protocolName)->{stopProtocol(protocolName);});
+			synchronized(streams) {
+				streams.clear();
+				remoteStreams=0;
+			}
+			
+			/*
+			 *  The endpoint thread itself will not process any more messages if we
+			 *  interrupt it.
+			 *  Note that it currently may be processing a message, indeed it may
+			 *  be this thread and interrupting itself.
+			 */
+			interrupt();
+			current=out;
+			out=null;
 		}
-		if(protocolNames!=null)
-			protocolNames.forEach((protocolName)->{stopProtocol(protocolName);});
-		
-		/*
-		 *  The endpoint thread itself will not process any more messages if we
-		 *  interrupt it.
-		 *  Note that it currently may be processing a message, indeed it may
-		 *  be this thread and interrupting itself.
-		 */
-		interrupt();
+		List<CompletableFuture<Message>> futures;
+		synchronized(replyFutures) {
+			futures = new ArrayList<>(replyFutures.values());
+			replyFutures.clear();
+		}
+		futures.forEach((future)->{
+			future.completeExceptionally(new IOException("endpoint closed before the reply"));
+		});
 		
 		/**
 		 * At this point there may be exactly one _currently executing_ timer
@@ -192,9 +629,19 @@ public class Endpoint extends Eventable {
 		 * The endpoint is at this point just "closing", not closed.
 		 */
 		
+		// give the writer a chance to send what is queued, e.g. a session
+		// stop reply, unless it is the writer that is closing
+		if(writer!=null && Thread.currentThread()!=writer) outbound.awaitEmpty(closeTimeout);
+		outbound.close();
+		// nothing is compressed once stopped, and the frames queued are sent
+		FrameCompressor frameCompressor;
+		synchronized(this) {
+			frameCompressor=compressor;
+			compressor=null;
+		}
+		if(frameCompressor!=null) frameCompressor.close();
 		try {
-			if(out!=null) out.close();
-			out=null;
+			if(current!=null) current.close();
 		} catch (IOException e) {
 			log.warning("connection did not close properly: "+e.getMessage());
 		}
@@ -218,13 +665,34 @@ public class Endpoint extends Eventable {
 			manager.endpointDisconnectedAbruptly(this);
 			return;
 		}
+		lastReceived=lastSent=System.currentTimeMillis();
+		final DataOutputStream stream = out;
+		writer = new Thread(()->{
+			write(stream);
+		}, getName()+"-writer");
+		writer.setDaemon(true);
+		writer.start();
 		stopped=false; // allow use of the out stream
 		manager.endpointReady(this);
 		log.info("endpoint has started to: "+getOtherEndpointId());
 		while(!isInterrupted()) {
 			try {
 				String line=in.readUTF();
+				lastReceived=System.currentTimeMillis();
+				throttle(line.length());
+				if(line.length()>0 && line.charAt(0)==FrameCompressor.marker) {
+					FrameCompressor current=compressor;
+					if(current==null) throw new InvalidMessage();
+					try {
+						line=current.decompress(line);
+					} catch (DataFormatException e) {
+						log.warning("could not decompress frame: "+e.getMessage());
+						throw new InvalidMessage();
+					}
+				}
 				Message msg = Message.toMessage(line);
+				// the other side's id for a stream is the negation of ours
+				if(msg.getStreamId()!=0) msg.setStreamId(-msg.getStreamId());
 				// cancel any related time out
 				if(msg.getType()==Message.Type.Reply) {
 					synchronized(outstandingIds) {
@@ -232,34 +700,17 @@ public class Endpoint extends Eventable {
 					}
 				}
 				// find the protocol
-				Protocol protocol=null;
-				synchronized(protocols) {
-					protocol=protocols.get(msg.getProtocolName());
-				}
-				if(protocol==null) {
-					switch(msg.getProtocolName()) {
-					case SessionProtocol.protocolName:
-						protocol=new SessionProtocol(this,(ISessionProtocolHandler)manager);
-						break;
-					case KeepAliveProtocol.protocolName:
-						protocol=new KeepAliveProtocol(this,(IKeepAliveProtocolHandler)manager);
-						break;
-					case EventProtocol.protocolName:
-						protocol=new EventProtocol(this,(IEventProtocolHandler)manager);
-					}
-					if(!manager.protocolRequested(this,protocol)) {
-						log.info("message dropped due to no protocol available: "+line);
-						continue;
-					}
-				}
-				log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
-				switch(msg.getType()) {
-				case Request:
-					((IRequestReplyProtocol)protocol).receiveRequest(msg);
-					break;
-				case Reply:
-					((IRequestReplyProtocol)protocol).receiveReply(msg);
-					break;
+				Executor loop = dispatcher;
+				if(loop!=null && !msg.getProtocolName().equals(KeepAliveProtocol.protocolName)
+						&& !(msg instanceof SessionStartRequest) && !(msg instanceof SessionStartReply)) {
+					// events and session messages are handled on the worker loop,
+					// in order, so that a session stop doesn't overtake events
+					dispatch(loop,msg);
+				} else {
+					// keep alives are handled straight away, whatever is queued,
+					// as is a session start since it may change how the next
+					// frame is read
+					deliver(msg);
 				}
 			} catch (IOException e) {
 				manager.endpointDisconnectedAbruptly(this);
@@ -268,6 +719,9 @@ public class Endpoint extends Eventable {
 			} catch (InvalidMessage e) {
 				manager.endpointSentInvalidMessage(this);
 				// up to the client what to do
+			} catch (InterruptedException e) {
+				// closed while being throttled or waiting for the worker loop
+				break;
 			}
 		}
 		try {
@@ -278,6 +732,291 @@ public class Endpoint extends Eventable {
 		log.info("endpoint has terminated to: "+getOtherEndpointId());
 	}
 	
+	/**
+	 * Pass a received message to its protocol, starting the protocol if
+	 * the manager allows it.
+	 * @param msg
+	 */
+	private void deliver(Message msg) {
+		if(msg.getType()==Message.Type.Reply) {
+			CompletableFuture<Message> future;
+			synchronized(replyFutures) {
+				future=replyFutures.remove(msg.getTimeoutId());
+			}
+			if(future!=null) {
+				log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
+				future.complete(msg);
+				return;
+			}
+		}
+		Protocol protocol=null;
+		synchronized(protocols) {
+			protocol=protocols.get(protocolKey(msg.getProtocolName(),msg.getStreamId()));
+		}
+		if(protocol==null && msg.getStreamId()!=0) {
+			protocol=acceptStream(msg);
+			if(protocol==null) return;
+		} else if(protocol==null) {
+			switch(msg.getProtocolName()) {
+			case SessionProtocol.protocolName:
+				protocol=new SessionProtocol(this,(ISessionProtocolHandler)manager);
+				break;
+			case KeepAliveProtocol.protocolName:
+				protocol=new KeepAliveProtocol(this,(IKeepAliveProtocolHandler)manager);
+				break;
+			case EventProtocol.protocolName:
+				protocol=new EventProtocol(this,(IEventProtocolHandler)manager);
+			}
+			if(!manager.protocolRequested(this,protocol)) {
+				log.info("message dropped due to no protocol available: "+msg.toJsonString());
+				return;
+			}
+		}
+		log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
+		switch(msg.getType()) {
+		case Request:
+			((IRequestReplyProtocol)protocol).receiveRequest(msg);
+			break;
+		case Reply:
+			((IRequestReplyProtocol)protocol).receiveReply(msg);
+			break;
+		}
+	}
+	
+	/**
+	 * Start the event protocol for a stream opened by the other side.
+	 * @param msg the first message on the stream
+	 * @return the protocol, or null if the message should be dropped
+	 */
+	private Protocol acceptStream(Message msg) {
+		long streamId=msg.getStreamId();
+		if(streamId>0 || !msg.getProtocolName().equals(EventProtocol.protocolName)
+				|| msg.getType()!=Message.Type.Request) {
+			// e.g. a reply on a stream that we have since closed
+			log.info("message dropped for a stream that is not open: "+msg.toJsonString());
+			return null;
+		}
+		synchronized(streams) {
+			if(remoteStreams>=maxRemoteStreams) {
+				// the other side's request goes unanswered, so it times out
+				log.warning("message dropped, "+getOtherEndpointId()+" already has "
+						+remoteStreams+" streams open: "+msg.getName());
+				return null;
+			}
+		}
+		Stream stream = new Stream(this,streamId);
+		EventProtocol protocol = new EventProtocol(this,(IEventProtocolHandler)manager,stream);
+		if(!manager.protocolRequested(this,protocol)) {
+			log.info("message dropped due to no protocol available: "+msg.toJsonString());
+			return null;
+		}
+		synchronized(streams) {
+			streams.put(streamId, stream);
+			remoteStreams++;
+		}
+		log.info("stream "+streamId+" opened by "+getOtherEndpointId());
+		localEmit(streamOpened, stream);
+		return protocol;
+	}
+	
+	/**
+	 * Open a stream to the other side, with its own instance of the event
+	 * protocol. The other side is told of it when the first event is
+	 * emitted on it.
+	 * @return the stream
+	 */
+	public Stream openStream() {
+		Stream stream;
+		synchronized(streams) {
+			stream = new Stream(this,nextStreamId++);
+			streams.put(stream.getStreamId(), stream);
+		}
+		EventProtocol protocol = new EventProtocol(this,(IEventProtocolHandler)manager,stream);
+		try {
+			handleProtocol(protocol);
+		} catch (ProtocolAlreadyRunning e) {
+			// not possible, the id is new
+		}
+		return stream;
+	}
+	
+	/**
+	 * Stop the protocol of a stream and forget the stream, once it has
+	 * been closed by either side.
+	 * @param stream
+	 */
+	public void removeStream(Stream stream) {
+		synchronized(streams) {
+			if(streams.remove(stream.getStreamId())==null) return;
+			if(stream.getStreamId()<0) remoteStreams--;
+		}
+		stopProtocol(protocolKey(EventProtocol.protocolName,stream.getStreamId()));
+		log.info("stream "+stream.getStreamId()+" closed with "+getOtherEndpointId());
+	}
+	
+	/**
+	 * Set the most streams that the other side may have open at a time.
+	 * Requests that would open another are dropped, so they time out at
+	 * the other side.
+	 * @param maxRemoteStreams
+	 */
+	public void setMaxRemoteStreams(int maxRemoteStreams) {
+		this.maxRemoteStreams=maxRemoteStreams;
+	}
+	
+	/**
+	 * 
+	 * @return the number of open streams
+	 */
+	public int getNumStreams() {
+		synchronized(streams) {
+			return streams.size();
+		}
+	}
+	
+	/**
+	 * Send the events that are waiting to be sent in a batch, on the
+	 * endpoint and all of its streams.
+	 */
+	public void flushEvents() {
+		List<Protocol> current;
+		synchronized(protocols) {
+			current = new ArrayList<Protocol>(protocols.values());
+		}
+		for(Protocol protocol : current) {
+			if(protocol instanceof EventProtocol) ((EventProtocol)protocol).flush();
+		}
+	}
+	
+	/**
+	 * 
+	 * @param protocolName
+	 * @param streamId
+	 * @return the key of the protocol in the map of protocols
+	 */
+	private static String protocolKey(String protocolName,long streamId) {
+		return streamId==0?protocolName:protocolName+"#"+streamId;
+	}
+	
+	/**
+	 * Limit the rate that messages are read from the other side. Once over
+	 * the limit, this endpoint stops reading until it is back under it, so
+	 * the other side is held back by TCP flow control rather than having
+	 * its messages dropped, and only it is slowed down.
+	 * @param messageLimit messages per second, or null for no limit
+	 * @param byteLimit characters per second, or null for no limit
+	 */
+	public void setRateLimits(TokenBucket messageLimit,TokenBucket byteLimit) {
+		this.messageLimit=messageLimit;
+		this.byteLimit=byteLimit;
+	}
+	
+	private void throttle(int length) throws InterruptedException {
+		TokenBucket messages=messageLimit;
+		TokenBucket bytes=byteLimit;
+		long wait=0;
+		if(messages!=null) wait=messages.take(1);
+		if(bytes!=null) wait=Math.max(wait, bytes.take(length));
+		if(wait>0) {
+			log.info("throttling "+getOtherEndpointId()+" for "+wait+" ms");
+			Thread.sleep(wait);
+		}
+	}
+	
+	/**
+	 * 
+	 * @return the number of received events waiting to be handled on
+	 * the worker loop
+	 */
+	public int getInboxSize() {
+		synchronized(inbox) {
+			return inbox.size();
+		}
+	}
+	
+	/**
+	 * Have the messages of this endpoint handled on a worker loop, or on
+	 * its own thread if null. It can be changed at any time, e.g. to move
+	 * the endpoint to another loop, and the messages are still handled in
+	 * the order they were received.
+	 * @param dispatcher
+	 */
+	public void setDispatcher(Executor dispatcher) {
+		this.dispatcher=dispatcher;
+	}
+	
+	/**
+	 * 
+	 * @return the worker loop that messages are handled on, or null
+	 */
+	public Executor getDispatcher() {
+		return dispatcher;
+	}
+	
+	/**
+	 * Queue a message to be handled on the worker loop. Only one task for
+	 * the endpoint is on a loop at any time, which handles the queue in
+	 * order, so moving the endpoint to another loop can't reorder messages.
+	 * If the loop is too far behind then this waits for it to catch up, so
+	 * that the other side is held back by TCP flow control rather than the
+	 * queue growing without limit.
+	 * @param loop the worker loop to start handling the queue on
+	 * @param msg
+	 * @throws InterruptedException if the endpoint is closed while waiting
+	 */
+	private void dispatch(Executor loop,Message msg) throws InterruptedException {
+		synchronized(inbox) {
+			if(inbox.size()>=maxInbox && draining) {
+				log.info("pausing reading from "+getOtherEndpointId()+" until its events are handled");
+				while(inbox.size()>maxInbox/2 && draining) inbox.wait();
+			}
+			inbox.add(msg);
+			if(draining) return;
+			draining=true;
+		}
+		execute(loop);
+	}
+	
+	/**
+	 * Put the task that handles the inbox on a loop.
+	 * @param loop
+	 */
+	private void execute(Executor loop) {
+		try {
+			loop.execute(()->drain());
+		} catch (RejectedExecutionException e) {
+			// the loop has been shut down, so the next message tries again
+			log.warning("worker loop refused the events of "+getOtherEndpointId());
+			synchronized(inbox) {
+				draining=false;
+				inbox.notifyAll();
+			}
+		}
+	}
+	
+	private void drain() {
+		for(int i=0;i<maxDrain;i++) {
+			Message msg;
+			synchronized(inbox) {
+				msg=inbox.poll();
+				if(msg==null) {
+					draining=false;
+					return;
+				}
+				if(inbox.size()==maxInbox/2) inbox.notifyAll();
+			}
+			try {
+				deliver(msg);
+			} catch (RuntimeException e) {
+				log.severe("exception handling "+msg.getName()+" from "+getOtherEndpointId()+": "+e);
+			}
+		}
+		// give other endpoints on the loop a turn, on whichever loop we are on now
+		Executor current = dispatcher;
+		if(current==null) current = Runnable::run;
+		execute(current);
+	}
+	
 	/**
 	 * Start handling a protocol. Only one instance of a protocol can be handled
 	 * at a time. Either client or server may start/initiate the use of the protocol.
@@ -287,12 +1026,13 @@ public class Endpoint extends Eventable {
 	 * running on this endpoint
 	 */
 	public void handleProtocol(Protocol protocol) throws ProtocolAlreadyRunning {
+		String key = protocolKey(protocol.getProtocolName(),protocol.getStreamId());
 		synchronized(protocols) {
-			if(protocols.containsKey(protocol.getProtocolName())){
+			if(protocols.containsKey(key)){
 				throw new ProtocolAlreadyRunning();
 			} else {
-				protocols.put(protocol.getProtocolName(),protocol);
-				log.info("now handling protocol: "+protocol.getProtocolName());
+				protocols.put(key,protocol);
+				log.info("now handling protocol: "+key);
 			}
 		}
 	}
@@ -333,4 +1073,18 @@ public class Endpoint extends Eventable {
 			return protocols.get(string);
 		}
 	}
+	
+	/**
+	 * 
+	 * @param protocolName
+	 * @param streamId the id of the stream at this side, 0 for the
+	 * endpoint's own protocols
+	 * @return the protocol with the given name on the stream, if it is
+	 * being handled or null
+	 */
+	public Protocol getProtocol(String protocolName,long streamId) {
+		synchronized(protocols) {
+			return protocols.get(protocolKey(protocolName,streamId));
+		}
+	}
 }
@@ -0,0 +1,185 @@
+package pb.managers.endpoint;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the frames of an endpoint once compression has been negotiated
+ * at session start. A compressed frame is {@link #marker} followed by the
+ * Base64 of the deflated JSON of the message, which can't be mistaken for a
+ * JSON frame since those always start with '{'. A frame that is shared by
+ * many endpoints is compressed without a timeout id, which is then appended
+ * as {@link #marker} and the id. Messages shorter than the threshold are sent
+ * as they are, as are messages that don't get any shorter.
+ * <br/>
+ * Each message is deflated on its own, so that frames can be decompressed in
+ * any order and shared between endpoints, but the Deflater and Inflater are
+ * reused for the life of the connection. Both start from a preset dictionary
+ * of the JSON that is common to the messages of the protocols, which makes
+ * even the first few hundred bytes of a message compress well. The version
+ * of the dictionary is part of the name negotiated, so endpoints with
+ * different dictionaries don't compress rather than fail to decompress. Compression is only done while
+ * holding the endpoint's send lock and decompression only on the endpoint's
+ * thread, so the lock here is only contended when the endpoint closes. The
+ * native memory of the Deflater and Inflater is freed by {@link #close()}.
+ *
+ */
+public class FrameCompressor {
+
+	/**
+	 * Name of the compression, as negotiated in the session start messages,
+	 * with the version of {@link #dictionary}, which must change whenever the
+	 * dictionary does.
+	 */
+	public static final String name = "deflate;dict=1";
+
+	/**
+	 * First character of a compressed frame.
+	 */
+	public static final char marker = '~';
+
+	/**
+	 * Default length in characters below which messages are not compressed.
+	 */
+	public static final int defaultThreshold = 512;
+
+	/**
+	 * JSON that is common to the messages of the protocols, the most common
+	 * last since it is then cheapest to refer to. Only the protocols' own
+	 * keys and names belong here, not the events or data of an application.
+	 */
+	private static final byte[] dictionary = ("{\"protocolName\":\"SessionProtocol\",\"name\":\"Session"
+			+ "{\"protocolName\":\"KeepAliveProtocol\",\"name\":\"KeepAlive"
+			+ "\"type\":\"Reply\",\"timeoutId\":"
+			+ "{\"protocolName\":\"EventProtocol\",\"name\":\"EventRequest\",\"type\":\"Request\","
+			+ "\"eventName\":\"\",\"eventData\":\"").getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Length in characters below which messages are not compressed.
+	 */
+	private final int threshold;
+
+	/**
+	 * Reused for every message sent.
+	 */
+	private final Deflater deflater = new Deflater();
+
+	/**
+	 * Reused for every message received.
+	 */
+	private final Inflater inflater = new Inflater();
+
+	/**
+	 * Output buffer of the Deflater, grown as needed.
+	 */
+	private byte[] deflated = new byte[4096];
+
+	/**
+	 * Output buffer of the Inflater, grown as needed.
+	 */
+	private byte[] inflated = new byte[4096];
+
+	/**
+	 * Longest message that a frame may decompress to, in bytes.
+	 */
+	private static final int maxLength = 16*1024*1024;
+
+	/**
+	 * Whether the Deflater and Inflater have been ended.
+	 */
+	private boolean closed=false;
+
+	/**
+	 * Initialise the compressor.
+	 * @param threshold length in characters below which messages are
+	 * not compressed
+	 */
+	public FrameCompressor(int threshold) {
+		this.threshold=threshold;
+	}
+
+	/**
+	 *
+	 * @param json a message
+	 * @return the compressed frame, or null if the message should be
+	 * sent as it is
+	 */
+	public synchronized String compress(String json) {
+		if(closed || json.length()<threshold) return null;
+		byte[] input = json.getBytes(StandardCharsets.UTF_8);
+		deflater.reset();
+		deflater.setDictionary(dictionary);
+		deflater.setInput(input);
+		deflater.finish();
+		int length=0;
+		while(!deflater.finished()) {
+			if(length==deflated.length) deflated=Arrays.copyOf(deflated, deflated.length*2);
+			length+=deflater.deflate(deflated, length, deflated.length-length);
+		}
+		// Base64 is 4/3 of the length
+		if((length+2)/3*4+1>=json.length()) return null;
+		return marker+Base64.getEncoder().encodeToString(Arrays.copyOf(deflated, length));
+	}
+
+	/**
+	 *
+	 * @param frame a compressed frame
+	 * @return the JSON of the message, with the timeout id that was
+	 * appended to the frame, if any
+	 * @throws DataFormatException if the frame is not valid
+	 */
+	public synchronized String decompress(String frame) throws DataFormatException {
+		if(closed) throw new DataFormatException("compressor is closed");
+		int idStart = frame.indexOf(marker, 1);
+		byte[] input;
+		try {
+			input = Base64.getDecoder().decode(idStart<0?frame.substring(1):frame.substring(1, idStart));
+		} catch (IllegalArgumentException e) {
+			throw new DataFormatException("frame is not Base64");
+		}
+		inflater.reset();
+		inflater.setInput(input);
+		int length=0;
+		while(!inflater.finished()) {
+			if(length==inflated.length) {
+				if(length>=maxLength) throw new DataFormatException("frame is too long");
+				inflated=Arrays.copyOf(inflated, inflated.length*2);
+			}
+			int n = inflater.inflate(inflated, length, inflated.length-length);
+			if(n==0) {
+				if(inflater.needsDictionary()) {
+					inflater.setDictionary(dictionary);
+				} else if(inflater.needsInput()) {
+					throw new DataFormatException("frame is truncated");
+				}
+			}
+			length+=n;
+		}
+		String json = new String(inflated, 0, length, StandardCharsets.UTF_8);
+		if(idStart<0) return json;
+		long timeoutId;
+		try {
+			timeoutId = Long.parseLong(frame.substring(idStart+1));
+		} catch (NumberFormatException e) {
+			throw new DataFormatException("timeout id is not a number");
+		}
+		int end = json.lastIndexOf('}');
+		if(end<0) throw new DataFormatException("frame is not a message");
+		return json.substring(0, end)+",\"timeoutId\":"+timeoutId+"}";
+	}
+
+	/**
+	 * Free the native memory of the Deflater and Inflater. Messages are not
+	 * compressed after this and frames can't be decompressed.
+	 */
+	public synchronized void close() {
+		if(closed) return;
+		closed=true;
+		deflater.end();
+		inflater.end();
+	}
+}
@@ -0,0 +1,249 @@
+package pb.managers.endpoint;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import pb.protocols.EncodedMessage;
+
+/**
+ * The frames waiting to be written by an endpoint, in a queue for each
+ * {@link Priority}. Control frames are always taken first. Interactive and
+ * bulk frames share what is left in proportion to their weights, counted in
+ * characters, so that neither starves the other, and either gets all of it
+ * while the other has nothing to send. A lane that has been empty doesn't
+ * bank any share while it was.
+ * <br/>
+ * A frame can be a barrier, which is not taken until every frame added
+ * before it has been, whatever its lane. Session messages are barriers so
+ * that, e.g., a session stop is never sent ahead of the events before it.
+ *
+ */
+class OutboundQueue {
+
+	/**
+	 * A frame waiting to be written.
+	 */
+	static class Frame {
+		/**
+		 * The text of the frame, or null if it is an encoded message.
+		 */
+		final String text;
+
+		/**
+		 * The encoded message, if the text is null.
+		 */
+		final EncodedMessage encoded;
+
+		/**
+		 * Timeout id to append to the encoded message.
+		 */
+		final long timeoutId;
+
+		/**
+		 * Whether every frame added before this one must be written first.
+		 */
+		final boolean barrier;
+
+		/**
+		 * Order the frame was added in.
+		 */
+		long seq;
+
+		Frame(String text,boolean barrier) {
+			this.text=text;
+			this.encoded=null;
+			this.timeoutId=0;
+			this.barrier=barrier;
+		}
+
+		Frame(EncodedMessage encoded,long timeoutId) {
+			this.text=null;
+			this.encoded=encoded;
+			this.timeoutId=timeoutId;
+			this.barrier=false;
+		}
+
+		/**
+		 *
+		 * @return approximate length of the frame in characters
+		 */
+		int length() {
+			return text!=null?text.length():encoded.length();
+		}
+
+		void writeTo(DataOutputStream out) throws IOException {
+			if(text!=null) {
+				out.writeUTF(text);
+			} else {
+				encoded.writeTo(out, timeoutId);
+			}
+		}
+	}
+
+	/**
+	 * A queue for each priority.
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	private final ArrayDeque<Frame>[] lanes = new ArrayDeque[Priority.values().length];
+
+	/**
+	 * Characters taken from the interactive lane, divided by its weight.
+	 */
+	private double interactiveServed=0;
+
+	/**
+	 * Characters taken from the bulk lane, divided by its weight.
+	 */
+	private double bulkServed=0;
+
+	/**
+	 * Share of the interactive lane.
+	 */
+	private int interactiveWeight=4;
+
+	/**
+	 * Share of the bulk lane.
+	 */
+	private int bulkWeight=1;
+
+	/**
+	 * Order of the next frame added.
+	 */
+	private long nextSeq=0;
+
+	/**
+	 * Number of frames in all lanes.
+	 */
+	private int size=0;
+
+	/**
+	 * Whether a frame has been taken but not yet written.
+	 */
+	private boolean writing=false;
+
+	/**
+	 * Whether frames are no longer taken.
+	 */
+	private boolean closed=false;
+
+	OutboundQueue() {
+		for(int i=0;i<lanes.length;i++) lanes[i]=new ArrayDeque<>();
+	}
+
+	/**
+	 * @param interactiveWeight share of the interactive lane
+	 * @param bulkWeight share of the bulk lane
+	 */
+	synchronized void setWeights(int interactiveWeight,int bulkWeight) {
+		this.interactiveWeight=interactiveWeight;
+		this.bulkWeight=bulkWeight;
+	}
+
+	/**
+	 * Add a frame to the lane for its priority.
+	 * @param frame
+	 * @param priority
+	 * @return false if the queue is closed
+	 */
+	synchronized boolean add(Frame frame,Priority priority) {
+		if(closed) return false;
+		ArrayDeque<Frame> lane = lanes[priority.ordinal()];
+		if(lane.isEmpty()) {
+			// don't let a lane that has been idle catch up all at once
+			if(priority==Priority.Interactive) {
+				interactiveServed=Math.max(interactiveServed, bulkServed);
+			} else if(priority==Priority.Bulk) {
+				bulkServed=Math.max(bulkServed, interactiveServed);
+			}
+		}
+		frame.seq=nextSeq++;
+		lane.add(frame);
+		size++;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Take the next frame to write, waiting until there is one. The frame
+	 * must be marked as written with {@link #written()}.
+	 * @return the frame, or null if the queue has been closed
+	 * @throws InterruptedException
+	 */
+	synchronized Frame take() throws InterruptedException {
+		while(!closed && size==0) wait();
+		if(closed) return null;
+		ArrayDeque<Frame> control = lanes[Priority.Control.ordinal()];
+		ArrayDeque<Frame> interactive = lanes[Priority.Interactive.ordinal()];
+		ArrayDeque<Frame> bulk = lanes[Priority.Bulk.ordinal()];
+		Frame frame;
+		if(!control.isEmpty()) {
+			frame=control.poll();
+		} else if(bulk.isEmpty() || (!interactive.isEmpty() && interactiveServed<=bulkServed
+				&& !blocked(interactive.peek(),bulk))) {
+			frame=interactive.poll();
+			interactiveServed+=(double)frame.length()/interactiveWeight;
+		} else {
+			frame=bulk.poll();
+			bulkServed+=(double)frame.length()/bulkWeight;
+		}
+		size--;
+		writing=true;
+		return frame;
+	}
+
+	/**
+	 *
+	 * @param frame at the head of a lane
+	 * @param other lane
+	 * @return true if the frame is a barrier that must wait for the other lane
+	 */
+	private boolean blocked(Frame frame,ArrayDeque<Frame> other) {
+		return frame.barrier && !other.isEmpty() && other.peek().seq<frame.seq;
+	}
+
+	/**
+	 * The frame last taken has been written.
+	 */
+	synchronized void written() {
+		writing=false;
+		if(size==0) notifyAll();
+	}
+
+	/**
+	 * Wait until every frame has been written, or the queue is closed.
+	 * @param timeout most milliseconds to wait
+	 */
+	synchronized void awaitEmpty(long timeout) {
+		long end=System.currentTimeMillis()+timeout;
+		long remaining=timeout;
+		while(!closed && (size>0 || writing) && remaining>0) {
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			remaining=end-System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Discard any frames and stop taking them.
+	 */
+	synchronized void close() {
+		closed=true;
+		for(ArrayDeque<Frame> lane : lanes) lane.clear();
+		size=0;
+		notifyAll();
+	}
+
+	/**
+	 *
+	 * @param priority
+	 * @return the number of frames waiting in the lane
+	 */
+	synchronized int size(Priority priority) {
+		return lanes[priority.ordinal()].size();
+	}
+}
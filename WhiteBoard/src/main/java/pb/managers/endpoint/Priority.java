@@ -0,0 +1,25 @@
+package pb.managers.endpoint;
+
+/**
+ * Priority classes of the messages sent by an endpoint, each of which has
+ * its own queue.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#send(pb.protocols.Message, Priority)}
+ *
+ */
+public enum Priority {
+	/**
+	 * Keep alives and replies, which are always sent first.
+	 */
+	Control,
+	/**
+	 * Events and session messages, which share the rest of the link with
+	 * bulk messages, but with a larger weight.
+	 */
+	Interactive,
+	/**
+	 * Large transfers, e.g. file contents, which get what is left of the
+	 * link, and all of it when there is nothing else to send.
+	 */
+	Bulk
+}
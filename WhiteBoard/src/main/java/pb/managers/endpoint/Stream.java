@@ -0,0 +1,148 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventPublisher;
+import pb.protocols.event.IEventCallback;
+import pb.utils.Eventable;
+
+/**
+ * An independent stream of events over an endpoint, with its own instance
+ * of the {@link EventProtocol} and so its own flow control, so that many
+ * streams, e.g. one for each file being transferred, can share a single
+ * connection. Events emitted on the stream are sent on the stream, and
+ * events received on the stream are emitted on it, just as for an endpoint.
+ * <br/>
+ * A stream is opened with {@link Endpoint#openStream()}, and the other side
+ * is told of it by {@link Endpoint#streamOpened} when the first event on the
+ * stream arrives. Either side can close it, which emits {@link #streamClosed}
+ * on the stream at the other side.
+ * <br/>
+ * The stream's callbacks are called holding the endpoint's lock, as the
+ * endpoint's own are, so that callbacks of either may emit on the other.
+ *
+ */
+public class Stream extends Eventable {
+
+	/**
+	 * Emitted on a stream when the other side has closed it. No more
+	 * events can be sent on the stream.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String} empty</li>
+	 * </ul>
+	 */
+	public static final String streamClosed = "STREAM_CLOSED";
+
+	/**
+	 * The endpoint the stream is on.
+	 */
+	private final Endpoint endpoint;
+
+	/**
+	 * Id of the stream at this side, positive if it was opened at this side
+	 * and negative if it was opened at the other side.
+	 */
+	private final long streamId;
+
+	/**
+	 * Initialise the stream.
+	 * @param endpoint
+	 * @param streamId
+	 */
+	Stream(Endpoint endpoint,long streamId) {
+		this.endpoint=endpoint;
+		this.streamId=streamId;
+		setName("Stream-"+streamId);
+	}
+
+	/**
+	 *
+	 * @return the id of the stream at this side
+	 */
+	public long getStreamId() {
+		return streamId;
+	}
+
+	/**
+	 *
+	 * @return the endpoint the stream is on
+	 */
+	public Endpoint getEndpoint() {
+		return endpoint;
+	}
+
+	/**
+	 * Set the most events, or batches of events, that may be sent on the
+	 * stream without a reply, after which events wait to be sent.
+	 * @param window
+	 */
+	public void setWindow(int window) {
+		EventProtocol protocol = getEventProtocol();
+		if(protocol!=null) protocol.setWindow(window);
+	}
+
+	/**
+	 * Close the stream once the events emitted on it have been sent. Events
+	 * that the other side emitted on the stream before it was told of the
+	 * close are still emitted here.
+	 */
+	public void close() {
+		EventProtocol protocol = getEventProtocol();
+		if(protocol!=null) protocol.closeStream();
+	}
+
+	/**
+	 * Call an event on the other side of the stream and get its response,
+	 * as per {@link EventProtocol#call(String, String)}.
+	 * @param eventName
+	 * @param eventData
+	 * @return a future that is completed with the response
+	 */
+	public CompletableFuture<String> call(String eventName,String eventData) {
+		EventProtocol protocol = getEventProtocol();
+		if(protocol==null) return CompletableFuture.failedFuture(
+				new IOException("stream is closed"));
+		return protocol.call(eventName, eventData);
+	}
+
+	/**
+	 * Publish the data of an event received on the stream to subscribers,
+	 * as per {@link EventProtocol#publisher(String, Executor)}.
+	 * @param eventName
+	 * @param executor that subscribers are called on
+	 * @return the publisher, or null if the stream is closed
+	 */
+	public EventPublisher publisher(String eventName,Executor executor) {
+		EventProtocol protocol = getEventProtocol();
+		if(protocol==null) return null;
+		return protocol.publisher(eventName, executor);
+	}
+
+	private EventProtocol getEventProtocol() {
+		return (EventProtocol) endpoint.getProtocol(EventProtocol.protocolName, streamId);
+	}
+
+	@Override
+	public boolean emit(String eventName, Object... args) {
+		synchronized(endpoint) {
+			return super.emit(eventName, args);
+		}
+	}
+
+	@Override
+	public boolean localEmit(String eventName, Object... args) {
+		synchronized(endpoint) {
+			return super.localEmit(eventName, args);
+		}
+	}
+
+	@Override
+	public Eventable on(String eventName, IEventCallback callback) {
+		synchronized(endpoint) {
+			return super.on(eventName, callback);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package pb.protocols;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+
+import pb.managers.endpoint.FrameCompressor;
+import pb.protocols.event.EventRequest;
+
+/**
+ * A message that has been serialised once so that it can be written to many
+ * endpoints. The JSON of the message, less its closing brace, is kept as the
+ * bytes that {@link java.io.DataOutputStream#writeUTF(String)} would write.
+ * Only the timeout id differs between endpoints, so it is appended to the
+ * shared bytes as each frame is written. Instances are immutable and can be
+ * written by any number of threads.
+ * <br/>
+ * For endpoints that have negotiated compression, the message is also
+ * compressed at most once, by whichever endpoint needs it first.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#broadcast(java.util.Collection, String, String)}
+ *
+ */
+public class EncodedMessage {
+
+	/**
+	 * Maximum length of a frame written by writeUTF.
+	 */
+	private static final int maxFrameLength = 65535;
+
+	/**
+	 * Modified UTF-8 of the message JSON without its closing brace.
+	 */
+	private final byte[] body;
+
+	/**
+	 * The message JSON, without a timeout id.
+	 */
+	private final String json;
+
+	/**
+	 * The compressed frame without a timeout id, null if it has not been
+	 * compressed yet, or the empty string if it is not worth compressing.
+	 */
+	private String compressed=null;
+
+	/**
+	 * The message name, for logging.
+	 */
+	private final String name;
+
+	/**
+	 * The protocol name, for logging.
+	 */
+	private final String protocolName;
+
+	/**
+	 * The event name if the message is an event request, or null.
+	 */
+	private final String eventName;
+
+	/**
+	 * Serialise a message. The message must not have a timeout id.
+	 * @param msg
+	 * @throws UTFDataFormatException if the message is too long to be sent
+	 */
+	public EncodedMessage(Message msg) throws UTFDataFormatException {
+		json = msg.toJsonString();
+		name = msg.getName();
+		protocolName = msg.getProtocolName();
+		eventName = msg instanceof EventRequest?((EventRequest)msg).getEventName():null;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length()+2);
+		try {
+			new DataOutputStream(bytes).writeUTF(json.substring(0, json.length()-1));
+		} catch (UTFDataFormatException e) {
+			throw e;
+		} catch (IOException e) {
+			// not possible when writing to memory
+			throw new IllegalStateException(e);
+		}
+		byte[] frame = bytes.toByteArray();
+		body = new byte[frame.length-2];
+		System.arraycopy(frame, 2, body, 0, body.length);
+	}
+
+	/**
+	 * Write the message as a single frame, in the same format as writeUTF.
+	 * @param out
+	 * @param timeoutId the timeout id of this copy of the message
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutputStream out,long timeoutId) throws IOException {
+		byte[] suffix = (",\"timeoutId\":"+timeoutId+"}").getBytes(StandardCharsets.US_ASCII);
+		int length = body.length+suffix.length;
+		if(length>maxFrameLength) throw new UTFDataFormatException("encoded message too long: "+length+" bytes");
+		out.writeShort(length);
+		out.write(body);
+		out.write(suffix);
+	}
+
+	/**
+	 * Get a copy of the message, e.g. to hold it before it is sent.
+	 * @return the message
+	 * @throws InvalidMessage not expected, since it was serialised from a message
+	 */
+	public Message toMessage() throws InvalidMessage {
+		return Message.toMessage(json);
+	}
+
+	/**
+	 * Get the message as a compressed frame, compressing it the first time.
+	 * @param compressor compresses the message if it hasn't been yet
+	 * @return the compressed frame without a timeout id, or null if the
+	 * message should be sent uncompressed
+	 */
+	public synchronized String getCompressed(FrameCompressor compressor) {
+		if(compressed==null) {
+			compressed = compressor.compress(json);
+			if(compressed==null) compressed="";
+		}
+		return compressed.isEmpty()?null:compressed;
+	}
+
+	/**
+	 *
+	 * @return the length of the frame in bytes, less the timeout id
+	 */
+	public int length() {
+		return body.length;
+	}
+
+	/**
+	 *
+	 * @return the message name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 *
+	 * @return the protocol name
+	 */
+	public String getProtocolName() {
+		return protocolName;
+	}
+
+	/**
+	 *
+	 * @return the event name if the message is an event request, or null
+	 */
+	public String getEventName() {
+		return eventName;
+	}
+}
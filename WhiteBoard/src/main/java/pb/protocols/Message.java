@@ -1,5 +1,7 @@
 package pb.protocols;
 
+import pb.protocols.event.EventBatchRequest;
+import pb.protocols.event.EventCredit;
 import pb.protocols.event.EventReply;
 import pb.protocols.event.EventRequest;
 import pb.protocols.keepalive.KeepAliveReply;
@@ -74,6 +76,7 @@ public class Message {
 		validateStringValue("protocolName",protocolName,doc);
 		validateStringValue("type",type.toString(),doc);
 		if(doc.containsKey("timeoutId")) validateLongType("timeoutId",doc);
+		if(doc.containsKey("streamId")) validateLongType("streamId",doc);
 	}
 	
 	/**
@@ -99,6 +102,8 @@ public class Message {
 			case SessionStopReply.name: return new SessionStopReply(doc);
 			case EventRequest.name: return new EventRequest(doc);
 			case EventReply.name: return new EventReply(doc);
+			case EventBatchRequest.name: return new EventBatchRequest(doc);
+			case EventCredit.name: return new EventCredit(doc);
 			// put more message cases here
 			
 			// if nothing matches, its invalid
@@ -155,4 +160,23 @@ public class Message {
 			return doc.getLong("timeoutId");
 		else return 0;
 	}
+	
+	/**
+	 * Set the stream the message is on. Stream 0, the endpoint's own
+	 * protocols, is left out of the message.
+	 * @param id
+	 */
+	public final void setStreamId(long id) {
+		if(id!=0 || doc.containsKey("streamId")) doc.append("streamId", id);
+	}
+	
+	/**
+	 * Get the stream the message is on
+	 * @return id, 0 for the endpoint's own protocols
+	 */
+	public final long getStreamId() {
+		if(doc.containsKey("streamId"))
+			return doc.getLong("streamId");
+		else return 0;
+	}
 }
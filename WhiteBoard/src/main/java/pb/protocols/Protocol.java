@@ -29,6 +29,11 @@ public class Protocol {
 	 */
 	protected Manager manager;
 	
+	/**
+	 * The stream the protocol is on, 0 for the endpoint's own protocols.
+	 */
+	protected long streamId=0;
+	
 	/**
 	 * Initialise the protocol with an endpoint and manager.
 	 * @param endpoint
@@ -56,4 +61,13 @@ public class Protocol {
 	public String getProtocolName() {
 		return protocolName;
 	}
+	
+	/**
+	 * 
+	 * @return the stream the protocol is on, 0 for the endpoint's own
+	 * protocols
+	 */
+	public long getStreamId() {
+		return streamId;
+	}
 }
@@ -0,0 +1,66 @@
+package pb.protocols.event;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Carries a number of events in one request, in the order that they were
+ * emitted, which is acknowledged with a single {@link EventReply}.
+ * @see {@link pb.protocols.event.EventProtocol}
+ *
+ */
+public class EventBatchRequest extends Message {
+	static final public String name = "EventBatchRequest";
+	
+	/**
+	 * Initialiser when given the events.
+	 * @param eventNames
+	 * @param eventData the data of each event, in the same order
+	 */
+	public EventBatchRequest(ArrayList<String> eventNames, ArrayList<String> eventData) {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+		doc.append("eventNames", eventNames);
+		doc.append("eventData", eventData);
+	}
+
+	/**
+	 * Initialiser when given message parameters in a doc.
+	 * @param doc with the message details
+	 * @throws InvalidMessage when the events are missing or malformed
+	 */
+	public EventBatchRequest(Document doc) throws InvalidMessage {
+		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
+		if(!(doc.get("eventNames") instanceof ArrayList) || !(doc.get("eventData") instanceof ArrayList))
+			throw new InvalidMessage();
+		List<?> eventNames = (List<?>) doc.get("eventNames");
+		List<?> eventData = (List<?>) doc.get("eventData");
+		if(eventNames.size()!=eventData.size()) throw new InvalidMessage();
+		for(int i=0;i<eventNames.size();i++) {
+			if(!(eventNames.get(i) instanceof String) || !(eventData.get(i) instanceof String))
+				throw new InvalidMessage();
+		}
+		this.doc=doc;
+	}
+	
+	/**
+	 * 
+	 * @return the names of the events
+	 */
+	@SuppressWarnings("unchecked")
+	public List<String> getEventNames() {
+		return (List<String>)(List<?>) doc.get("eventNames");
+	}
+	
+	/**
+	 * 
+	 * @return the data of the events, in the same order as the names
+	 */
+	@SuppressWarnings("unchecked")
+	public List<String> getEventData() {
+		return (List<String>)(List<?>) doc.get("eventData");
+	}
+}
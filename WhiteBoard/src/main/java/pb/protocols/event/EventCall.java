@@ -0,0 +1,82 @@
+package pb.protocols.event;
+
+import java.util.logging.Logger;
+
+import pb.managers.endpoint.Endpoint;
+
+/**
+ * An event that the other side called with
+ * {@link EventProtocol#call(String, String)} and is waiting for a response
+ * to. It is the second argument of the event when it is emitted, and the
+ * response can be given straight away in the callback or later from any
+ * thread, but only once.
+ *
+ */
+public class EventCall {
+	private static Logger log = Logger.getLogger(EventCall.class.getName());
+
+	/**
+	 * The endpoint the call was received on.
+	 */
+	private final Endpoint endpoint;
+
+	/**
+	 * The request of the call.
+	 */
+	private final EventRequest request;
+
+	/**
+	 * Whether the call has been responded to.
+	 */
+	private boolean responded=false;
+
+	/**
+	 * Initialise the call.
+	 * @param endpoint
+	 * @param request
+	 */
+	EventCall(Endpoint endpoint,EventRequest request) {
+		this.endpoint=endpoint;
+		this.request=request;
+	}
+
+	/**
+	 *
+	 * @return the name of the event
+	 */
+	public String getEventName() {
+		return request.getEventName();
+	}
+
+	/**
+	 *
+	 * @return the data of the event
+	 */
+	public String getEventData() {
+		return request.getEventData();
+	}
+
+	/**
+	 * Send the response to the other side.
+	 * @param eventData the response, or null for none
+	 * @return true if the response was sent
+	 */
+	public boolean respond(String eventData) {
+		synchronized(this) {
+			if(responded) {
+				log.warning("event has already been responded to: "+request.getEventName());
+				return false;
+			}
+			responded=true;
+		}
+		return endpoint.sendAndCancelTimeout(new EventReply(eventData), request);
+	}
+
+	/**
+	 *
+	 * @return true if the call has been responded to
+	 */
+	public synchronized boolean isResponded() {
+		return responded;
+	}
+}
@@ -0,0 +1,46 @@
+package pb.protocols.event;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Gives the other side credit to send more events, when events are being
+ * consumed through an {@link EventPublisher}. Unlike other requests it is
+ * not replied to.
+ * @see {@link pb.protocols.event.EventProtocol}
+ *
+ */
+public class EventCredit extends Message {
+	static final public String name = "EventCredit";
+	
+	/**
+	 * Initialiser when given the credit.
+	 * @param credits the number of further events that may be sent, or
+	 * negative if events may be sent without credit from now on
+	 */
+	public EventCredit(long credits) {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+		doc.append("credits", credits);
+	}
+
+	/**
+	 * Initialiser when given message parameters in a doc.
+	 * @param doc with the message details
+	 * @throws InvalidMessage when the credit is missing
+	 */
+	public EventCredit(Document doc) throws InvalidMessage {
+		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
+		Message.validateLongType("credits", doc);
+		this.doc=doc;
+	}
+	
+	/**
+	 * 
+	 * @return the number of further events that may be sent, or negative
+	 * if events may be sent without credit
+	 */
+	public long getCredits() {
+		return doc.getLong("credits");
+	}
+}
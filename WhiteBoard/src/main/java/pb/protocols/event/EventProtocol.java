@@ -1,17 +1,63 @@
 package pb.protocols.event;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.Priority;
+import pb.managers.endpoint.Stream;
+import pb.protocols.EncodedMessage;
 import pb.protocols.IRequestReplyProtocol;
+import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.utils.Eventable;
+import pb.utils.TokenBucket;
+import pb.utils.Utils;
 
 /**
  * An event protocol for applications communicate using an asynchronous
  * event system. Each event can include a simple parameter that must
  * be a String. Complex data should be marshaled into a String.
+ * <br/>
+ * Events emitted within {@link #batchWindow} milliseconds of each other are
+ * sent together in one {@link EventBatchRequest}, up to a number of events
+ * and a total length, and acknowledged with one reply. The other side emits
+ * them in the order they were emitted. A batch is sent as soon as it is full,
+ * and before any event that is sent already serialised, so that events are
+ * never reordered.
+ * <br/>
+ * Received events can be limited to a rate for each event name. Events over
+ * the limit are dropped, although the request is still acknowledged.
+ * <br/>
+ * Events that the endpoint sends with {@link Priority#Bulk} are never batched.
+ * <br/>
+ * An instance can be on a {@link Stream} rather than the endpoint itself, in
+ * which case it sends the events emitted on the stream and emits received
+ * events on the stream. The requests of a stream are flow controlled by a
+ * window: once that many are waiting for a reply, further requests wait to
+ * be sent until replies arrive, without holding up other streams. At most
+ * {@link #setMaxPending(int)} requests wait, after which further events are
+ * refused, logged and counted by {@link #getRefusedEvents()}, rather than
+ * held without limit for a receiver that isn't keeping up.
+ * <br/>
+ * An event can also be called with {@link #call(String, String)}, in which
+ * case it is emitted at the other side with an {@link EventCall} that the
+ * response is given to, and the response comes back in the reply.
+ * <br/>
+ * Received events can be taken through an {@link EventPublisher} instead of
+ * a callback, in which case the other side sends events only as the
+ * publisher's subscribers ask for them, as given by {@link EventCredit}s.
  * @author aaron
  *
  */
@@ -24,6 +70,138 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	
 	public volatile boolean stopped=false;
 	
+	/**
+	 * Time in milliseconds that emitted events are held for to be sent
+	 * together, or 0 to send each event straight away.
+	 */
+	private volatile int batchWindow = 5;
+	
+	/**
+	 * Most events sent together.
+	 */
+	private volatile int maxBatchEvents = 64;
+	
+	/**
+	 * Most characters of event names and data sent together, keeping the
+	 * frame well inside what writeUTF can write.
+	 */
+	private volatile int maxBatchLength = 16*1024;
+	
+	/**
+	 * Names of the events waiting to be sent. Synchronized on the endpoint,
+	 * which is already held when an event is emitted.
+	 */
+	private final ArrayList<String> batchNames = new ArrayList<>();
+	
+	/**
+	 * Data of the events waiting to be sent.
+	 */
+	private final ArrayList<String> batchData = new ArrayList<>();
+	
+	/**
+	 * Characters of event names and data waiting to be sent.
+	 */
+	private int batchLength = 0;
+	
+	/**
+	 * Limits on the rate of received events by event name, or null for
+	 * no limits.
+	 */
+	private volatile Map<String,TokenBucket> eventLimits = null;
+	
+	/**
+	 * Number of received events dropped for being over their limit.
+	 */
+	private long droppedEvents = 0;
+	
+	/**
+	 * Default window of a stream.
+	 */
+	public static final int defaultStreamWindow = 16;
+	
+	/**
+	 * The stream this instance is on, or null if it is on the endpoint.
+	 */
+	private final Stream stream;
+	
+	/**
+	 * The endpoint or stream that events are sent from and emitted on.
+	 */
+	private final Eventable events;
+	
+	/**
+	 * Most requests waiting for a reply, or 0 for no limit.
+	 */
+	private volatile int window = 0;
+	
+	/**
+	 * Requests of a stream waiting for a reply. Synchronized on the
+	 * endpoint, as are the pending requests.
+	 */
+	private int outstanding = 0;
+	
+	/**
+	 * Requests waiting for the window to open.
+	 */
+	private final ArrayDeque<Message> pending = new ArrayDeque<>();
+	
+	/**
+	 * Most requests waiting for the window to open or for credit.
+	 */
+	private volatile int maxPending = 4096;
+	
+	/**
+	 * Number of events refused because too many requests were waiting.
+	 */
+	private long refusedEvents = 0;
+	
+	/**
+	 * Whether the stream is being closed, by either side.
+	 */
+	private boolean closing = false;
+	
+	/**
+	 * Whether the other side has asked for requests to be sent only
+	 * with credit.
+	 */
+	private boolean creditLimited = false;
+	
+	/**
+	 * Events that may be sent, when credit limited. It may go below zero
+	 * since a batch is sent whole.
+	 */
+	private long credits = 0;
+	
+	/**
+	 * Most credit that is given to the other side at a time.
+	 */
+	public static final long maxCredits = 1024;
+	
+	/**
+	 * Publishers of received events, which decide the credit given to
+	 * the other side. Changed while holding the endpoint's lock, and read
+	 * without it as events are received.
+	 */
+	private final CopyOnWriteArrayList<EventPublisher> publishers = new CopyOnWriteArrayList<>();
+	
+	/**
+	 * Names of the events that have a callback to give them to the
+	 * publishers, which is registered once since callbacks can't be removed.
+	 */
+	private final Set<String> publishedEvents = new HashSet<>();
+	
+	/**
+	 * Credit given to the other side that it has not used yet, as the other
+	 * side counts it.
+	 */
+	private long granted = 0;
+	
+	/**
+	 * The other side's request to close the stream, which is replied to
+	 * once the events sent on the stream have been replied to.
+	 */
+	private Message closeRequest = null;
+	
 	/**
 	 * Event protocol will listen to all events emitted on the endpoint and
 	 * transmit them over the endpoint.
@@ -31,11 +209,30 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	 * @param manager
 	 */
 	public EventProtocol(Endpoint endpoint, IEventProtocolHandler manager) {
-		super(endpoint, (Manager)manager);	
+		this(endpoint, manager, null);
+	}
+	
+	/**
+	 * Event protocol for a stream, which will listen to all events emitted
+	 * on the stream and transmit them on the stream.
+	 * @param endpoint
+	 * @param manager
+	 * @param stream or null for the endpoint itself
+	 */
+	public EventProtocol(Endpoint endpoint, IEventProtocolHandler manager, Stream stream) {
+		super(endpoint, (Manager)manager);
+		this.stream=stream;
+		if(stream!=null) {
+			streamId=stream.getStreamId();
+			window=defaultStreamWindow;
+			events=stream;
+		} else {
+			events=endpoint;
+		}
 		// Register an event to listen for all events ("*") emitted on this endpoint and
 		// send them to the remote end point; making sure thats events have
 		// only a String argument
-		endpoint.on("*", (args)->{
+		events.on("*", (args)->{
 			String eventName = (String) args[0];
 			if(args.length==2 && args[1] instanceof String) {
 				String eventData = (String) args[1];
@@ -53,12 +250,124 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	public void sendEvent(String eventName, String eventData) {
 		if(stopped)return;
-		sendRequest(new EventRequest(eventName,eventData));
+		synchronized(endpoint) {
+			if(closing) {
+				log.warning("event emitted on a closed stream: "+eventName);
+				return;
+			}
+		}
+		if(batchWindow<=0 || endpoint.getEventPriority(eventName)==Priority.Bulk) {
+			// bulk events go on their own, so they don't hold up the others
+			sendRequest(new EventRequest(eventName,eventData));
+			return;
+		}
+		int length = eventName.length()+eventData.length();
+		synchronized(endpoint) {
+			if(batchLength+length>maxBatchLength) flush();
+			batchNames.add(eventName);
+			batchData.add(eventData);
+			batchLength+=length;
+			if(batchNames.size()>=maxBatchEvents || batchLength>=maxBatchLength) {
+				flush();
+			} else if(batchNames.size()==1) {
+				Utils.getInstance().setTimeout(()->{
+					flush();
+				}, batchWindow);
+			}
+		}
+	}
+	
+	/**
+	 * Call an event on the other side, which responds to it with the
+	 * {@link EventCall} that it is emitted with. Events emitted before the
+	 * call are sent first. Calls are not held back by the window of a stream.
+	 * @param eventName
+	 * @param eventData
+	 * @return a future that is completed with the response, which is null
+	 * if there was none or the other side has no callbacks for the event, or
+	 * completed exceptionally if there is no reply within the event timeout
+	 */
+	public CompletableFuture<String> call(String eventName, String eventData) {
+		CompletableFuture<Message> reply;
+		synchronized(endpoint) {
+			if(stopped || closing) return CompletableFuture.failedFuture(
+					new IOException("event protocol has stopped"));
+			flush();
+			EventRequest msg = new EventRequest(eventName,eventData,true);
+			msg.setStreamId(streamId);
+			reply = endpoint.request(msg, eventTimeout);
+		}
+		return reply.thenApply((msg)->((EventReply)msg).getEventData());
+	}
+	
+	/**
+	 * Send the events that are waiting to be sent, if any, as a single
+	 * event if there is only one.
+	 */
+	public void flush() {
+		synchronized(endpoint) {
+			if(batchNames.isEmpty()) return;
+			Message msg;
+			if(batchNames.size()==1) {
+				msg = new EventRequest(batchNames.get(0),batchData.get(0));
+			} else {
+				msg = new EventBatchRequest(new ArrayList<String>(batchNames),new ArrayList<String>(batchData));
+			}
+			batchNames.clear();
+			batchData.clear();
+			batchLength=0;
+			sendRequest(msg);
+		}
+	}
+	
+	/**
+	 * Set how events are batched.
+	 * @param batchWindow milliseconds that events are held for to be sent
+	 * together, or 0 to send each event straight away
+	 * @param maxBatchEvents most events sent together
+	 * @param maxBatchLength most characters of event names and data
+	 * sent together
+	 */
+	public void setBatching(int batchWindow, int maxBatchEvents, int maxBatchLength) {
+		flush();
+		this.batchWindow=batchWindow;
+		this.maxBatchEvents=maxBatchEvents;
+		this.maxBatchLength=maxBatchLength;
+	}
+	
+	/**
+	 * Send an event request that has already been serialised, e.g. one
+	 * that is being broadcast to many endpoints. It is not held back by
+	 * credit, unless events emitted before it are, in which case it waits
+	 * behind them.
+	 * @param msg
+	 * @return true if the request was sent or is waiting to be sent
+	 */
+	public boolean sendEncoded(EncodedMessage msg) {
+		if(stopped)return false;
+		synchronized(endpoint) {
+			// events emitted before this one go first
+			flush();
+			if(!pending.isEmpty()) {
+				Message copy;
+				try {
+					copy = msg.toMessage();
+				} catch (InvalidMessage e) {
+					log.severe("encoded message could not be decoded: "+msg.getName());
+					return false;
+				}
+				return hold(copy);
+			}
+			return endpoint.sendWithTimeout(msg, ()->{
+				if(!stopped) manager.endpointTimedOut(endpoint, this);
+			}, eventTimeout);
+		}
 	}
 	
 	@Override
 	public void stopProtocol() {
 		stopped=true;
+		closePublishers();
 	}
 
 	@Override
@@ -76,24 +385,345 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	@Override
 	public void sendRequest(Message msg) {
 		if(stopped)return;
+		msg.setStreamId(streamId);
+		synchronized(endpoint) {
+			if(!pending.isEmpty() || !mayRelease()) {
+				hold(msg);
+				return;
+			}
+			release(msg);
+		}
+	}
+	
+	/**
+	 * Keep a request to send once the window and credit allow it, unless
+	 * too many are already waiting. Closing a stream is never refused.
+	 * @param msg
+	 * @return true if the request is waiting, false if it was refused
+	 */
+	private boolean hold(Message msg) {
+		if(pending.size()>=maxPending && !(msg instanceof EventRequest
+				&& ((EventRequest)msg).getEventName().equals(Stream.streamClosed))) {
+			int count=countEvents(msg);
+			long refused;
+			synchronized(this) {
+				refusedEvents+=count;
+				refused=refusedEvents;
+			}
+			// don't let the log be flooded as well
+			if(Long.highestOneBit(refused)!=Long.highestOneBit(refused-count)) {
+				log.warning("refused "+refused+" events to "+endpoint.getOtherEndpointId()
+					+" which is not keeping up, "+pending.size()+" requests are waiting");
+			}
+			return false;
+		}
+		pending.add(msg);
+		return true;
+	}
+	
+	/**
+	 * 
+	 * @return true if the window and credit allow another request to be sent
+	 */
+	private boolean mayRelease() {
+		if(stream!=null && window>0 && outstanding>=window) return false;
+		return !creditLimited || credits>0;
+	}
+	
+	private void release(Message msg) {
+		if(stream!=null) outstanding++;
+		if(creditLimited) credits-=countEvents(msg);
+		send(msg);
+	}
+	
+	/**
+	 * Send the pending requests that the window and credit now allow.
+	 */
+	private void releasePending() {
+		while(!pending.isEmpty() && mayRelease()) {
+			release(pending.poll());
+		}
+	}
+	
+	private static int countEvents(Message msg) {
+		if(msg instanceof EventBatchRequest) return ((EventBatchRequest)msg).getEventNames().size();
+		return 1;
+	}
+	
+	private void send(Message msg) {
 		endpoint.sendWithTimeout(msg, ()->{
 			if(!stopped) manager.endpointTimedOut(endpoint, this);
 		}, eventTimeout);
-		
 	}
 
+	/**
+	 * A reply opens the window for another request.
+	 * @param msg
+	 */
 	@Override
 	public void receiveReply(Message msg) {
-		
-		
+		if(stopped || stream==null)return;
+		synchronized(endpoint) {
+			if(outstanding>0) outstanding--;
+			releasePending();
+		}
+		finishClose();
+	}
+	
+	/**
+	 * Forget the stream once it is closed and everything sent on it has
+	 * been replied to, replying to the other side's close if it was the
+	 * other side that closed it.
+	 */
+	private void finishClose() {
+		synchronized(endpoint) {
+			if(!closing || outstanding>0 || !pending.isEmpty()) return;
+			// everything we sent has been received, so the reply can't overtake it
+			if(closeRequest!=null) endpoint.sendAndCancelTimeout(new EventReply(), closeRequest);
+		}
+		endpoint.removeStream(stream);
+	}
+	
+	/**
+	 * Set the most requests that may wait for a reply, after which they
+	 * wait to be sent.
+	 * @param window or 0 for no limit
+	 */
+	public void setWindow(int window) {
+		synchronized(endpoint) {
+			this.window=window;
+			releasePending();
+		}
+	}
+	
+	/**
+	 * Set the most requests that may wait for the window to open or for
+	 * credit, after which further events are refused.
+	 * @param maxPending
+	 */
+	public void setMaxPending(int maxPending) {
+		this.maxPending=maxPending;
+	}
+	
+	/**
+	 * 
+	 * @return the number of events refused because too many requests were
+	 * waiting to be sent
+	 */
+	public synchronized long getRefusedEvents() {
+		return refusedEvents;
+	}
+	
+	/**
+	 * 
+	 * @return the number of requests waiting for the window to open
+	 */
+	public int getPending() {
+		synchronized(endpoint) {
+			return pending.size();
+		}
+	}
+	
+	/**
+	 * Close the stream that this instance is on, once the events emitted on
+	 * it have been sent. The other side is told with {@link Stream#streamClosed}.
+	 */
+	public void closeStream() {
+		if(stream==null || stopped) return;
+		synchronized(endpoint) {
+			flush();
+			if(closing) return;
+			closing=true;
+			sendRequest(new EventRequest(Stream.streamClosed,""));
+		}
 	}
 
 	@Override
 	public void receiveRequest(Message msg) {
 		if(stopped)return;
-		EventRequest eventRequest = (EventRequest)msg;
+		if(msg instanceof EventCredit) {
+			long given = ((EventCredit)msg).getCredits();
+			synchronized(endpoint) {
+				if(given<0) {
+					creditLimited=false;
+					credits=0;
+				} else {
+					creditLimited=true;
+					credits+=given;
+				}
+				releasePending();
+			}
+			return;
+		}
+		if(!(msg instanceof EventRequest && ((EventRequest)msg).isCall())) {
+			// calls aren't sent with credit
+			synchronized(endpoint) {
+				if(!publishers.isEmpty()) granted-=countEvents(msg);
+			}
+		}
+		if(stream!=null && msg instanceof EventRequest
+				&& ((EventRequest)msg).getEventName().equals(Stream.streamClosed)) {
+			synchronized(endpoint) {
+				if(closing) {
+					// both sides closed at once, so neither can wait for the other
+					endpoint.sendAndCancelTimeout(new EventReply(), msg);
+				} else {
+					// send what has been emitted so far, but nothing after this
+					flush();
+					closing=true;
+					closeRequest=msg;
+				}
+			}
+			events.localEmit(Stream.streamClosed,"");
+			closePublishers();
+			finishClose();
+			return;
+		}
+		if(msg instanceof EventRequest && ((EventRequest)msg).isCall()) {
+			EventCall call = new EventCall(endpoint,(EventRequest)msg);
+			if(!admit(call.getEventName()) || !events.localEmit(call.getEventName(),call.getEventData(),call)) {
+				// don't keep the caller waiting for a response that won't come
+				if(!call.isResponded()) call.respond(null);
+			}
+			return;
+		}
 		endpoint.sendAndCancelTimeout(new EventReply(), msg);
-		endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());	
+		if(msg instanceof EventBatchRequest) {
+			EventBatchRequest batch = (EventBatchRequest)msg;
+			List<String> eventNames = batch.getEventNames();
+			List<String> eventData = batch.getEventData();
+			for(int i=0;i<eventNames.size();i++) {
+				emitReceived(eventNames.get(i),eventData.get(i));
+			}
+			grant();
+			return;
+		}
+		EventRequest eventRequest = (EventRequest)msg;
+		emitReceived(eventRequest.getEventName(),eventRequest.getEventData());
+		grant();
+	}
+	
+	/**
+	 * Publish the data of a received event to subscribers, which the other
+	 * side sends only as the subscribers ask for it. While there is a
+	 * publisher, the other side sends no events, of any name, except as
+	 * the slowest subscriber of every publisher asks for them.
+	 * @param eventName
+	 * @param executor that subscribers are called on
+	 * @return the publisher
+	 */
+	public EventPublisher publisher(String eventName, Executor executor) {
+		EventPublisher publisher = new EventPublisher(this,eventName,executor);
+		synchronized(endpoint) {
+			if(publishedEvents.add(eventName)) {
+				events.on(eventName, (args)->{
+					if(args.length==0 || !(args[0] instanceof String)) return;
+					for(EventPublisher current : publishers) {
+						if(current.getEventName().equals(eventName)) current.offer((String)args[0]);
+					}
+				});
+			}
+			if(stopped) {
+				publisher.close();
+				return publisher;
+			}
+			publishers.add(publisher);
+			if(publishers.size()==1) {
+				// the other side has to stop sending until there is demand
+				granted=0;
+				endpoint.send(withStreamId(new EventCredit(0)));
+			}
+		}
+		return publisher;
+	}
+	
+	/**
+	 * Give the other side credit for as many events as every subscriber
+	 * has asked for and not yet been given.
+	 */
+	void grant() {
+		synchronized(endpoint) {
+			if(stopped || publishers.isEmpty()) return;
+			long want=maxCredits;
+			for(EventPublisher publisher : publishers) {
+				want=Math.min(want, publisher.capacity());
+			}
+			if(want>granted) {
+				endpoint.send(withStreamId(new EventCredit(want-granted)));
+				granted=want;
+			}
+		}
+	}
+	
+	/**
+	 * Stop a publisher being given events, letting the other side send
+	 * without credit if it was the last one.
+	 * @param publisher
+	 */
+	void removePublisher(EventPublisher publisher) {
+		synchronized(endpoint) {
+			if(!publishers.remove(publisher)) return;
+			if(publishers.isEmpty()) {
+				granted=0;
+				if(!stopped) endpoint.send(withStreamId(new EventCredit(-1)));
+			} else {
+				grant();
+			}
+		}
+	}
+	
+	private void closePublishers() {
+		List<EventPublisher> current;
+		synchronized(endpoint) {
+			current = new ArrayList<>(publishers);
+		}
+		current.forEach((publisher)->{publisher.close();});
+	}
+	
+	private Message withStreamId(Message msg) {
+		msg.setStreamId(streamId);
+		return msg;
+	}
+	
+	private void emitReceived(String eventName,String eventData) {
+		if(!admit(eventName)) return;
+		events.localEmit(eventName,eventData);
+	}
+	
+	/**
+	 * Limit the rate of received events with given names. Only called on
+	 * the other side's events, so it may be different on each side.
+	 * @param eventLimits a bucket for each limited event name, which must
+	 * not be shared with other endpoints, or null for no limits
+	 */
+	public void setEventLimits(Map<String,TokenBucket> eventLimits) {
+		this.eventLimits=eventLimits;
+	}
+	
+	/**
+	 * 
+	 * @return the number of received events dropped for being over
+	 * their limit
+	 */
+	public synchronized long getDroppedEvents() {
+		return droppedEvents;
+	}
+	
+	private boolean admit(String eventName) {
+		Map<String,TokenBucket> limits = eventLimits;
+		if(limits==null) return true;
+		TokenBucket limit = limits.get(eventName);
+		if(limit==null || limit.tryTake(1)) return true;
+		long dropped;
+		synchronized(this) {
+			dropped=++droppedEvents;
+		}
+		// don't let the log be flooded as well
+		if(Long.bitCount(dropped)==1) {
+			log.warning("dropped "+dropped+" events over their limit from "+endpoint.getOtherEndpointId()
+				+", latest "+eventName);
+		}
+		return false;
 	}
 
 	@Override
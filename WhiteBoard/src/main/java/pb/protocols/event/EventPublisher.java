@@ -0,0 +1,292 @@
+package pb.protocols.event;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.logging.Logger;
+
+/**
+ * A {@link Flow.Publisher} of the data of an event received by an
+ * {@link EventProtocol}, for consumers that want to take events at their
+ * own pace rather than have them pushed into a callback on the thread that
+ * reads the endpoint.
+ * <br/>
+ * The demand of the subscribers is passed back to the other side as
+ * {@link EventCredit}s, so that the other side only sends as many events as
+ * the slowest subscriber has asked for, give or take one batch. Events that
+ * have arrived but not been asked for are held for each subscriber until
+ * they are. Subscribers are called on the given executor, one signal at a
+ * time for each subscriber, never on the endpoint's own thread.
+ * <br/>
+ * The credit counts every event sent on the endpoint or stream, not just
+ * this event, so a publisher is best used on a {@link pb.managers.endpoint.Stream}
+ * of its own. While it has no subscribers no events are sent to it.
+ * Broadcasts to the endpoint are not held back by credit, unless events
+ * emitted before them are.
+ *
+ * @see {@link EventProtocol#publisher(String, Executor)}
+ *
+ */
+public class EventPublisher implements Flow.Publisher<String> {
+	private static Logger log = Logger.getLogger(EventPublisher.class.getName());
+
+	/**
+	 * The protocol the events are received by.
+	 */
+	private final EventProtocol protocol;
+
+	/**
+	 * The name of the event.
+	 */
+	private final String eventName;
+
+	/**
+	 * Executor that subscribers are called on.
+	 */
+	private final Executor executor;
+
+	/**
+	 * Current subscriptions.
+	 */
+	private final List<EventSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Whether the publisher has been closed.
+	 */
+	private volatile boolean closed=false;
+
+	/**
+	 * Initialise the publisher.
+	 * @param protocol
+	 * @param eventName
+	 * @param executor
+	 */
+	EventPublisher(EventProtocol protocol,String eventName,Executor executor) {
+		this.protocol=protocol;
+		this.eventName=eventName;
+		this.executor=executor;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super String> subscriber) {
+		EventSubscription subscription = new EventSubscription(subscriber);
+		if(!closed) subscriptions.add(subscription);
+		else subscription.complete();
+		subscription.schedule();
+	}
+
+	/**
+	 *
+	 * @return the name of the event
+	 */
+	public String getEventName() {
+		return eventName;
+	}
+
+	/**
+	 *
+	 * @return the number of subscribers
+	 */
+	public int getNumSubscribers() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * Stop publishing. Subscribers are completed once they have taken the
+	 * events that have already arrived, and the other side may send events
+	 * without credit again if there are no other publishers.
+	 */
+	public void close() {
+		if(closed) return;
+		closed=true;
+		subscriptions.forEach((subscription)->{
+			subscription.complete();
+			subscription.schedule();
+		});
+		subscriptions.clear();
+		protocol.removePublisher(this);
+	}
+
+	/**
+	 *
+	 * @return true if the publisher has been closed
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Hold an event for each subscriber until it asks for it.
+	 * @param eventData
+	 */
+	void offer(String eventData) {
+		if(closed) return;
+		subscriptions.forEach((subscription)->{
+			subscription.offer(eventData);
+		});
+	}
+
+	/**
+	 *
+	 * @return the number of events that every subscriber has asked for but
+	 * that have not arrived yet, or 0 if there are no subscribers
+	 */
+	long capacity() {
+		if(subscriptions.isEmpty()) return 0;
+		long capacity=Long.MAX_VALUE;
+		for(EventSubscription subscription : subscriptions) {
+			capacity=Math.min(capacity, subscription.capacity());
+		}
+		return capacity;
+	}
+
+	/**
+	 * A subscriber's subscription, with the events held for it.
+	 */
+	private class EventSubscription implements Flow.Subscription {
+
+		/**
+		 * The subscriber.
+		 */
+		private final Flow.Subscriber<? super String> subscriber;
+
+		/**
+		 * Events that have arrived but not been passed to the subscriber.
+		 */
+		private final ArrayDeque<String> held = new ArrayDeque<>();
+
+		/**
+		 * Events asked for but not yet passed to the subscriber.
+		 */
+		private long demand=0;
+
+		/**
+		 * Whether onSubscribe has been called.
+		 */
+		private boolean subscribed=false;
+
+		/**
+		 * Whether the subscriber is to be completed once it has taken the
+		 * held events.
+		 */
+		private boolean completing=false;
+
+		/**
+		 * Whether no more signals are to be sent.
+		 */
+		private boolean done=false;
+
+		/**
+		 * An error to signal to the subscriber.
+		 */
+		private Throwable error=null;
+
+		/**
+		 * Whether signals are being sent on the executor.
+		 */
+		private boolean draining=false;
+
+		EventSubscription(Flow.Subscriber<? super String> subscriber) {
+			this.subscriber=subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			synchronized(this) {
+				if(done) return;
+				if(n<=0) {
+					error=new IllegalArgumentException("non-positive request: "+n);
+				} else {
+					demand+=n;
+					if(demand<0) demand=Long.MAX_VALUE; // effectively unbounded
+				}
+			}
+			schedule();
+			protocol.grant();
+		}
+
+		@Override
+		public void cancel() {
+			synchronized(this) {
+				done=true;
+				held.clear();
+			}
+			if(subscriptions.remove(this)) protocol.grant();
+		}
+
+		synchronized void offer(String eventData) {
+			if(done) return;
+			held.add(eventData);
+			if(demand>0) schedule();
+		}
+
+		synchronized void complete() {
+			completing=true;
+		}
+
+		synchronized long capacity() {
+			if(done) return Long.MAX_VALUE;
+			return demand-held.size();
+		}
+
+		/**
+		 * Make sure that the signals that are due are sent, on the executor.
+		 */
+		void schedule() {
+			synchronized(this) {
+				if(draining || done) return;
+				draining=true;
+			}
+			executor.execute(()->{
+				drain();
+			});
+		}
+
+		private void drain() {
+			if(!subscribed) {
+				subscribed=true;
+				subscriber.onSubscribe(this);
+			}
+			while(true) {
+				String next;
+				Throwable failed=null;
+				boolean finished=false;
+				synchronized(this) {
+					next=null;
+					if(done) {
+						draining=false;
+						return;
+					}
+					if(error!=null) {
+						failed=error;
+						done=true;
+					} else if(demand>0 && !held.isEmpty()) {
+						next=held.poll();
+						if(demand!=Long.MAX_VALUE) demand--;
+					} else if(completing && held.isEmpty()) {
+						finished=true;
+						done=true;
+					} else {
+						draining=false;
+						return;
+					}
+				}
+				if(failed!=null) {
+					if(subscriptions.remove(this)) protocol.grant();
+					subscriber.onError(failed);
+				} else if(finished) {
+					subscriber.onComplete();
+				} else {
+					try {
+						subscriber.onNext(next);
+					} catch (Throwable e) {
+						log.warning("subscriber failed, cancelling its subscription: "+e.getMessage());
+						cancel();
+					}
+				}
+			}
+		}
+	}
+}
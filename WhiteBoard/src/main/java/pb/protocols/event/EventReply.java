@@ -11,8 +11,28 @@ public class EventReply extends Message {
 		super(name, EventProtocol.protocolName, Message.Type.Reply);
 	}
 
+	/**
+	 * The response to an event that was called.
+	 * @param eventData the response, or null for none
+	 */
+	public EventReply(String eventData) {
+		this();
+		if(eventData!=null) doc.append("eventData", eventData);
+	}
+
 	public EventReply(Document doc) throws InvalidMessage {
 		super(name,EventProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
+		if(doc.containsKey("eventData")) Message.validateStringType("eventData", doc);
 		this.doc=doc;
 	}
+	
+	/**
+	 * 
+	 * @return the response to an event that was called, or null if there
+	 * was none
+	 */
+	public String getEventData() {
+		if(doc.containsKey("eventData")) return doc.getString("eventData");
+		else return null;
+	}
 }
@@ -13,10 +13,23 @@ public class EventRequest extends Message {
 		doc.append("eventData", eventData);
 	}
 
+	/**
+	 * An event that the other side responds to, as per
+	 * {@link EventProtocol#call(String, String)}.
+	 * @param eventName
+	 * @param eventData
+	 * @param call
+	 */
+	public EventRequest(String eventName, String eventData, boolean call) {
+		this(eventName, eventData);
+		if(call) doc.append("call", true);
+	}
+
 	public EventRequest(Document doc) throws InvalidMessage {
 		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
 		Message.validateStringType("eventName", doc);
 		Message.validateStringType("eventData", doc);
+		if(doc.containsKey("call") && !(doc.get("call") instanceof Boolean)) throw new InvalidMessage();
 		this.doc=doc;
 	}
 	
@@ -27,4 +40,12 @@ public class EventRequest extends Message {
 	public String getEventData() {
 		return doc.getString("eventData");
 	}
+	
+	/**
+	 * 
+	 * @return true if the other side is waiting for a response
+	 */
+	public boolean isCall() {
+		return doc.containsKey("call") && doc.getBoolean("call");
+	}
 }
@@ -1,5 +1,12 @@
 package pb.protocols.keepalive;
 
-public interface IKeepAliveProtocolHandler {
+import pb.managers.LivenessSweeper;
 
+public interface IKeepAliveProtocolHandler {
+	/**
+	 * 
+	 * @return the sweeper that checks the liveness of all of the manager's
+	 * endpoints, or null for each protocol to keep its own timer
+	 */
+	public LivenessSweeper getLivenessSweeper();
 }
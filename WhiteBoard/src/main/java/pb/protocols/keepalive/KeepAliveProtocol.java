@@ -3,6 +3,7 @@ package pb.protocols.keepalive;
 import java.time.Instant;
 import java.util.logging.Logger;
 
+import pb.managers.LivenessSweeper;
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
 import pb.protocols.Message;
@@ -12,20 +13,28 @@ import pb.protocols.IRequestReplyProtocol;
 
 /**
  * Provides all of the protocol logic for both client and server to undertake
- * the KeepAlive protocol. In the KeepAlive protocol, the client sends a
- * KeepAlive request to the server every {@link #keepAliveInterval} seconds using
- * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}. The server must
- * send a KeepAlive response to the client upon receiving the request. If the
- * client does not receive the response within {@link #keepAliveTimeout} seconds
- * it will assume the server is dead
- * and signal its manager using
- * {@link pb.managers.Manager#endpointTimedOut(Endpoint,Protocol)}. If the server does
- * not receive a KeepAlive request at least every {@link #keepAliveTimeout} seconds (again using
- * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}), it will assume
- * the client is dead and signal its manager. Upon initialisation, the client
- * should send the KeepAlive request immediately, whereas the server will wait
- * up to {@link #keepAliveTimeout} seconds before it assumes the client is dead. The protocol stops
- * when a timeout occurs.
+ * the KeepAlive protocol. Any message received on the endpoint is proof that
+ * the other endpoint is alive, so KeepAlive requests are only needed when the
+ * connection is idle. The client sends a KeepAlive request once nothing has
+ * been sent or received for {@link #keepAliveRequestInterval} milliseconds,
+ * and the server must send a KeepAlive response upon receiving the request.
+ * If the client then receives nothing within the probe timeout it will assume
+ * the server is dead and signal its manager using
+ * {@link pb.managers.Manager#endpointTimedOut(Endpoint,Protocol)}. The probe
+ * timeout adapts to the round trip time measured from the responses, between
+ * {@link #minProbeTimeout} and {@link #keepAliveTimeout}. If the server
+ * receives nothing for {@link #keepAliveTimeout} milliseconds it will assume
+ * the client is dead and signal its manager. Each side has a single timer
+ * callback outstanding at any time (using
+ * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}), which is
+ * set for the next time that something could need doing, so a busy connection
+ * sends no requests and wakes its timer only once per interval. If the
+ * manager has a {@link pb.managers.LivenessSweeper} then the protocol has no
+ * timer callback of its own, the sweeper checks it at those times instead. Upon
+ * initialisation, the client should send the KeepAlive request immediately,
+ * whereas the server will wait up to {@link #keepAliveTimeout} milliseconds
+ * before it assumes the client is dead. The protocol stops when a timeout
+ * occurs.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -47,38 +56,53 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	public static final String protocolName="KeepAliveProtocol";
 	
 	/**
-	 * Default keep alive request interval
+	 * Default idle time before a keep alive request is sent
 	 */
 	private int keepAliveRequestInterval = 20000;
 	
 	/**
-	 * Default keep alive timeout
+	 * Default keep alive timeout, which is also the longest probe timeout
 	 */
 	private int keepAliveTimeout = 40000;
 	
+	/**
+	 * Shortest probe timeout, however small the round trip time
+	 */
+	private int minProbeTimeout = 5000;
+	
 	// Use of volatile is because the timer thread is different to the endpoint thread
 	// and they make use of the same flags/variables.
 	
 	/**
-	 * Time that a request was last sent.
+	 * Time that the last request was sent, or 0 once its reply has been seen.
+	 */
+	private volatile long timeRequestSent=0;
+	
+	/**
+	 * Time that the last request was sent, for checking that something has
+	 * been received since.
 	 */
-	private volatile long timeReplySeen;
+	private volatile long timeProbeSent=0;
 	
 	/**
-	 * Time that a request was last seen.
+	 * Smoothed round trip time, or -1 before it has been measured.
 	 */
-	private volatile long timeRequestSeen;
+	private volatile long smoothedRtt=-1;
 	
+	/**
+	 * Smoothed variation of the round trip time.
+	 */
+	private volatile long rttVariation=0;
 	
 	/**
-	 * Set to true to avoid any further timeouts. 
+	 * Whether this end is the client, which sends the requests.
 	 */
-	private volatile boolean stopped=false;
+	private volatile boolean asClient=false;
 	
 	/**
-	 * Whether we should timeout or not.
+	 * Set to true to avoid any further timeouts. 
 	 */
-	private volatile boolean timeout=false; 
+	private volatile boolean stopped=false;
 	
 	/**
 	 * Initialise the protocol with an endopint and a manager.
@@ -111,79 +135,127 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	
 	/**
 	 * Called by the manager that is acting as the server. Basically
-	 * just wait for {@link #keepAliveTimeout} seconds and if no (new) request has been seen
-	 * then timeout. Keep doing this until cancelled.
+	 * just wait for {@link #keepAliveTimeout} milliseconds and if nothing
+	 * (new) has been received then timeout. Keep doing this until cancelled.
 	 */
 	public void startAsServer() {
-		timeRequestSeen = Instant.now().toEpochMilli();
-		// set a timeout callback
-		Utils.getInstance().setTimeout(()->{
-			checkClientTimeout();
-		}, keepAliveTimeout);
+		asClient=false;
+		start(Instant.now().toEpochMilli()+keepAliveTimeout);
 	}
 	
 	/**
-	 * callback to check for client timeout
+	 * Check for client timeout.
+	 * @param now
+	 * @return when to check again, or -1 if timed out
 	 */
-	public void checkClientTimeout() {
-		if(stopped)return;
-		long now = Instant.now().toEpochMilli();
-		if(now-timeRequestSeen > keepAliveTimeout) {
+	public long checkClientTimeout(long now) {
+		long lastReceived = endpoint.getLastReceived();
+		if(now-lastReceived > keepAliveTimeout) {
 			// timeout :-(
-			manager.endpointTimedOut(endpoint,this);
 			stopProtocol();
-		} else {
-			// set a timeout callback
-			Utils.getInstance().setTimeout(()->{
-				checkClientTimeout();
-			}, keepAliveTimeout);
+			manager.endpointTimedOut(endpoint,this);
+			return -1;
 		}
+		// check again when it could next have timed out
+		return lastReceived+keepAliveTimeout+1;
 	}
 	
 	/**
 	 * Called by the manager that is acting as the client. Basically
-	 * send a keep alive immediately and timeout if no response within
-	 * {@link #keepAliveTimeout} seconds.
-	 * Keep doing this every {@link #keepAliveRequestInterval} seconds until cancelled.
+	 * send a keep alive immediately and timeout if nothing is received
+	 * within the probe timeout. Keep doing this whenever the connection
+	 * has been idle for {@link #keepAliveRequestInterval} milliseconds
+	 * until cancelled.
 	 */
 	public void startAsClient() {
-		// assume we saw a reply already
-		timeReplySeen = Instant.now().toEpochMilli();
-		// send a request straight away
-		sendAnotherRequest();	
+		asClient=true;
+		// send a request straight away, which also measures the round trip time
+		start(sendAnotherRequest(Instant.now().toEpochMilli()));
 	}
 	
 	/**
-	 * callback to send new request
+	 * Send a new request.
+	 * @param now
+	 * @return when to check that something has been received
 	 */
-	public void sendAnotherRequest() {
-		if(stopped)return;
+	public long sendAnotherRequest(long now) {
+		timeRequestSent = now;
+		timeProbeSent = now;
 		sendRequest(new KeepAliveRequest());
-		final long timeSent = Instant.now().toEpochMilli();
-		Utils.getInstance().setTimeout(()->{
-			sendAnotherRequest();
-		}, keepAliveRequestInterval);
-		Utils.getInstance().setTimeout(()->{
-			checkServerTimeout(timeSent);
-		}, keepAliveTimeout);
+		return now+Math.min(getProbeTimeout(),keepAliveRequestInterval);
 	}
 	
 	/**
-	 * callback to check for server timeout
+	 * Check for server timeout, and send a request if the connection
+	 * has become idle.
+	 * @param now
+	 * @return when to check again, or -1 if timed out
 	 */
-	public void checkServerTimeout(long timeSent) {
-		if(stopped)return;
-		if(timeout) {
-			manager.endpointTimedOut(endpoint,this);
-			stopProtocol();
+	public long checkServerTimeout(long now) {
+		long lastReceived = endpoint.getLastReceived();
+		long probeSent = timeProbeSent;
+		if(probeSent>0 && lastReceived<probeSent) {
+			long probeTimeout = getProbeTimeout();
+			if(now-probeSent >= probeTimeout) {
+				// nothing at all since the request, we timed out :-(
+				stopProtocol();
+				manager.endpointTimedOut(endpoint,this);
+				return -1;
+			}
+			return probeSent+probeTimeout;
+		}
+		timeProbeSent = 0;
+		// idle if nothing has been sent or nothing has been received, since the
+		// server needs to hear from us as much as we need to hear from it
+		long lastActive = Math.min(lastReceived, endpoint.getLastSent());
+		if(now-lastActive >= keepAliveRequestInterval) {
+			return sendAnotherRequest(now);
+		}
+		return lastActive+keepAliveRequestInterval;
+	}
+	
+	/**
+	 * Check the client or the server, whichever this end is not. Called
+	 * when the time returned by the previous check has come.
+	 * @param now
+	 * @return when to check again, or -1 if the protocol has stopped
+	 */
+	public long check(long now) {
+		if(stopped) return -1;
+		return asClient?checkServerTimeout(now):checkClientTimeout(now);
+	}
+	
+	/**
+	 * Have the manager's liveness sweeper check us, or else keep our
+	 * own timer callback.
+	 * @param deadline when to first check
+	 */
+	private void start(long deadline) {
+		LivenessSweeper sweeper = ((IKeepAliveProtocolHandler)manager).getLivenessSweeper();
+		if(sweeper!=null) {
+			sweeper.add(this, deadline);
 		} else {
-			if(timeReplySeen-timeSent > keepAliveTimeout) {
-				//we timed out :-(
-				timeout=true;
-				manager.endpointDisconnectedAbruptly(endpoint);				
-			} 
+			schedule(deadline);
 		}
 	}
+	
+	private void schedule(long deadline) {
+		Utils.getInstance().setTimeout(()->{
+			long next = check(Instant.now().toEpochMilli());
+			if(next>=0) schedule(next);
+		}, Math.max(0, deadline-Instant.now().toEpochMilli()));
+	}
+	
+	/**
+	 * 
+	 * @return how long to wait for the reply to a request, from the
+	 * measured round trip time
+	 */
+	public long getProbeTimeout() {
+		long rtt = smoothedRtt;
+		if(rtt<0) return keepAliveTimeout;
+		return Math.max(minProbeTimeout, Math.min(keepAliveTimeout, rtt+4*rttVariation));
+	}
 
 	/**
 	 * Send a keep alive request.
@@ -196,25 +268,36 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	}
 
 	/**
-	 * If we receive a keep alive reply, make a note of the time.
+	 * If we receive a keep alive reply, update the round trip time, smoothed
+	 * in the same way as TCP's retransmission timer.
 	 * @param msg
 	 */
 	@Override
 	public void receiveReply(Message msg) {
 		@SuppressWarnings("unused")
 		KeepAliveReply keepAliveResponse = (KeepAliveReply) msg;
-		timeReplySeen = Instant.now().toEpochMilli();
+		long sent = timeRequestSent;
+		if(sent==0) return;
+		timeRequestSent = 0;
+		long rtt = Instant.now().toEpochMilli()-sent;
+		if(smoothedRtt<0) {
+			smoothedRtt = rtt;
+			rttVariation = rtt/2;
+		} else {
+			rttVariation = (3*rttVariation+Math.abs(smoothedRtt-rtt))/4;
+			smoothedRtt = (7*smoothedRtt+rtt)/8;
+		}
 	}
 
 	/**
-	 * Received a keep alive request so make a note of when that was.
+	 * Received a keep alive request, the endpoint has already noted
+	 * that something was received.
 	 * @param msg
 	 */
 	@Override
 	public void receiveRequest(Message msg) {
 		@SuppressWarnings("unused")
 		KeepAliveRequest keepAliveRequest = (KeepAliveRequest) msg;
-		timeRequestSeen = Instant.now().toEpochMilli();
 		sendReply(new KeepAliveReply());
 	}
 
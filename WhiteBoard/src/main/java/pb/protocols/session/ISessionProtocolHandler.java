@@ -14,4 +14,25 @@ public interface ISessionProtocolHandler {
 	 * @param endpoint
 	 */
 	public void sessionStopped(Endpoint endpoint);
+
+	/**
+	 * A session start request has been received, before the session is
+	 * started. A server gives out a token for the client to present if it
+	 * reconnects, so that the session can be resumed.
+	 * @param endpoint
+	 * @param resumeToken the token presented by the client, or null if
+	 * it is not resuming a session
+	 * @return the token for the new session, which is the presented token
+	 * if the previous session is resumed, or null if it can't be resumed
+	 */
+	public String sessionRequested(Endpoint endpoint,String resumeToken);
+
+	/**
+	 * A session start reply has been received, before the session is
+	 * started.
+	 * @param endpoint
+	 * @param resumeToken the token to present when reconnecting, or null
+	 * @param resumed true if the server resumed the previous session
+	 */
+	public void sessionAccepted(Endpoint endpoint,String resumeToken,boolean resumed);
 }
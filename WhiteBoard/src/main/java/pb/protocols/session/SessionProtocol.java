@@ -4,8 +4,10 @@ import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.FrameCompressor;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.protocols.event.EventProtocol;
 import pb.utils.Utils;
 import pb.protocols.IRequestReplyProtocol;
 
@@ -18,6 +20,13 @@ import pb.protocols.IRequestReplyProtocol;
  * session stop request to the client if it wants (needs) to stop the session,
  * e.g. perhaps the server is becoming overloaded and needs to shed some
  * clients.
+ * <br/>
+ * The server may give out a resume token in the start reply. A client that
+ * has lost its connection presents the token in its next start request, so
+ * that the server can resume the previous session rather than start afresh,
+ * and tells the client whether it did. The client may also offer to compress
+ * frames, which the server accepts in the start reply if it allows it;
+ * frames after the reply may then be compressed, in both directions.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -57,13 +66,29 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	private volatile boolean stopped=false;
 	
+	/**
+	 * Token of the session to resume, sent by the client, or null.
+	 */
+	private final String resumeToken;
+	
 	/**
 	 * Initialise the protocol with an endpoint and manager.
 	 * @param endpoint
 	 * @param manager
 	 */
 	public SessionProtocol(Endpoint endpoint, ISessionProtocolHandler manager) {
+		this(endpoint,manager,null);
+	}
+	
+	/**
+	 * Initialise the protocol for a client that wants to resume a session.
+	 * @param endpoint
+	 * @param manager
+	 * @param resumeToken token of the session to resume, or null
+	 */
+	public SessionProtocol(Endpoint endpoint, ISessionProtocolHandler manager, String resumeToken) {
 		super(endpoint,(Manager)manager);
+		this.resumeToken=resumeToken;
 	}
 	
 	/**
@@ -98,7 +123,8 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	@Override
 	public void startAsClient() {
 		//  send the server a start session request
-		sendRequest(new SessionStartRequest());
+		sendRequest(new SessionStartRequest(resumeToken,
+				endpoint.isCompressionAllowed()?FrameCompressor.name:null));
 	}
 
 	/**
@@ -118,6 +144,8 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 * Generic stop session call, for either client or server.
 	 */
 	public void stopSession() {
+		// events waiting to be sent in a batch must go before the session ends
+		endpoint.flushEvents();
 		sendRequest(new SessionStopRequest());
 	}
 	
@@ -150,6 +178,10 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
+			SessionStartReply reply = (SessionStartReply) msg;
+			if(FrameCompressor.name.equals(reply.getCompression())) endpoint.startCompression();
+			((ISessionProtocolHandler)manager).sessionAccepted(endpoint,
+					reply.getResumeToken(),reply.isResumed());
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopReply) {
 			if(!protocolRunning) {
@@ -178,7 +210,15 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
-			endpoint.sendAndCancelTimeout(new SessionStartReply(),msg);
+			SessionStartRequest request = (SessionStartRequest) msg;
+			String previous = request.getResumeToken();
+			String token = ((ISessionProtocolHandler)manager).sessionRequested(endpoint,previous);
+			boolean compress = endpoint.isCompressionAllowed() &&
+					FrameCompressor.name.equals(request.getCompression());
+			endpoint.sendAndCancelTimeout(new SessionStartReply(token,
+					previous!=null && previous.equals(token),compress?FrameCompressor.name:null),msg);
+			// the reply went uncompressed, everything after it may not
+			if(compress) endpoint.startCompression();
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopRequest) {
 			if(!protocolRunning) {
@@ -5,7 +5,10 @@ import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 
 /**
- * Message sent in response to a start request.
+ * Message sent in response to a start request. It may carry a resume token
+ * for the client to present if it has to reconnect, and whether the
+ * session that the client asked to resume was resumed, and the compression
+ * that the server accepted.
  * @see {@link pb.protocols.session.SessionProtocol}
  * @author aaron
  *
@@ -20,6 +23,28 @@ public class SessionStartReply extends Message {
 	public SessionStartReply() {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply);
 	}
+
+	/**
+	 * Initialiser with a resume token.
+	 * @param resumeToken token for this session, or null if it can't be resumed
+	 * @param resumed true if the previous session was resumed
+	 */
+	public SessionStartReply(String resumeToken,boolean resumed) {
+		this(resumeToken,resumed,null);
+	}
+
+	/**
+	 * Initialiser with a resume token and the compression accepted.
+	 * @param resumeToken token for this session, or null if it can't be resumed
+	 * @param resumed true if the previous session was resumed
+	 * @param compression the compression to use, or null if none
+	 */
+	public SessionStartReply(String resumeToken,boolean resumed,String compression) {
+		this();
+		if(resumeToken!=null) doc.append("resumeToken", resumeToken);
+		doc.append("resumed", resumed);
+		if(compression!=null) doc.append("compression", compression);
+	}
 	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
@@ -30,6 +55,33 @@ public class SessionStartReply extends Message {
 	 */
 	public SessionStartReply(Document doc) throws InvalidMessage {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
+		if(doc.containsKey("resumeToken")) Message.validateStringType("resumeToken", doc);
+		if(doc.containsKey("compression")) Message.validateStringType("compression", doc);
+		if(doc.containsKey("resumed") && !(doc.get("resumed") instanceof Boolean)) throw new InvalidMessage();
 		this.doc=doc;
 	}
+
+	/**
+	 *
+	 * @return the token for this session, or null if it can't be resumed
+	 */
+	public String getResumeToken() {
+		return doc.containsKey("resumeToken")?doc.getString("resumeToken"):null;
+	}
+
+	/**
+	 *
+	 * @return the compression to use, or null if none
+	 */
+	public String getCompression() {
+		return doc.containsKey("compression")?doc.getString("compression"):null;
+	}
+
+	/**
+	 *
+	 * @return true if the previous session was resumed
+	 */
+	public boolean isResumed() {
+		return doc.containsKey("resumed") && doc.getBoolean("resumed");
+	}
 }
@@ -5,7 +5,9 @@ import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 
 /**
- * Message sent to request the session to start.
+ * Message sent to request the session to start. It may carry the resume
+ * token of a previous session, to ask the server to resume that session,
+ * and the compression that the client offers to use.
  * @see {@link pb.protocols.session.SessionProtocol}
  * @author aaron
  *
@@ -20,6 +22,26 @@ public class SessionStartRequest extends Message {
 	public SessionStartRequest() {
 		super(name,SessionProtocol.protocolName,Message.Type.Request);
 	}
+
+	/**
+	 * Initialiser for a request to resume a previous session.
+	 * @param resumeToken the token of the previous session, or null if none
+	 */
+	public SessionStartRequest(String resumeToken) {
+		this(resumeToken,null);
+	}
+
+	/**
+	 * Initialiser for a request that may resume a previous session and may
+	 * offer compression.
+	 * @param resumeToken the token of the previous session, or null if none
+	 * @param compression the compression offered, or null if none
+	 */
+	public SessionStartRequest(String resumeToken,String compression) {
+		this();
+		if(resumeToken!=null) doc.append("resumeToken", resumeToken);
+		if(compression!=null) doc.append("compression", compression);
+	}
 	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
@@ -30,6 +52,24 @@ public class SessionStartRequest extends Message {
 	 */
 	public SessionStartRequest(Document doc) throws InvalidMessage {
 		super(name,SessionProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
+		if(doc.containsKey("resumeToken")) Message.validateStringType("resumeToken", doc);
+		if(doc.containsKey("compression")) Message.validateStringType("compression", doc);
 		this.doc=doc;
 	}
+
+	/**
+	 *
+	 * @return the compression offered, or null if none
+	 */
+	public String getCompression() {
+		return doc.containsKey("compression")?doc.getString("compression"):null;
+	}
+
+	/**
+	 *
+	 * @return the token of the session to resume, or null if none
+	 */
+	public String getResumeToken() {
+		return doc.containsKey("resumeToken")?doc.getString("resumeToken"):null;
+	}
 }
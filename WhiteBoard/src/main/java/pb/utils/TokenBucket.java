@@ -0,0 +1,93 @@
+package pb.utils;
+
+/**
+ * Limits the rate of something, e.g. messages or bytes received, to a
+ * number of tokens per second, allowing bursts of up to a number of tokens.
+ * Tokens are added as time passes rather than by a timer. Taking more tokens
+ * than there are puts the bucket into debt, which is paid off before any
+ * more can be taken, so the long run rate is kept exactly whatever the size
+ * of each take.
+ *
+ */
+public class TokenBucket {
+
+	/**
+	 * Tokens added per second.
+	 */
+	private final double rate;
+
+	/**
+	 * Most tokens the bucket holds.
+	 */
+	private final double burst;
+
+	/**
+	 * Tokens in the bucket, negative when in debt.
+	 */
+	private double tokens;
+
+	/**
+	 * Time in nanoseconds that tokens were last added.
+	 */
+	private long last;
+
+	/**
+	 * Initialise a full bucket.
+	 * @param rate tokens added per second
+	 * @param burst most tokens the bucket holds
+	 */
+	public TokenBucket(double rate,double burst) {
+		this.rate=rate;
+		this.burst=burst;
+		this.tokens=burst;
+		this.last=System.nanoTime();
+	}
+
+	/**
+	 *
+	 * @return tokens added per second
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 *
+	 * @return most tokens the bucket holds
+	 */
+	public double getBurst() {
+		return burst;
+	}
+
+	private void refill() {
+		long now=System.nanoTime();
+		tokens=Math.min(burst, tokens+(now-last)*rate/1e9);
+		last=now;
+	}
+
+	/**
+	 * Take tokens only if there are enough of them.
+	 * @param n
+	 * @return true if they were taken
+	 */
+	public synchronized boolean tryTake(double n) {
+		refill();
+		if(tokens<n) return false;
+		tokens-=n;
+		return true;
+	}
+
+	/**
+	 * Take tokens whether or not there are enough of them, going into debt
+	 * if need be.
+	 * @param n
+	 * @return time in milliseconds to wait until the debt is paid off, 0 if
+	 * there were enough tokens
+	 */
+	public synchronized long take(double n) {
+		refill();
+		tokens-=n;
+		if(tokens>=0) return 0;
+		return (long) Math.ceil(-tokens*1000/rate);
+	}
+}
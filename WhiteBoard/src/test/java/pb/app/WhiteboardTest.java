@@ -0,0 +1,113 @@
+package pb.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that copies of a board that see the same changes end up the same,
+ * whatever order the changes arrive in.
+ */
+public class WhiteboardTest {
+
+	private static final String name = "host:1:board";
+
+	private static WhiteboardPath path(int n) {
+		WhiteboardPath path = new WhiteboardPath(Color.black);
+		for(int i=0;i<3;i++) path.addPoint(n+i, n);
+		return path;
+	}
+
+	/**
+	 * Make changes on three copies of a board, each seeing some of the
+	 * changes of the others as it goes.
+	 * @param random
+	 * @param copies
+	 * @return the changes made, in the order they were made
+	 */
+	private static List<String> drawOn(Random random,Whiteboard[] copies) {
+		List<String> changes = new ArrayList<>();
+		for(int i=0;i<40;i++) {
+			Whiteboard copy = copies[random.nextInt(copies.length)];
+			int op = random.nextInt(10);
+			String change;
+			if(op<6) change=copy.addPath(path(i));
+			else if(op<9) change=copy.undo();
+			else change=copy.clear();
+			if(change!=null) changes.add(change);
+			if(!changes.isEmpty() && random.nextInt(3)==0) {
+				for(Whiteboard other : copies) {
+					other.merge(WhiteboardApp.getBoardData(changes.get(random.nextInt(changes.size()))));
+				}
+			}
+		}
+		return changes;
+	}
+
+	private static Whiteboard[] newCopies() {
+		return new Whiteboard[] {
+				new Whiteboard(name,false,"host:1"),
+				new Whiteboard(name,true,"host:2"),
+				new Whiteboard(name,true,"host:3")};
+	}
+
+	@Test
+	public void mergeInAnyOrderConverges() {
+		Random random = new Random(1);
+		for(int run=0;run<100;run++) {
+			List<String> changes = drawOn(random,newCopies());
+			String expected = null;
+			for(int order=0;order<4;order++) {
+				List<String> shuffled = new ArrayList<>(changes);
+				Collections.shuffle(shuffled, random);
+				Whiteboard copy = new Whiteboard(name,true,"host:4");
+				for(String change : shuffled) copy.merge(WhiteboardApp.getBoardData(change));
+				// merging a change again changes nothing
+				for(String change : shuffled) copy.merge(WhiteboardApp.getBoardData(change));
+				if(expected==null) expected=copy.toString();
+				assertEquals(expected, copy.toString());
+			}
+		}
+	}
+
+	@Test
+	public void summariesExchangeTheMissingChanges() {
+		Random random = new Random(2);
+		for(int run=0;run<100;run++) {
+			Whiteboard[] copies = newCopies();
+			drawOn(random,copies);
+			Whiteboard a = copies[1];
+			Whiteboard b = copies[2];
+			String toB = a.changesSince(WhiteboardApp.getBoardPaths(b.getSummary()));
+			String toA = b.changesSince(WhiteboardApp.getBoardPaths(a.getSummary()));
+			if(toB!=null) b.merge(WhiteboardApp.getBoardData(toB));
+			if(toA!=null) a.merge(WhiteboardApp.getBoardData(toA));
+			assertEquals(a.toString(), b.toString());
+			assertNull(a.changesSince(WhiteboardApp.getBoardPaths(b.getSummary())));
+		}
+	}
+
+	@Test
+	public void clearDropsCoveredUndos() {
+		Whiteboard board = new Whiteboard(name,false,"host:1");
+		board.addPath(path(1));
+		String undo = board.undo();
+		long version = board.getVersion();
+		board.clear();
+		assertFalse(board.toString().contains(WhiteboardApp.getBoardPaths(undo)));
+		assertTrue(board.getVersion()>version);
+		// an undo that arrives after the clear is not kept either
+		String cleared = board.toString();
+		board.merge(WhiteboardApp.getBoardData(undo));
+		assertEquals(cleared, board.toString());
+	}
+}